@@ -2,6 +2,7 @@ package org.trotiletre.client;
 
 import org.trotiletre.client.stubs.AuthenticationManagerStub;
 import org.trotiletre.client.stubs.ScooterManagerStub;
+import org.trotiletre.client.workers.Heartbeat;
 import org.trotiletre.client.workers.NotificationListener;
 import org.trotiletre.common.communication.Demultiplexer;
 import org.trotiletre.common.communication.TaggedConnection;
@@ -49,6 +50,11 @@ public class ScooterManagerRCPClient {
         // Running the notification listener.
         new Thread(new NotificationListener(demultiplexer)).start();
 
+        // Keeping the connection open while waiting for the user.
+        Thread heartbeat = new Thread(new Heartbeat(connection, Heartbeat.DEFAULT_INTERVAL));
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
         /* Tests */
         String username = "Guilherme";
         String password = "emrehliuG";
@@ -0,0 +1,74 @@
+package org.trotiletre.client.stubs;
+
+import org.trotiletre.common.communication.Demultiplexer;
+import org.trotiletre.common.communication.TaggedConnection;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Sends a request of a stub without waiting for its reply.
+ * <p>
+ * The reply is decoded on the demultiplexer thread when it arrives, completing the returned future, so the
+ * stages depending on it must not block. Any {@link IOException}, while encoding, sending or decoding, completes
+ * the future exceptionally.
+ */
+final class AsyncCall {
+
+    private AsyncCall() {
+    }
+
+    /**
+     * Encodes a request into the data of a frame.
+     */
+    @FunctionalInterface
+    interface Request {
+        byte[] encode() throws IOException;
+    }
+
+    /**
+     * Decodes the data of a reply.
+     *
+     * @param <T> Type of the decoded reply.
+     */
+    @FunctionalInterface
+    interface Reply<T> {
+        T decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * Sends a request, returning a future of its decoded reply.
+     *
+     * @param connection    The connection to the server.
+     * @param demultiplexer The demultiplexer of the connection, where the reply arrives.
+     * @param tag           The tag of the service.
+     * @param request       The encoder of the request.
+     * @param reply         The decoder of the reply.
+     * @param <T>           Type of the decoded reply.
+     * @return The future of the decoded reply.
+     */
+    static <T> CompletableFuture<T> send(TaggedConnection connection, Demultiplexer demultiplexer, int tag,
+                                         Request request, Reply<T> reply) {
+
+        try {
+            byte[] data = request.encode();
+
+            // The future is registered first, or a quick reply could arrive before it.
+            int requestId = demultiplexer.newRequestId();
+            CompletableFuture<byte[]> received = demultiplexer.receiveReplyAsync(requestId);
+            connection.send(tag, requestId, data);
+
+            return received.thenApply(receivedData -> {
+                try {
+                    return reply.decode(receivedData);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
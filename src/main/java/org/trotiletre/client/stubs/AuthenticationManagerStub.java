@@ -1,13 +1,15 @@
 package org.trotiletre.client.stubs;
 
-import org.trotiletre.common.AnswerTag;
 import org.trotiletre.common.IAuthenticationManager;
 import org.trotiletre.common.ManagerTag;
+import org.trotiletre.common.communication.AuthenticationMessages;
+import org.trotiletre.common.communication.Codec;
 import org.trotiletre.common.communication.Demultiplexer;
 import org.trotiletre.common.communication.TaggedConnection;
 import org.trotiletre.models.User;
 
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 public class AuthenticationManagerStub implements IAuthenticationManager {
 
@@ -33,32 +35,29 @@ public class AuthenticationManagerStub implements IAuthenticationManager {
     @Override
     public boolean registerUser(String username, String password) throws IOException, InterruptedException {
 
-        // Creating the user object and hashing the password to be stored.
-        User user = new User(username);
-        user.setPassword(password);
-
-        // Since the tagged connection takes a byte[] a parameter, we write to a stream
-        // and then convert it into the byte[].
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.AUTHENTICATION.tag, requestId, registerUserRequest(username, password)); // Sending the message to the server.
 
-        dataOutput.writeInt(0); // Writing the operation we want to use.
-        dataOutput.writeUTF(username); // Writing the username.
-        dataOutput.writeUTF(user.getPasswordHash()); // Writing the password hash.
-
-        // Converting the ByteArrayOutputStream into a primitive byte[].
-        byte[] data = dataStream.toByteArray();
+        // Waiting for a response from the server.
+        return booleanReply(demultiplexer.receiveReply(requestId));
+    }
 
-        connection.send(ManagerTag.AUTHENTICATION.tag, data); // Sending the message to the server.
+    /**
+     * Asynchronous variant of {@link #registerUser(String, String)}, see {@link AsyncCall}.
+     */
+    public CompletableFuture<Boolean> registerUserAsync(String username, String password) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.AUTHENTICATION.tag,
+                () -> registerUserRequest(username, password), AuthenticationManagerStub::booleanReply);
+    }
 
-        // Waiting for a response from the server.
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
+    private static byte[] registerUserRequest(String username, String password) throws IOException {
 
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
+        // Creating the user object and hashing the password to be stored.
+        User user = new User(username);
+        user.setPassword(password);
 
-        return response.readBoolean();
+        // Since the tagged connection takes a byte[] a parameter, the message is encoded into one.
+        return Codec.toBytes(new AuthenticationMessages.RegisterUser(username, user.getPasswordHash()));
     }
 
     /**
@@ -74,52 +73,54 @@ public class AuthenticationManagerStub implements IAuthenticationManager {
     @Override
     public boolean loginUser(String username, String password) throws IOException, InterruptedException {
 
-        // Since the tagged connection takes a byte[] a parameter, we write to a stream
-        // and then convert it into the byte[].
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(1); // Writing the operation we want to use.
-        dataOutput.writeUTF(username); // Writing the username.
-        dataOutput.writeUTF(password); // Writing the password hash.
-
-        // Converting the ByteArrayOutputStream into a primitive byte[].
-        byte[] data = dataStream.toByteArray();
-
-        connection.send(ManagerTag.AUTHENTICATION.tag, data); // Sending the message to the server.
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.AUTHENTICATION.tag, requestId, loginUserRequest(username, password)); // Sending the message to the server.
 
         // Waiting for a response from the server.
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
+        return booleanReply(demultiplexer.receiveReply(requestId));
+    }
+
+    /**
+     * Asynchronous variant of {@link #loginUser(String, String)}, see {@link AsyncCall}.
+     */
+    public CompletableFuture<Boolean> loginUserAsync(String username, String password) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.AUTHENTICATION.tag,
+                () -> loginUserRequest(username, password), AuthenticationManagerStub::booleanReply);
+    }
 
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
+    private static byte[] loginUserRequest(String username, String password) throws IOException {
 
-        return response.readBoolean();
+        // Since the tagged connection takes a byte[] a parameter, the message is encoded into one.
+        return Codec.toBytes(new AuthenticationMessages.LoginUser(username, password));
     }
 
     @Override
     public boolean logoutUser(String username) throws IOException, InterruptedException {
 
-        // Since the tagged connection takes a byte[] a parameter, we write to a stream
-        // and then convert it into the byte[].
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.AUTHENTICATION.tag, requestId, logoutUserRequest(username)); // Sending the message to the server.
 
-        dataOutput.writeInt(2); // Writing the operation we want to use.
-        dataOutput.writeUTF(username); // Writing the username.
+        // Waiting for a response from the server.
+        return booleanReply(demultiplexer.receiveReply(requestId));
+    }
 
-        // Converting the ByteArrayOutputStream into a primitive byte[].
-        connection.send(ManagerTag.AUTHENTICATION.tag, dataStream.toByteArray()); // Sending the message to the server.
+    /**
+     * Asynchronous variant of {@link #logoutUser(String)}, see {@link AsyncCall}.
+     */
+    public CompletableFuture<Boolean> logoutUserAsync(String username) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.AUTHENTICATION.tag,
+                () -> logoutUserRequest(username), AuthenticationManagerStub::booleanReply);
+    }
 
-        // Waiting for a response from the server.
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
+    private static byte[] logoutUserRequest(String username) throws IOException {
+
+        // Since the tagged connection takes a byte[] a parameter, the message is encoded into one.
+        return Codec.toBytes(new AuthenticationMessages.LogoutUser(username));
+    }
 
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
+    private static boolean booleanReply(byte[] receivedData) throws IOException {
 
-        return response.readBoolean();
+        return Codec.input(receivedData).readBoolean();
     }
 
 }
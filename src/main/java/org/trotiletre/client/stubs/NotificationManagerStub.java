@@ -1,14 +1,16 @@
 package org.trotiletre.client.stubs;
 
-import org.trotiletre.common.AnswerTag;
 import org.trotiletre.common.INotificationManager;
 import org.trotiletre.common.ManagerTag;
 import org.trotiletre.common.NotificationOperations;
+import org.trotiletre.common.communication.Codec;
 import org.trotiletre.common.communication.Demultiplexer;
+import org.trotiletre.common.communication.NotificationMessages;
 import org.trotiletre.common.communication.TaggedConnection;
 import org.trotiletre.models.utils.Location;
 
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
 
 public class NotificationManagerStub implements INotificationManager {
     private final TaggedConnection connection;
@@ -20,55 +22,58 @@ public class NotificationManagerStub implements INotificationManager {
     }
 
     public boolean register(String user) throws IOException, InterruptedException {
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-
-        dataOutput.writeInt(NotificationOperations.REGISTER.operationTag);
-        dataOutput.writeUTF(user);
-        connection.send(ManagerTag.NOTIFICATION.tag, dataStream.toByteArray());
+        return call(userRequest(NotificationOperations.REGISTER, user));
+    }
 
-        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(demultiplexer.receive(AnswerTag.ANSWER.tag)));
-        return dataInput.readBoolean();
+    public CompletableFuture<Boolean> registerAsync(String user) {
+        return callAsync(() -> userRequest(NotificationOperations.REGISTER, user));
     }
 
     public boolean isRegistered(String user) throws IOException, InterruptedException {
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(NotificationOperations.IS_REGISTERED.operationTag);
-        dataOutput.writeUTF(user);
-        connection.send(ManagerTag.NOTIFICATION.tag, dataStream.toByteArray());
+        return call(userRequest(NotificationOperations.IS_REGISTERED, user));
+    }
 
-        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(demultiplexer.receive(AnswerTag.ANSWER.tag)));
-        return dataInput.readBoolean();
+    public CompletableFuture<Boolean> isRegisteredAsync(String user) {
+        return callAsync(() -> userRequest(NotificationOperations.IS_REGISTERED, user));
     }
 
     public boolean addLocation(String user, Location location, int radius) throws IOException, InterruptedException {
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
+        return call(addLocationRequest(user, location, radius));
+    }
 
-        dataOutput.writeInt(NotificationOperations.ADD_LOCATION.operationTag);
-        dataOutput.writeUTF(user);
-        dataOutput.writeInt(location.x());
-        dataOutput.writeInt(location.y());
-        dataOutput.writeInt(radius);
+    public CompletableFuture<Boolean> addLocationAsync(String user, Location location, int radius) {
+        return callAsync(() -> addLocationRequest(user, location, radius));
+    }
 
-        connection.send(ManagerTag.NOTIFICATION.tag, dataStream.toByteArray());
+    public boolean remove(String user) throws IOException, InterruptedException {
+        return call(userRequest(NotificationOperations.REMOVE, user));
+    }
 
-        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(demultiplexer.receive(AnswerTag.ANSWER.tag)));
-        return dataInput.readBoolean();
+    public CompletableFuture<Boolean> removeAsync(String user) {
+        return callAsync(() -> userRequest(NotificationOperations.REMOVE, user));
     }
 
-    public boolean remove(String user) throws IOException, InterruptedException {
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
+    private static byte[] userRequest(NotificationOperations operation, String user) throws IOException {
+        return Codec.toBytes(new NotificationMessages.UserRequest(operation, user));
+    }
+
+    private static byte[] addLocationRequest(String user, Location location, int radius) throws IOException {
+        return Codec.toBytes(new NotificationMessages.AddLocation(user, location, radius));
+    }
 
-        dataOutput.writeInt(NotificationOperations.REMOVE.operationTag);
-        dataOutput.writeUTF(user);
-        connection.send(ManagerTag.NOTIFICATION.tag, dataStream.toByteArray());
+    private boolean call(byte[] data) throws IOException, InterruptedException {
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.NOTIFICATION.tag, requestId, data);
+
+        return booleanReply(demultiplexer.receiveReply(requestId));
+    }
+
+    private CompletableFuture<Boolean> callAsync(AsyncCall.Request request) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.NOTIFICATION.tag, request,
+                NotificationManagerStub::booleanReply);
+    }
 
-        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(demultiplexer.receive(AnswerTag.ANSWER.tag)));
-        return dataInput.readBoolean();
+    private static boolean booleanReply(byte[] receivedData) throws IOException {
+        return Codec.input(receivedData).readBoolean();
     }
 }
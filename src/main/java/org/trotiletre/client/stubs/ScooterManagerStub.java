@@ -1,19 +1,24 @@
 package org.trotiletre.client.stubs;
 
 import org.jetbrains.annotations.NotNull;
-import org.trotiletre.common.AnswerTag;
 import org.trotiletre.common.IScooterManager;
 import org.trotiletre.common.ManagerTag;
+import org.trotiletre.common.communication.Codec;
 import org.trotiletre.common.communication.Demultiplexer;
+import org.trotiletre.common.communication.ScooterMessages;
 import org.trotiletre.common.communication.TaggedConnection;
 import org.trotiletre.models.utils.GenericPair;
 import org.trotiletre.models.utils.Location;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A stub implementation of the {@link IScooterManager} interface.
+ * <p>
+ * Each operation also has an asynchronous variant, returning a {@link CompletableFuture} of its result instead of
+ * waiting for it, see {@link AsyncCall}.
  */
 public class ScooterManagerStub implements IScooterManager {
 
@@ -30,73 +35,126 @@ public class ScooterManagerStub implements IScooterManager {
         this.demultiplexer = demultiplexer;
     }
 
+    /**
+     * Lists the free scooters with the binary listing, see {@link #listFreeScooterLocations(int, Location, boolean)},
+     * formatted as the text of the original listing.
+     */
     @Override
     public @NotNull String listFreeScooters(int range, @NotNull Location lookupPosition) throws IOException, InterruptedException {
+        return listFreeScooterLocations(range, lookupPosition, true).toString();
+    }
+
+    /**
+     * Asynchronous variant of {@link #listFreeScooters(int, Location)}.
+     */
+    public CompletableFuture<String> listFreeScootersAsync(int range, @NotNull Location lookupPosition) {
+        return listFreeScooterLocationsAsync(range, lookupPosition, true).thenApply(ScooterMessages.FreeScooters::toString);
+    }
+
+    /**
+     * Lists the free scooters within the range of a position, as their locations relative to the position, which
+     * is a few bytes per scooter, or per cell with free scooters if {@code perCell}.
+     *
+     * @param range          The maximum range to search for free scooters.
+     * @param lookupPosition The position to use as the center of the search.
+     * @param perCell        Whether the server sends each cell once, with its number of free scooters.
+     * @return The listing, per cell either way.
+     */
+    public ScooterMessages.FreeScooters listFreeScooterLocations(int range, @NotNull Location lookupPosition, boolean perCell) throws IOException, InterruptedException {
+
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, listFreeScooterLocationsRequest(range, lookupPosition, perCell)); // Sending the message to the server.
+
+        return ScooterMessages.FreeScooters.decode(Codec.input(demultiplexer.receiveReply(requestId)), lookupPosition);
+    }
+
+    /**
+     * Asynchronous variant of {@link #listFreeScooterLocations(int, Location, boolean)}.
+     */
+    public CompletableFuture<ScooterMessages.FreeScooters> listFreeScooterLocationsAsync(int range, @NotNull Location lookupPosition, boolean perCell) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> listFreeScooterLocationsRequest(range, lookupPosition, perCell),
+                receivedData -> ScooterMessages.FreeScooters.decode(Codec.input(receivedData), lookupPosition));
+    }
+
+    private static byte[] listFreeScooterLocationsRequest(int range, Location lookupPosition, boolean perCell) throws IOException {
 
         /*
-         * This section handles the requests for listing the free scooters.
+         * This section handles the requests for listing the free scooters in binary.
          * The message we are expecting to receive will have:
-         *  + x coordinate of the user's position: Integer.
-         *  + y coordinate of the user's position: Integer.
-         *  + The range of the search for scooters: Integer.
+         *  + The user's position: Location.
+         *  + The range of the search for scooters: Varint.
+         *  + Whether to list each cell once, with its number of free scooters: Boolean.
          */
+        return Codec.toBytes(new ScooterMessages.ListFreeScooterLocations(lookupPosition, range, perCell));
+    }
 
-        // Creating our own byte stream, so we can send it via tagged connection.
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(0); // Writing the operation we want to use.
-
-        dataOutput.writeInt(lookupPosition.x()); // Writing the x inital position.
-        dataOutput.writeInt(lookupPosition.y()); // Writing the y inital position.
-        dataOutput.writeInt(range); // Writing the range of search.
+    /**
+     * Lists a page of the free scooters within the range of a position, ring by ring of increasing distance, for
+     * listings too large for a single reply. The first page is asked with {@link ScooterMessages#CURSOR_START},
+     * and the next ones with the cursor of the previous page, until it is {@link ScooterMessages#CURSOR_END}.
+     *
+     * @param range          The maximum range to search for free scooters.
+     * @param lookupPosition The position to use as the center of the search.
+     * @param perCell        Whether the server sends each cell once, with its number of free scooters.
+     * @param cursor         The cursor of the page.
+     * @param pageSize       The maximum number of entries of the page.
+     * @return The page, per cell either way, and the cursor of the next one.
+     */
+    public ScooterMessages.FreeScootersPage listFreeScootersPage(int range, @NotNull Location lookupPosition, boolean perCell,
+                                                                 long cursor, int pageSize) throws IOException, InterruptedException {
 
-        // Converting the ByteArrayOutputStream into a primitive byte[].
-        byte[] data = dataStream.toByteArray();
-        connection.send(ManagerTag.SCOOTER.tag, data); // Sending the message to the server.
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, Codec.toBytes(
+                new ScooterMessages.ListFreeScootersPage(lookupPosition, range, perCell, cursor, pageSize))); // Sending the message to the server.
 
-        // The response is a byte encoded string with all the locations. This means we just need to convert it back.
-        // TaggedConnection.Frame frame = connection.receive();
-        //return new String(frame.data, StandardCharsets.UTF_8); // Return the converted string from the bytes received.
+        return ScooterMessages.FreeScootersPage.decode(Codec.input(demultiplexer.receiveReply(requestId)), lookupPosition);
+    }
 
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
-        return new String(receivedData, StandardCharsets.UTF_8);
+    /**
+     * Asynchronous variant of {@link #listFreeScootersPage(int, Location, boolean, int, int)}.
+     */
+    public CompletableFuture<ScooterMessages.FreeScootersPage> listFreeScootersPageAsync(int range, @NotNull Location lookupPosition,
+                                                                                         boolean perCell, long cursor, int pageSize) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> Codec.toBytes(new ScooterMessages.ListFreeScootersPage(lookupPosition, range, perCell, cursor, pageSize)),
+                receivedData -> ScooterMessages.FreeScootersPage.decode(Codec.input(receivedData), lookupPosition));
     }
 
     @Override
     public GenericPair<String, Location> reserveScooter(int range, @NotNull Location local, String username) throws IOException, InterruptedException {
 
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, reserveScooterRequest(range, local, username)); // Sending the message to the server.
+
+        return reserveScooterReply(demultiplexer.receiveReply(requestId));
+    }
+
+    /**
+     * Asynchronous variant of {@link #reserveScooter(int, Location, String)}.
+     */
+    public CompletableFuture<GenericPair<String, Location>> reserveScooterAsync(int range, @NotNull Location local, String username) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> reserveScooterRequest(range, local, username), ScooterManagerStub::reserveScooterReply);
+    }
+
+    private static byte[] reserveScooterRequest(int range, Location local, String username) throws IOException {
+
         /*
          * This section handles the requests for renting a free scooters.
          * The message we are expecting to receive will have:
-         *  + The range of the search for scooters: Integer.
-         *  + x coordinate of the user's position: Integer.
-         *  + y coordinate of the user's position: Integer.
+         *  + The range of the search for scooters: Varint.
+         *  + The user's position: Location.
          *  + The user's username, used to check whether he is authenticated.
          *
          *  This operation requires authentication.
          */
+        return Codec.toBytes(new ScooterMessages.ReserveScooter(range, local, username));
+    }
 
-        // Creating our own byte stream, so we can send it via tagged connection.
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(1); // Writing the operation we want to use.
-
-        dataOutput.writeInt(range); // Writing the range of search.
-        dataOutput.writeInt(local.x()); // Writing the x inital position.
-        dataOutput.writeInt(local.y()); // Writing the y inital position.
-        dataOutput.writeUTF(username); // Writing the username for authentication.
-
-        connection.send(ManagerTag.SCOOTER.tag, dataStream.toByteArray()); // Sending the message to the server.
-
-        // Receiving the response from the server as a frame.
-        // TaggedConnection.Frame frame = connection.receive();
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
+    private static GenericPair<String, Location> reserveScooterReply(byte[] receivedData) throws IOException {
 
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
+        ScooterMessages.Reservation response = ScooterMessages.Reservation.decode(Codec.input(receivedData));
 
         /*
          * The response code determines the output of the request made.
@@ -105,56 +163,58 @@ public class ScooterManagerStub implements IScooterManager {
          *   1 - There are no scooters available;
          *   2 - User is not logged in.
          */
-        int responseCode = response.readInt();
-
-        if (responseCode == 1) return new GenericPair<>("There were no scooters found in the area.", null);
+        return switch (response.status()) {
+            case ScooterMessages.Reservation.NO_SCOOTERS ->
+                    new GenericPair<>("There were no scooters found in the area.", null);
+            case ScooterMessages.Reservation.NOT_LOGGED_IN ->
+                    new GenericPair<>("You need to log in before renting a scooter!", null);
+            default -> new GenericPair<>(response.code().toString(), response.location());
+        };
+    }
 
-        else if (responseCode == 2) return new GenericPair<>("You need to log in before renting a scooter!", null);
+    @Override
+    public GenericPair<Double, Double> parkScooter(String reservationCode, Location newScooterLocation, String username) throws IOException, InterruptedException {
 
-        else {
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, parkScooterRequest(reservationCode, newScooterLocation, username)); // Sending the message to the server.
 
-            String reservationCode = response.readUTF();
-            int locationX = response.readInt();
-            int locationY = response.readInt();
+        return parkScooterReply(demultiplexer.receiveReply(requestId));
+    }
 
-            return new GenericPair<>(reservationCode, new Location(locationX, locationY));
-        }
+    /**
+     * Asynchronous variant of {@link #parkScooter(String, Location, String)}.
+     */
+    public CompletableFuture<GenericPair<Double, Double>> parkScooterAsync(String reservationCode, Location newScooterLocation, String username) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> parkScooterRequest(reservationCode, newScooterLocation, username), ScooterManagerStub::parkScooterReply);
     }
 
-    @Override
-    public GenericPair<Double, Double> parkScooter(String reservationCode, Location newScooterLocation, String username) throws IOException, InterruptedException {
+    private static byte[] parkScooterRequest(String reservationCode, Location newScooterLocation, String username) throws IOException {
 
         /*
          * This section handles the requests for parking a scooter.
          * The message we are expecting to receive will have:
-         *  + The reservation identification of the scooter: UTF.
-         *  + x coordinate of the new position: Integer.
-         *  + y coordinate of the new position: Integer.
+         *  + The reservation identification of the scooter: UUID.
+         *  + The new position: Location.
          *  + The user's username, used to check whether he is authenticated.
          *
          *  This operation requires authentication.
          */
 
-        // Creating our own byte stream, so we can send it via tagged connection.
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(2); // Writing the operation we want to use.
-
-        dataOutput.writeUTF(reservationCode); // Writing the range of search.
-        dataOutput.writeInt(newScooterLocation.x()); // Writing the x of the new position.
-        dataOutput.writeInt(newScooterLocation.y()); // Writing the y of the new position.
-        dataOutput.writeUTF(username); // Writing the username for authentication.
+        // A code that is not even a UUID is sent as the nil UUID, which the server replies to as not valid.
+        UUID code;
+        try {
+            code = UUID.fromString(reservationCode);
+        } catch (IllegalArgumentException e) {
+            code = new UUID(0, 0);
+        }
 
-        connection.send(ManagerTag.SCOOTER.tag, dataStream.toByteArray()); // Sending the message to the server.
+        return Codec.toBytes(new ScooterMessages.ParkScooter(code, newScooterLocation, username));
+    }
 
-        // Receiving the response from the server as a frame.
-        // TaggedConnection.Frame frame = connection.receive();
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
+    private static GenericPair<Double, Double> parkScooterReply(byte[] receivedData) throws IOException {
 
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
+        ScooterMessages.Parking response = ScooterMessages.Parking.decode(Codec.input(receivedData));
 
         /*
          * The response code can be:
@@ -163,59 +223,75 @@ public class ScooterManagerStub implements IScooterManager {
          *   2 - User is not logged in.
          *   3 - Packet includes a bounty price.
          */
-        int responseCode = response.readInt();
+        return switch (response.status()) {
+            case ScooterMessages.Parking.INVALID_CODE -> new GenericPair<>(-1d, null);
+            case ScooterMessages.Parking.NOT_LOGGED_IN -> new GenericPair<>(-2d, null);
+            default -> new GenericPair<>(response.price(), response.reward());
+        };
+    }
 
-        if (responseCode == 1) return new GenericPair<>(-1d, null);
+    public String listRewards(Location local, int range) throws IOException, InterruptedException {
 
-        else if (responseCode == 2) return new GenericPair<>(-2d, null);
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, listRewardsRequest(local, range)); // Sending the message to the server.
 
-        else {
+        return listRewardsReply(demultiplexer.receiveReply(requestId));
+    }
 
-            double priceToPay = response.readDouble();
-            Double bounty = null;
+    /**
+     * Asynchronous variant of {@link #listRewards(Location, int)}.
+     */
+    public CompletableFuture<String> listRewardsAsync(Location local, int range) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> listRewardsRequest(local, range), ScooterManagerStub::listRewardsReply);
+    }
 
-            if (responseCode == 3) bounty = response.readDouble();
-            return new GenericPair<>(priceToPay, bounty);
-        }
+    /**
+     * Lists a page of the rewards starting at a position, by increasing length. The first page is asked with
+     * {@link ScooterMessages#CURSOR_START}, and the next ones with the cursor of the previous page, until it is
+     * {@link ScooterMessages#CURSOR_END}.
+     *
+     * @param local    The start of the rewards.
+     * @param range    The maximum length of the rewards.
+     * @param cursor   The cursor of the page.
+     * @param pageSize The maximum number of rewards of the page.
+     * @return The page and the cursor of the next one.
+     */
+    public ScooterMessages.RewardsPage listRewardsPage(Location local, int range, long cursor, int pageSize) throws IOException, InterruptedException {
+
+        int requestId = demultiplexer.newRequestId();
+        connection.send(ManagerTag.SCOOTER.tag, requestId, Codec.toBytes(
+                new ScooterMessages.ListRewardsPage(local, range, cursor, pageSize))); // Sending the message to the server.
+
+        return ScooterMessages.RewardsPage.decode(Codec.input(demultiplexer.receiveReply(requestId)));
     }
 
-    public String listRewards(Location local, int range) throws IOException, InterruptedException {
+    /**
+     * Asynchronous variant of {@link #listRewardsPage(Location, int, int, int)}.
+     */
+    public CompletableFuture<ScooterMessages.RewardsPage> listRewardsPageAsync(Location local, int range, long cursor, int pageSize) {
+        return AsyncCall.send(connection, demultiplexer, ManagerTag.SCOOTER.tag,
+                () -> Codec.toBytes(new ScooterMessages.ListRewardsPage(local, range, cursor, pageSize)),
+                receivedData -> ScooterMessages.RewardsPage.decode(Codec.input(receivedData)));
+    }
 
+    private static byte[] listRewardsRequest(Location local, int range) throws IOException {
 
         /*
          * This section handles the requests for listing rewards.
          * The message we are expecting to receive will have:
-         *  + x coordinate of the new position: Integer.
-         *  + y coordinate of the new position: Integer.
+         *  + The user's position: Location.
          *  + range of the search.
          */
+        return Codec.toBytes(new ScooterMessages.ListRewards(local, range));
+    }
 
-        // Creating our own byte stream, so we can send it via tagged connection.
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(dataStream);
-
-        dataOutput.writeInt(3); // Writing the operation we want to use.
-
-        dataOutput.writeInt(local.x()); // Writing the x of the new position.
-        dataOutput.writeInt(local.y()); // Writing the y of the new position.
-        dataOutput.writeInt(range); // Writing the username for authentication.
-
-        connection.send(ManagerTag.SCOOTER.tag, dataStream.toByteArray()); // Sending the message to the server.
-
-        // Receiving the response from the server as a frame.
-        // TaggedConnection.Frame frame = connection.receive();
-        byte[] receivedData = demultiplexer.receive(AnswerTag.ANSWER.tag);
-
-        // Unwrapping the bytes received in data into a stream of bytes.
-        ByteArrayInputStream responseStream = new ByteArrayInputStream(receivedData);
-        DataInput response = new DataInputStream(responseStream);
-
-        int length = response.readInt();
+    private static String listRewardsReply(byte[] receivedData) throws IOException {
 
         StringBuilder rewards = new StringBuilder();
 
-        for (int i = 0; i < length; i++) {
-            rewards.append(response.readUTF()).append("\n");
+        for (ScooterMessages.Reward reward : ScooterMessages.Rewards.decode(Codec.input(receivedData)).rewards()) {
+            rewards.append(reward).append("\n");
         }
 
         return rewards.toString();
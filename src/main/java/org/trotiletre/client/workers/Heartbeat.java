@@ -0,0 +1,47 @@
+package org.trotiletre.client.workers;
+
+import org.trotiletre.common.ManagerTag;
+import org.trotiletre.common.communication.TaggedConnection;
+
+import java.io.IOException;
+
+/**
+ * A class that sends heartbeat frames to the server, so it does not close the connection while the user is idle.
+ */
+public class Heartbeat implements Runnable {
+
+    public static final long DEFAULT_INTERVAL = 15_000; // Time between heartbeats, well within the server's timeout.
+
+    private final TaggedConnection connection; // The connection to the server.
+    private final long interval; // Time between heartbeats, in milliseconds.
+
+    /**
+     * Constructs a new {@code Heartbeat} object.
+     *
+     * @param connection The connection to the server.
+     * @param interval   The time between heartbeats, in milliseconds.
+     */
+    public Heartbeat(TaggedConnection connection, long interval) {
+        this.connection = connection;
+        this.interval = interval;
+    }
+
+    /**
+     * Sends the heartbeats, until the connection fails.
+     */
+    @Override
+    public void run() {
+
+        byte[] empty = new byte[0];
+
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                connection.send(ManagerTag.HEARTBEAT.tag, empty);
+            }
+
+        } catch (IOException | InterruptedException e) {
+            // The connection is gone, or the client is shutting down, there is nothing left to keep alive.
+        }
+    }
+}
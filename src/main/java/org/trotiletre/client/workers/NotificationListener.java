@@ -1,12 +1,14 @@
 package org.trotiletre.client.workers;
 
 import org.trotiletre.common.AnswerTag;
+import org.trotiletre.common.communication.Codec;
 import org.trotiletre.common.communication.Demultiplexer;
+import org.trotiletre.common.communication.ScooterMessages;
+import org.trotiletre.models.utils.Location;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * A class that listens for notification messages and prints them to the console.
@@ -14,6 +16,8 @@ import java.io.IOException;
 public class NotificationListener implements Runnable {
 
     private final Demultiplexer demultiplexer; // A Demultiplexer object used to receive notification messages.
+    private final Set<ScooterMessages.Reward> rewards = new HashSet<>(); // The rewards known to be available.
+    private int version = 0; // The number of the last notification applied, 0 if none yet.
 
     /**
      * Constructs a new {@code NotificationListener} object.
@@ -38,17 +42,28 @@ public class NotificationListener implements Runnable {
                 // Receiving the notification data from the queue on the demultiplexer.
                 byte[] notificationData = demultiplexer.receive(AnswerTag.NOTIFICATION.tag);
 
-                DataInput dataInput = new DataInputStream(new ByteArrayInputStream(notificationData));
-                int numPaths = dataInput.readInt();
+                ScooterMessages.RewardsUpdate update = ScooterMessages.RewardsUpdate.decode(Codec.input(notificationData));
 
-                for (int i = 0; i < numPaths; ++i) {
-                    int x = dataInput.readInt();
-                    int y = dataInput.readInt();
-                    int fx = dataInput.readInt();
-                    int fy = dataInput.readInt();
-                    double reward = dataInput.readDouble();
+                if (update.kind() == ScooterMessages.RewardsUpdate.SNAPSHOT) {
+                    // A snapshot replaces the rewards known, whatever was missed before it.
+                    rewards.clear();
+                    rewards.addAll(update.added());
+                    version = update.version();
 
-                    System.out.println("\ntrotiletre.notif> Found reward: Start: (" + x + "," + y + ") End: (" + fx + "," + fy + ") Reward: " + reward + "€");
+                    for (ScooterMessages.Reward reward : update.added())
+                        printReward("Found reward", reward);
+                } else if (update.version() == version + 1) {
+                    rewards.removeAll(update.removed());
+                    rewards.addAll(update.added());
+                    version = update.version();
+
+                    for (ScooterMessages.Reward reward : update.added())
+                        printReward("Found reward", reward);
+                    for (ScooterMessages.Reward reward : update.removed())
+                        printReward("Reward no longer available", reward);
+                } else {
+                    // A notification was missed, so this one can't be applied: the server follows with a snapshot.
+                    continue;
                 }
                 System.out.print("trotiletre>");
 
@@ -58,4 +73,17 @@ public class NotificationListener implements Runnable {
             }
         }
     }
+
+    /**
+     * Prints a reward to the console.
+     *
+     * @param message what happened to the reward
+     * @param reward  the reward
+     */
+    private static void printReward(String message, ScooterMessages.Reward reward) {
+        Location start = reward.start();
+        Location finish = reward.finish();
+
+        System.out.println("\ntrotiletre.notif> " + message + ": Start: (" + start.x() + "," + start.y() + ") End: (" + finish.x() + "," + finish.y() + ") Reward: " + reward.reward() + "€");
+    }
 }
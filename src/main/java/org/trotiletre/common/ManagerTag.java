@@ -1,7 +1,8 @@
 package org.trotiletre.common;
 
 public enum ManagerTag {
-    SCOOTER(0), AUTHENTICATION(1), NOTIFICATION(2);
+    SCOOTER(0), AUTHENTICATION(1), NOTIFICATION(2),
+    HEARTBEAT(3); // Keeps an idle connection open, carries no request.
     public final int tag;
 
     ManagerTag(int tag) {
@@ -13,6 +14,7 @@ public enum ManagerTag {
             case 0 -> SCOOTER;
             case 1 -> AUTHENTICATION;
             case 2 -> NOTIFICATION;
+            case 3 -> HEARTBEAT;
             default -> throw new IllegalStateException("Unexpected value: " + i);
         };
     }
@@ -0,0 +1,79 @@
+package org.trotiletre.common.communication;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The requests of the authentication manager service, all replied with a single boolean.
+ */
+public final class AuthenticationMessages {
+
+    private AuthenticationMessages() {
+    }
+
+    /**
+     * Registers a new user, with the hash of their password.
+     */
+    public record RegisterUser(String username, String passwordHash) implements Message {
+
+        public static final int OPERATION = 0;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeString(output, username);
+            Codec.writeString(output, passwordHash);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static RegisterUser decode(DataInput input) throws IOException {
+            return new RegisterUser(Codec.readString(input), Codec.readString(input));
+        }
+    }
+
+    /**
+     * Logs in a user.
+     */
+    public record LoginUser(String username, String password) implements Message {
+
+        public static final int OPERATION = 1;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeString(output, username);
+            Codec.writeString(output, password);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static LoginUser decode(DataInput input) throws IOException {
+            return new LoginUser(Codec.readString(input), Codec.readString(input));
+        }
+    }
+
+    /**
+     * Logs out a user.
+     */
+    public record LogoutUser(String username) implements Message {
+
+        public static final int OPERATION = 2;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeString(output, username);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static LogoutUser decode(DataInput input) throws IOException {
+            return new LogoutUser(Codec.readString(input));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.trotiletre.common.communication;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataInput} reading straight from a {@link ByteBuffer}, from its position up to its limit.
+ * <p>
+ * It decodes the same encoding as a {@link DataInputStream}, without copying the buffer into a stream first.
+ */
+public class BufferInput implements DataInput {
+
+    private final ByteBuffer buffer; // The buffer being read.
+
+    /**
+     * Constructs an input reading the given buffer, advancing its position.
+     *
+     * @param buffer The buffer to read.
+     */
+    public BufferInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    private ByteBuffer need(int bytes) throws EOFException {
+        if (buffer.remaining() < bytes) throw new EOFException();
+        return buffer;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        need(len).get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return need(1).get() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return need(1).get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return need(1).get() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return need(2).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return need(2).getShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return need(2).getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return need(4).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return need(8).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return need(4).getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return need(8).getDouble();
+    }
+
+    /**
+     * Not supported, the frames carry no text lines.
+     */
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
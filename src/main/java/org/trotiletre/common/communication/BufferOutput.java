@@ -0,0 +1,155 @@
+package org.trotiletre.common.communication;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataOutput} writing into a buffer leased from a {@link BufferPool}.
+ * <p>
+ * It writes the same encoding as a {@link DataOutputStream}. When the buffer is full, the data moves to a larger
+ * one and the smaller one goes back to the pool. Once written, the data is taken with {@link #finish()}, whose
+ * buffer then belongs to the caller.
+ */
+public class BufferOutput implements DataOutput {
+
+    private final BufferPool pool; // Pool of the buffers.
+    private ByteBuffer buffer; // Buffer being written.
+
+    /**
+     * Constructs an output leasing its buffer from the given pool.
+     *
+     * @param pool The pool of the buffers.
+     */
+    public BufferOutput(BufferPool pool) {
+        this.pool = pool;
+        this.buffer = pool.acquire(BufferPool.MIN_SIZE);
+        this.buffer.limit(buffer.capacity());
+    }
+
+    /**
+     * Returns the written data, ready to be read or sent. The output must not be used afterwards.
+     *
+     * @return The buffer, from position 0 to the end of the data, to be released by the caller.
+     */
+    public ByteBuffer finish() {
+        ByteBuffer data = buffer.flip();
+        buffer = null;
+        return data;
+    }
+
+    private ByteBuffer room(int bytes) {
+
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = pool.acquire(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+            larger.limit(larger.capacity());
+            larger.put(buffer.flip());
+
+            pool.release(buffer);
+            buffer = larger;
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        room(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        room(len).put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        room(1).put((byte) (v ? 1 : 0));
+    }
+
+    @Override
+    public void writeByte(int v) {
+        room(1).put((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        room(2).putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        room(2).putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        room(4).putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        room(8).putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        room(4).putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        room(8).putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        ByteBuffer target = room(s.length());
+        for (int i = 0; i < s.length(); i++) target.put((byte) s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s) {
+        ByteBuffer target = room(2 * s.length());
+        for (int i = 0; i < s.length(); i++) target.putChar(s.charAt(i));
+    }
+
+    /**
+     * Writes a string in modified UTF-8, preceded by its encoded length, as {@link DataOutputStream#writeUTF}.
+     */
+    @Override
+    public void writeUTF(String s) throws UTFDataFormatException {
+
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+
+        if (length > 0xFFFF) throw new UTFDataFormatException("Encoded string too long: " + length + " bytes.");
+
+        ByteBuffer target = room(2 + length);
+        target.putShort((short) length);
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007F) {
+                target.put((byte) c);
+            } else if (c <= 0x07FF) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.trotiletre.common.communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s, so frames can be read and written without allocating their data.
+ * <p>
+ * The buffers come in size classes, powers of two from {@value #MIN_SIZE} bytes up to {@value #MAX_SIZE} bytes,
+ * and a request is served by the smallest class that fits it. Larger buffers are allocated and dropped as usual.
+ * Each class keeps at most a fixed number of free buffers, the extra ones are left to the garbage collector.
+ * <p>
+ * A leased buffer belongs to whoever holds it until it is {@linkplain #release released}, and must not be used
+ * afterwards. Releasing a buffer that was not leased from a pool is harmless, as long as nothing else uses it.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 1 << 6; // Capacity of the smallest class.
+    public static final int MAX_SIZE = 1 << 20; // Capacity of the largest class.
+
+    private static final int MIN_CLASS = Integer.numberOfTrailingZeros(MIN_SIZE); // Log2 of the smallest class.
+    private static final BufferPool SHARED = new BufferPool(256); // Pool of the server's frames.
+
+    private final List<Queue<ByteBuffer>> free; // Free buffers of each class.
+    private final AtomicInteger[] freeCount; // Number of free buffers of each class.
+    private final int maxFree; // Maximum number of free buffers kept in each class.
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxFree The maximum number of free buffers kept in each size class.
+     */
+    public BufferPool(int maxFree) {
+
+        int classes = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_CLASS + 1;
+
+        this.free = new ArrayList<>(classes);
+        this.freeCount = new AtomicInteger[classes];
+        this.maxFree = maxFree;
+
+        for (int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the pool shared by the transports and skeletons of the server.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Leases a buffer of at least the given size.
+     *
+     * @param size The number of bytes needed.
+     * @return A buffer at position 0, with its limit at {@code size}.
+     */
+    public ByteBuffer acquire(int size) {
+
+        if (size > MAX_SIZE) return ByteBuffer.allocate(size);
+
+        int sizeClass = classOf(size);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+
+        if (buffer == null) buffer = ByteBuffer.allocate(1 << (sizeClass + MIN_CLASS));
+        else freeCount[sizeClass].decrementAndGet();
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a leased buffer back to the pool.
+     *
+     * @param buffer The buffer, not to be used anymore by the caller.
+     */
+    public void release(ByteBuffer buffer) {
+
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() || buffer.isReadOnly() || capacity < MIN_SIZE || capacity > MAX_SIZE
+                || Integer.bitCount(capacity) != 1 || buffer.arrayOffset() != 0)
+            return;
+
+        int sizeClass = classOf(capacity);
+
+        if (freeCount[sizeClass].incrementAndGet() > maxFree) {
+            freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+
+        free.get(sizeClass).offer(buffer);
+    }
+
+    private static int classOf(int size) {
+        int log = 32 - Integer.numberOfLeadingZeros(Math.max(size, MIN_SIZE) - 1);
+        return log - MIN_CLASS;
+    }
+}
@@ -0,0 +1,288 @@
+package org.trotiletre.common.communication;
+
+import org.trotiletre.models.utils.Location;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The compact encoding of the fields of the requests and replies of the services.
+ * <p>
+ * Most of the numbers sent are small, such as coordinates, ranges, operations and response codes, so they are
+ * written as varints: seven bits per byte, the high bit set on every byte but the last, which takes a single byte
+ * below 128 instead of the four of {@link DataOutput#writeInt(int)}. Numbers that can be negative, such as
+ * coordinates, are zig-zag encoded first, so that small negative numbers stay short as well. Strings are their
+ * UTF-8 bytes after a varint length, and UUIDs their 16 bytes instead of their 36 characters.
+ * <p>
+ * The methods work on any {@link DataInput} or {@link DataOutput}, the pooled buffers of the server as well as the
+ * byte streams of the clients.
+ */
+public final class Codec {
+
+    public static final int MAX_STRING_LENGTH = 65535; // Maximum number of bytes of a string, as with writeUTF.
+
+    private Codec() {
+    }
+
+    /**
+     * Writes an int as an unsigned varint, of one to five bytes.
+     *
+     * @param output The output.
+     * @param value  The int, negative ones taking five bytes.
+     * @throws IOException If the output fails.
+     */
+    public static void writeVarInt(DataOutput output, int value) throws IOException {
+
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.writeByte(value);
+    }
+
+    /**
+     * Reads an int written by {@link #writeVarInt(DataOutput, int)}.
+     *
+     * @param input The input.
+     * @return The int.
+     * @throws IOException If the input fails or the varint is longer than five bytes.
+     */
+    public static int readVarInt(DataInput input) throws IOException {
+
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Reads a varint at the position of a buffer, without moving it.
+     *
+     * @param data The buffer.
+     * @return The int, or -1 if the buffer does not start with a complete varint.
+     */
+    public static int peekVarInt(ByteBuffer data) {
+
+        int value = 0;
+
+        for (int i = 0, shift = 0; shift < 35 && data.position() + i < data.limit(); i++, shift += 7) {
+            byte b = data.get(data.position() + i);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Writes an int, which can be negative, as a zig-zag varint: 0, -1, 1, -2, 2 and so on are written as 0, 1, 2,
+     * 3, 4, so that small numbers take a single byte whatever their sign.
+     *
+     * @param output The output.
+     * @param value  The int.
+     * @throws IOException If the output fails.
+     */
+    public static void writeSignedVarInt(DataOutput output, int value) throws IOException {
+        writeVarInt(output, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Reads an int written by {@link #writeSignedVarInt(DataOutput, int)}.
+     *
+     * @param input The input.
+     * @return The int.
+     * @throws IOException If the input fails or the varint is malformed.
+     */
+    public static int readSignedVarInt(DataInput input) throws IOException {
+        int zigZag = readVarInt(input);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    /**
+     * Writes a long as an unsigned varint, of one to ten bytes.
+     *
+     * @param output The output.
+     * @param value  The long, negative ones taking ten bytes.
+     * @throws IOException If the output fails.
+     */
+    public static void writeVarLong(DataOutput output, long value) throws IOException {
+
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeVarLong(DataOutput, long)}. An int written by
+     * {@link #writeVarInt(DataOutput, int)} reads back the same, if it is not negative.
+     *
+     * @param input The input.
+     * @return The long.
+     * @throws IOException If the input fails or the varint is longer than ten bytes.
+     */
+    public static long readVarLong(DataInput input) throws IOException {
+
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Writes a long, which can be negative, as a zig-zag varint, see {@link #writeSignedVarInt(DataOutput, int)}.
+     * The longs within the range of an int are written with the same bytes as the ints.
+     *
+     * @param output The output.
+     * @param value  The long.
+     * @throws IOException If the output fails.
+     */
+    public static void writeSignedVarLong(DataOutput output, long value) throws IOException {
+        writeVarLong(output, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a long written by {@link #writeSignedVarLong(DataOutput, long)}.
+     *
+     * @param input The input.
+     * @return The long.
+     * @throws IOException If the input fails or the varint is malformed.
+     */
+    public static long readSignedVarLong(DataInput input) throws IOException {
+        long zigZag = readVarLong(input);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    /**
+     * Writes a string as its varint length and UTF-8 bytes.
+     *
+     * @param output The output.
+     * @param value  The string.
+     * @throws IOException If the output fails or the string is longer than {@link #MAX_STRING_LENGTH} bytes.
+     */
+    public static void writeString(DataOutput output, String value) throws IOException {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) throw new UTFDataFormatException("String of " + bytes.length + " bytes.");
+
+        writeVarInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param input The input.
+     * @return The string.
+     * @throws IOException If the input fails or the length is not valid.
+     */
+    public static String readString(DataInput input) throws IOException {
+
+        int length = readVarInt(input);
+        if (length < 0 || length > MAX_STRING_LENGTH) throw new UTFDataFormatException("String of " + length + " bytes.");
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a UUID as its 16 bytes.
+     *
+     * @param output The output.
+     * @param value  The UUID.
+     * @throws IOException If the output fails.
+     */
+    public static void writeUuid(DataOutput output, UUID value) throws IOException {
+        output.writeLong(value.getMostSignificantBits());
+        output.writeLong(value.getLeastSignificantBits());
+    }
+
+    /**
+     * Reads a UUID written by {@link #writeUuid(DataOutput, UUID)}.
+     *
+     * @param input The input.
+     * @return The UUID.
+     * @throws IOException If the input fails.
+     */
+    public static UUID readUuid(DataInput input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    /**
+     * Writes a location as its zig-zag coordinates.
+     *
+     * @param output   The output.
+     * @param location The location.
+     * @throws IOException If the output fails.
+     */
+    public static void writeLocation(DataOutput output, Location location) throws IOException {
+        writeSignedVarInt(output, location.x());
+        writeSignedVarInt(output, location.y());
+    }
+
+    /**
+     * Reads a location written by {@link #writeLocation(DataOutput, Location)}.
+     *
+     * @param input The input.
+     * @return The location.
+     * @throws IOException If the input fails or a coordinate is malformed.
+     */
+    public static Location readLocation(DataInput input) throws IOException {
+        return new Location(readSignedVarInt(input), readSignedVarInt(input));
+    }
+
+    /**
+     * Encodes a message into a byte array, for the clients.
+     *
+     * @param message The message.
+     * @return The encoded message.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public static byte[] toBytes(Message message) throws IOException {
+
+        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+        message.encode(new DataOutputStream(dataStream));
+        return dataStream.toByteArray();
+    }
+
+    /**
+     * Encodes a message into a buffer leased from a pool, for the server.
+     *
+     * @param message The message.
+     * @param pool    The pool of the buffer.
+     * @return The encoded message, from position 0, to be released by the caller.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public static ByteBuffer toBuffer(Message message, BufferPool pool) throws IOException {
+
+        BufferOutput dataOutput = new BufferOutput(pool);
+        message.encode(dataOutput);
+        return dataOutput.finish();
+    }
+
+    /**
+     * Returns an input reading a byte array, for the clients.
+     *
+     * @param data The byte array.
+     * @return The input.
+     */
+    public static DataInput input(byte[] data) {
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+}
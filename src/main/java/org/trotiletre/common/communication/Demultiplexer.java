@@ -5,18 +5,31 @@ import org.trotiletre.common.communication.TaggedConnection.Frame;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class that demultiplexes incoming data from a client over
  * a {@link TaggedConnection} into separate {@link Frame} objects.
+ * <p>
+ * The replies to requests are routed by their request id, so each caller gets the reply to its own request,
+ * whatever the order the replies arrive in. The frames that answer no request are routed by their tag.
+ * <p>
+ * A reply can also be awaited asynchronously, through a {@link CompletableFuture} completed by the demultiplexer
+ * thread, so a few threads can have any number of requests in flight. The stages depending on such a future run
+ * on the demultiplexer thread, unless they are asynchronous, and must not block it.
  */
 public class Demultiplexer {
 
     private TaggedConnection connection; // TCP tagged connection with the client.
     private HashMap<Integer, FrameBuffer> bufferMap = new HashMap<>(); // Map from tag to FrameBuffer, congestion avoidance.
+    private HashMap<Integer, FrameBuffer> replyMap = new HashMap<>(); // Map from request id to FrameBuffer.
+    private HashMap<Integer, CompletableFuture<byte[]>> pendingReplies = new HashMap<>(); // Futures by request id.
+    private final AtomicInteger lastRequestId = new AtomicInteger(TaggedConnection.NO_REQUEST); // Last id given.
 
     private IOException exception = null; // Needed to wake up threads if an exception was caught.
     private ReentrantLock demultiplexerLock = new ReentrantLock(); // Lock for thread safe usage.
@@ -43,15 +56,23 @@ public class Demultiplexer {
 
                     // Receive a frame from the connection.
                     TaggedConnection.Frame frame = connection.receive();
+                    CompletableFuture<byte[]> pending = null;
                     demultiplexerLock.lock();
                     try {
-                        // Get the FrameBuffer for the received frame's tag.
-                        FrameBuffer buffer = bufferMap.get(frame.tag);
+                        // A reply awaited asynchronously completes its future, out of the lock.
+                        if (frame.requestId != TaggedConnection.NO_REQUEST) pending = pendingReplies.remove(frame.requestId);
+                        if (pending != null) continue;
 
-                        // If there is no FrameBuffer for this tag, create a new one.
+                        // Replies go to the FrameBuffer of their request, anything else to that of its tag.
+                        boolean reply = frame.requestId != TaggedConnection.NO_REQUEST;
+                        HashMap<Integer, FrameBuffer> map = reply ? replyMap : bufferMap;
+                        int key = reply ? frame.requestId : frame.tag;
+                        FrameBuffer buffer = map.get(key);
+
+                        // If there is no FrameBuffer for this key, create a new one.
                         if (buffer == null) {
                             buffer = new FrameBuffer();
-                            bufferMap.put(frame.tag, buffer);
+                            map.put(key, buffer);
                         }
 
                         // Add the frame data to the queue and signal any waiting threads.
@@ -59,11 +80,23 @@ public class Demultiplexer {
                         buffer.c.signal();
                     } finally {
                         demultiplexerLock.unlock();
+                        if (pending != null) pending.complete(frame.data);
                     }
                 }
             } catch (IOException err) {
                 // If there is an exception, store it in the exception field
                 exception = err;
+
+                // Failing the futures still awaiting replies, which will never arrive.
+                Map<Integer, CompletableFuture<byte[]>> failed;
+                demultiplexerLock.lock();
+                try {
+                    failed = pendingReplies;
+                    pendingReplies = new HashMap<>();
+                } finally {
+                    demultiplexerLock.unlock();
+                }
+                for (CompletableFuture<byte[]> future : failed.values()) future.completeExceptionally(err);
             }
         };
 
@@ -72,7 +105,20 @@ public class Demultiplexer {
     }
 
     /**
-     * Receives a frame with the specified tag.
+     * Gives a new id to a request, to be sent along with it and used to receive its reply.
+     *
+     * @return The request id, never {@link TaggedConnection#NO_REQUEST}.
+     */
+    public int newRequestId() {
+
+        int id = lastRequestId.incrementAndGet();
+        while (id == TaggedConnection.NO_REQUEST) id = lastRequestId.incrementAndGet(); // Skipped on wrap around.
+
+        return id;
+    }
+
+    /**
+     * Receives a frame with the specified tag, not tied to any request.
      *
      * @param tag The tag of the frame to receive.
      * @return The data of the received frame as a {@code byte} array.
@@ -80,18 +126,56 @@ public class Demultiplexer {
      * @throws InterruptedException If the thread is interrupted while waiting for a frame to be received.
      */
     public byte[] receive(int tag) throws IOException, InterruptedException {
+        return receive(bufferMap, tag);
+    }
+
+    /**
+     * Receives the reply to a request.
+     *
+     * @param requestId The id the request was sent with, see {@link #newRequestId()}.
+     * @return The data of the reply as a {@code byte} array.
+     * @throws IOException          If an I/O error occurs.
+     * @throws InterruptedException If the thread is interrupted while waiting for the reply.
+     */
+    public byte[] receiveReply(int requestId) throws IOException, InterruptedException {
+        return receive(replyMap, requestId);
+    }
+
+    /**
+     * Receives the reply to a request asynchronously. Must be called before the request is sent.
+     *
+     * @param requestId The id the request will be sent with, see {@link #newRequestId()}.
+     * @return A future completed with the data of the reply, or exceptionally if the connection fails.
+     */
+    public CompletableFuture<byte[]> receiveReplyAsync(int requestId) {
+
+        try {
+            demultiplexerLock.lock();
+
+            if (exception != null) return CompletableFuture.failedFuture(exception);
+
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            pendingReplies.put(requestId, future);
+            return future;
+
+        } finally {
+            demultiplexerLock.unlock();
+        }
+    }
+
+    private byte[] receive(HashMap<Integer, FrameBuffer> map, int key) throws IOException, InterruptedException {
 
         try {
             demultiplexerLock.lock();
             FrameBuffer buffer;
 
-            // Get the FrameBuffer for the specified tag.
-            buffer = bufferMap.get(tag);
+            // Get the FrameBuffer for the specified key.
+            buffer = map.get(key);
 
-            // If there is no FrameBuffer for this tag, create a new one.
+            // If there is no FrameBuffer for this key, create a new one.
             if (buffer == null) {
                 buffer = new FrameBuffer();
-                bufferMap.put(tag, buffer);
+                map.put(key, buffer);
             }
 
             // Increment the number of waiters on this FrameBuffer.
@@ -106,7 +190,7 @@ public class Demultiplexer {
 
                     // If the queue is now empty and there are no more waiters, remove the FrameBuffer from the map.
                     if (buffer.waiters == 0 && buffer.queue.isEmpty())
-                        bufferMap.remove(tag);
+                        map.remove(key);
 
                     return reply;
                 }
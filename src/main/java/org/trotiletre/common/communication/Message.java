@@ -0,0 +1,21 @@
+package org.trotiletre.common.communication;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A request or a reply of a service, encoded with {@link Codec}.
+ * <p>
+ * The requests write their operation first, as a varint, so the skeletons can read it before decoding the rest
+ * with the {@code decode} method of the message of that operation.
+ */
+public interface Message {
+
+    /**
+     * Writes the message.
+     *
+     * @param output The output.
+     * @throws IOException If the output fails.
+     */
+    void encode(DataOutput output) throws IOException;
+}
@@ -0,0 +1,57 @@
+package org.trotiletre.common.communication;
+
+import org.trotiletre.common.NotificationOperations;
+import org.trotiletre.models.utils.Location;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The requests of the notification manager service, all replied with a single boolean.
+ */
+public final class NotificationMessages {
+
+    private NotificationMessages() {
+    }
+
+    /**
+     * An operation on the subscriptions of a user: {@code REGISTER}, {@code IS_REGISTERED} or {@code REMOVE}.
+     */
+    public record UserRequest(NotificationOperations operation, String user) implements Message {
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, operation.operationTag);
+            Codec.writeString(output, user);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static UserRequest decode(NotificationOperations operation, DataInput input) throws IOException {
+            return new UserRequest(operation, Codec.readString(input));
+        }
+    }
+
+    /**
+     * Subscribes a user to the rewards starting around a location.
+     */
+    public record AddLocation(String user, Location location, int radius) implements Message {
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, NotificationOperations.ADD_LOCATION.operationTag);
+            Codec.writeString(output, user);
+            Codec.writeLocation(output, location);
+            Codec.writeVarInt(output, radius);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static AddLocation decode(DataInput input) throws IOException {
+            return new AddLocation(Codec.readString(input), Codec.readLocation(input), Codec.readVarInt(input));
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package org.trotiletre.common.communication;
+
+import org.trotiletre.models.utils.Location;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The requests and replies of the scooter manager service.
+ * <p>
+ * The listing of the free scooters of {@link ListFreeScooters} is replied with the UTF-8 bytes of its text, which
+ * needs no message; {@link ListFreeScooterLocations} replies with the binary {@link FreeScooters} instead.
+ */
+public final class ScooterMessages {
+
+    public static final long CURSOR_START = 0; // Cursor of the first page of a listing.
+    public static final long CURSOR_END = -1; // Cursor replied after the last page of a listing.
+    public static final int MAX_PAGE_SIZE = 4096; // Maximum number of entries asked for a page.
+
+    private ScooterMessages() {
+    }
+
+    /**
+     * Lists the free scooters around a position.
+     */
+    public record ListFreeScooters(Location position, int range) implements Message {
+
+        public static final int OPERATION = 0;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeLocation(output, position);
+            Codec.writeVarInt(output, range);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ListFreeScooters decode(DataInput input) throws IOException {
+            return new ListFreeScooters(Codec.readLocation(input), Codec.readVarInt(input));
+        }
+    }
+
+    /**
+     * Lists the free scooters around a position in binary, see {@link FreeScooters}.
+     *
+     * @param perCell Whether to list each cell with free scooters once, with its count, instead of each scooter.
+     */
+    public record ListFreeScooterLocations(Location position, int range, boolean perCell) implements Message {
+
+        public static final int OPERATION = 4;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeLocation(output, position);
+            Codec.writeVarInt(output, range);
+            output.writeBoolean(perCell);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ListFreeScooterLocations decode(DataInput input) throws IOException {
+            return new ListFreeScooterLocations(Codec.readLocation(input), Codec.readVarInt(input), input.readBoolean());
+        }
+    }
+
+    /**
+     * The reply to {@link ListFreeScooterLocations}: the locations of the free scooters, or of the cells with free
+     * scooters and their counts.
+     * <p>
+     * It is written as whether it is per cell, the number of entries, then each entry as its zig-zag coordinates
+     * relative to the position of the request, which the client already knows, followed by its count if per cell.
+     * Within a range below 64 each coordinate takes a single byte.
+     */
+    public static final class FreeScooters implements Message {
+
+        private final Location origin; // Position of the request, the coordinates being relative to it.
+        private final boolean perCell; // Whether each entry is a cell with its count, or a single scooter.
+        private int[] cells = new int[3 * 16]; // Column, row and count of each cell.
+        private int size = 0; // Number of cells.
+        private int scooters = 0; // Number of scooters of all the cells.
+
+        /**
+         * Creates an empty listing.
+         *
+         * @param origin  The position of the request.
+         * @param perCell Whether to list each cell once, with its count, instead of each scooter.
+         */
+        public FreeScooters(Location origin, boolean perCell) {
+            this.origin = origin;
+            this.perCell = perCell;
+        }
+
+        /**
+         * Adds a cell with free scooters.
+         *
+         * @param x     The column of the cell.
+         * @param y     The row of the cell.
+         * @param count The number of free scooters of the cell.
+         */
+        public void add(int x, int y, int count) {
+
+            if (3 * size == cells.length) cells = Arrays.copyOf(cells, 2 * cells.length);
+
+            cells[3 * size] = x;
+            cells[3 * size + 1] = y;
+            cells[3 * size + 2] = count;
+            size++;
+            scooters += count;
+        }
+
+        /**
+         * Returns the number of cells with free scooters.
+         */
+        public int cells() {
+            return size;
+        }
+
+        /**
+         * Returns the number of free scooters.
+         */
+        public int scooters() {
+            return scooters;
+        }
+
+        /**
+         * Returns the location of a cell.
+         *
+         * @param cell The index of the cell.
+         */
+        public Location location(int cell) {
+            return new Location(cells[3 * cell], cells[3 * cell + 1]);
+        }
+
+        /**
+         * Returns the number of free scooters of a cell.
+         *
+         * @param cell The index of the cell.
+         */
+        public int count(int cell) {
+            return cells[3 * cell + 2];
+        }
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+
+            output.writeBoolean(perCell);
+            Codec.writeVarInt(output, perCell ? size : scooters);
+
+            for (int cell = 0; cell < size; cell++) {
+                int repeat = perCell ? 1 : cells[3 * cell + 2];
+
+                for (int i = 0; i < repeat; i++) {
+                    Codec.writeSignedVarInt(output, cells[3 * cell] - origin.x());
+                    Codec.writeSignedVarInt(output, cells[3 * cell + 1] - origin.y());
+                    if (perCell) Codec.writeVarInt(output, cells[3 * cell + 2]);
+                }
+            }
+        }
+
+        /**
+         * Reads the reply, merging the consecutive entries of the same cell.
+         *
+         * @param input  The input.
+         * @param origin The position of the request.
+         * @return The listing, per cell.
+         */
+        public static FreeScooters decode(DataInput input, Location origin) throws IOException {
+
+            FreeScooters listing = new FreeScooters(origin, true);
+
+            boolean perCell = input.readBoolean();
+            int entries = Codec.readVarInt(input);
+
+            for (int i = 0; i < entries; i++) {
+                int x = origin.x() + Codec.readSignedVarInt(input);
+                int y = origin.y() + Codec.readSignedVarInt(input);
+                int count = perCell ? Codec.readVarInt(input) : 1;
+
+                int last = 3 * (listing.size - 1);
+                if (listing.size > 0 && listing.cells[last] == x && listing.cells[last + 1] == y) {
+                    listing.cells[last + 2] += count;
+                    listing.scooters += count;
+                } else listing.add(x, y, count);
+            }
+
+            return listing;
+        }
+
+        /**
+         * Lists the locations of the free scooters separated by commas, each one as many times as there are free
+         * scooters there, as in the reply of {@link ListFreeScooters}.
+         */
+        @Override
+        public String toString() {
+
+            StringBuilder builder = new StringBuilder();
+
+            for (int cell = 0; cell < size; cell++) {
+                String location = location(cell).toString();
+
+                for (int i = 0; i < count(cell); i++) {
+                    if (builder.length() > 0) builder.append(',');
+                    builder.append(location);
+                }
+            }
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Lists a page of the free scooters around a position, ring by ring of increasing distance, see
+     * {@link FreeScootersPage}.
+     * <p>
+     * The cursor is {@link #CURSOR_START} on the first call, and then the cursor of the previous page. It is the
+     * index of the next cell to list, counting the cells ring by ring and each ring row by row, so it holds both
+     * the ring and the offset in it, and the server keeps nothing between the pages. It is a long, since the cells
+     * within the largest ranges outnumber the ints, sent as a zig-zag varint.
+     *
+     * @param pageSize Maximum number of entries of the page, up to {@link #MAX_PAGE_SIZE}. A page ends before the
+     *                 first cell that does not fit, even within a ring; a cell with more free scooters than a whole
+     *                 page is replied alone, per cell.
+     */
+    public record ListFreeScootersPage(Location position, int range, boolean perCell, long cursor,
+                                       int pageSize) implements Message {
+
+        public static final int OPERATION = 5;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeLocation(output, position);
+            Codec.writeVarInt(output, range);
+            output.writeBoolean(perCell);
+            Codec.writeSignedVarLong(output, cursor);
+            Codec.writeVarInt(output, pageSize);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ListFreeScootersPage decode(DataInput input) throws IOException {
+            return new ListFreeScootersPage(Codec.readLocation(input), Codec.readVarInt(input), input.readBoolean(),
+                    Codec.readSignedVarLong(input), Codec.readVarInt(input));
+        }
+    }
+
+    /**
+     * The reply to {@link ListFreeScootersPage}: the cursor of the next page, {@link #CURSOR_END} after the last
+     * one, and the free scooters of the page.
+     */
+    public record FreeScootersPage(long cursor, FreeScooters scooters) implements Message {
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeSignedVarLong(output, cursor);
+            scooters.encode(output);
+        }
+
+        /**
+         * Reads the reply.
+         *
+         * @param input  The input.
+         * @param origin The position of the request.
+         */
+        public static FreeScootersPage decode(DataInput input, Location origin) throws IOException {
+            return new FreeScootersPage(Codec.readSignedVarLong(input), FreeScooters.decode(input, origin));
+        }
+    }
+
+    /**
+     * Reserves the closest free scooter around a position.
+     */
+    public record ReserveScooter(int range, Location position, String username) implements Message {
+
+        public static final int OPERATION = 1;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeVarInt(output, range);
+            Codec.writeLocation(output, position);
+            Codec.writeString(output, username);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ReserveScooter decode(DataInput input) throws IOException {
+            return new ReserveScooter(Codec.readVarInt(input), Codec.readLocation(input), Codec.readString(input));
+        }
+    }
+
+    /**
+     * The reply to {@link ReserveScooter}: a status and, if reserved, the code and location of the scooter.
+     */
+    public record Reservation(int status, UUID code, Location location) implements Message {
+
+        public static final int RESERVED = 0; // The scooter was reserved.
+        public static final int NO_SCOOTERS = 1; // There are no free scooters within the range.
+        public static final int NOT_LOGGED_IN = 2; // The user is not logged in.
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, status);
+
+            if (status == RESERVED) {
+                Codec.writeUuid(output, code);
+                Codec.writeLocation(output, location);
+            }
+        }
+
+        public static Reservation decode(DataInput input) throws IOException {
+
+            int status = Codec.readVarInt(input);
+            if (status != RESERVED) return new Reservation(status, null, null);
+
+            return new Reservation(status, Codec.readUuid(input), Codec.readLocation(input));
+        }
+    }
+
+    /**
+     * Parks a reserved scooter.
+     */
+    public record ParkScooter(UUID code, Location position, String username) implements Message {
+
+        public static final int OPERATION = 2;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeUuid(output, code);
+            Codec.writeLocation(output, position);
+            Codec.writeString(output, username);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ParkScooter decode(DataInput input) throws IOException {
+            return new ParkScooter(Codec.readUuid(input), Codec.readLocation(input), Codec.readString(input));
+        }
+    }
+
+    /**
+     * The reply to {@link ParkScooter}: a status and, if parked, the price of the trip and its reward, if any.
+     */
+    public record Parking(int status, double price, Double reward) implements Message {
+
+        public static final int PARKED = 0; // The scooter was parked, with no reward.
+        public static final int INVALID_CODE = 1; // The reservation code is not valid.
+        public static final int NOT_LOGGED_IN = 2; // The user is not logged in.
+        public static final int REWARDED = 3; // The scooter was parked, with a reward.
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, status);
+
+            if (status == PARKED || status == REWARDED) output.writeDouble(price);
+            if (status == REWARDED) output.writeDouble(reward);
+        }
+
+        public static Parking decode(DataInput input) throws IOException {
+
+            int status = Codec.readVarInt(input);
+            double price = status == PARKED || status == REWARDED ? input.readDouble() : 0;
+            Double reward = status == REWARDED ? input.readDouble() : null;
+
+            return new Parking(status, price, reward);
+        }
+    }
+
+    /**
+     * Lists the rewards starting around a position.
+     */
+    public record ListRewards(Location position, int range) implements Message {
+
+        public static final int OPERATION = 3;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeLocation(output, position);
+            Codec.writeVarInt(output, range);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ListRewards decode(DataInput input) throws IOException {
+            return new ListRewards(Codec.readLocation(input), Codec.readVarInt(input));
+        }
+    }
+
+    /**
+     * A notification of the rewards of the locations a user is subscribed to.
+     * <p>
+     * The notifications of a user are numbered from 1. A {@link #SNAPSHOT} holds every reward, replacing what the
+     * client knew. A {@link #DELTA} holds the rewards added and removed since the notification numbered right
+     * before it; a client that missed that one waits for the snapshot the server sends when a notification is lost.
+     *
+     * @param kind    {@link #SNAPSHOT} or {@link #DELTA}.
+     * @param version The number of the notification.
+     * @param added   Every reward for a snapshot, the new rewards for a delta.
+     * @param removed The rewards gone, for a delta.
+     */
+    public record RewardsUpdate(int kind, int version, List<Reward> added, List<Reward> removed) implements Message {
+
+        public static final int SNAPSHOT = 1; // Every reward.
+        public static final int DELTA = 2; // The changes since the previous notification.
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, kind);
+            Codec.writeVarInt(output, version);
+            new Rewards(added).encode(output);
+            if (kind == DELTA) new Rewards(removed).encode(output);
+        }
+
+        public static RewardsUpdate decode(DataInput input) throws IOException {
+
+            int kind = Codec.readVarInt(input);
+            if (kind != SNAPSHOT && kind != DELTA) throw new IOException("Unknown notification kind " + kind + ".");
+
+            int version = Codec.readVarInt(input);
+            List<Reward> added = Rewards.decode(input).rewards();
+            List<Reward> removed = kind == DELTA ? Rewards.decode(input).rewards() : List.of();
+
+            return new RewardsUpdate(kind, version, added, removed);
+        }
+    }
+
+    /**
+     * Lists a page of the rewards starting at a position, by increasing length, see {@link RewardsPage}.
+     * <p>
+     * The cursor is {@link #CURSOR_START} on the first call, and then the cursor of the previous page. As with
+     * {@link ListFreeScootersPage}, it is the index of the next finish, counting the cells around the position ring
+     * by ring.
+     *
+     * @param pageSize Maximum number of rewards of the page, up to {@link #MAX_PAGE_SIZE}.
+     */
+    public record ListRewardsPage(Location position, int range, long cursor, int pageSize) implements Message {
+
+        public static final int OPERATION = 6;
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, OPERATION);
+            Codec.writeLocation(output, position);
+            Codec.writeVarInt(output, range);
+            Codec.writeSignedVarLong(output, cursor);
+            Codec.writeVarInt(output, pageSize);
+        }
+
+        /**
+         * Reads the request, past its operation.
+         */
+        public static ListRewardsPage decode(DataInput input) throws IOException {
+            return new ListRewardsPage(Codec.readLocation(input), Codec.readVarInt(input),
+                    Codec.readSignedVarLong(input), Codec.readVarInt(input));
+        }
+    }
+
+    /**
+     * The reply to {@link ListRewardsPage}: the cursor of the next page, {@link #CURSOR_END} after the last one,
+     * and the rewards of the page.
+     */
+    public record RewardsPage(long cursor, Rewards rewards) implements Message {
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeSignedVarLong(output, cursor);
+            rewards.encode(output);
+        }
+
+        public static RewardsPage decode(DataInput input) throws IOException {
+            return new RewardsPage(Codec.readSignedVarLong(input), Rewards.decode(input));
+        }
+    }
+
+    /**
+     * A reward for taking a scooter from one location to another.
+     */
+    public record Reward(Location start, Location finish, double reward) {
+
+        @Override
+        public String toString() {
+            return "Start: " + start.toString() + "End: " + finish.toString() + "For: " + reward + "€";
+        }
+    }
+
+    /**
+     * A list of rewards, the reply to {@link ListRewards} and the lists of a {@link RewardsUpdate}.
+     */
+    public record Rewards(List<Reward> rewards) implements Message {
+
+        @Override
+        public void encode(DataOutput output) throws IOException {
+            Codec.writeVarInt(output, rewards.size());
+
+            for (Reward reward : rewards) {
+                Codec.writeLocation(output, reward.start());
+                Codec.writeLocation(output, reward.finish());
+                output.writeDouble(reward.reward());
+            }
+        }
+
+        public static Rewards decode(DataInput input) throws IOException {
+
+            int size = Codec.readVarInt(input);
+            List<Reward> rewards = new ArrayList<>(Math.min(Math.max(size, 0), 1024));
+
+            for (int i = 0; i < size; i++)
+                rewards.add(new Reward(Codec.readLocation(input), Codec.readLocation(input), input.readDouble()));
+
+            return new Rewards(rewards);
+        }
+    }
+}
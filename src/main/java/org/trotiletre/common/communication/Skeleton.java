@@ -1,6 +1,7 @@
 package org.trotiletre.common.communication;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 /**
  * An interface for handling data streams.
@@ -12,9 +13,11 @@ public interface Skeleton {
     /**
      * Handles the given input and output streams.
      *
-     * @param receivedData The connection object.
+     * @param receivedData The data of the request, from the position to the limit of the buffer. The buffer goes
+     *                     back to its pool once the method returns, so it must not be kept.
      * @param connection
+     * @param requestId    The id of the request, to be echoed back on its reply.
      * @throws Exception If an error occurs while handling the streams.
      */
-    public void handle(byte[] receivedData, SocketAddress socketAddress) throws Exception;
+    public void handle(ByteBuffer receivedData, SocketAddress socketAddress, int requestId) throws Exception;
 }
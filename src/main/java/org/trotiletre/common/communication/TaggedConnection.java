@@ -2,6 +2,8 @@ package org.trotiletre.common.communication;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -9,12 +11,25 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * This class wraps a socket and provides methods to send and receive frames, where each frame has a tag
  * and a payload of data. The tags are used to identify the type of data contained in the frame.
+ * Each frame also carries a request id, set by the client on its requests and echoed back by the server on
+ * the replies, so several requests can be in flight on the same connection; frames that answer no request,
+ * such as notifications, carry {@value #NO_REQUEST}.
+ * <p>
+ * Sending and receiving are guarded by {@link ReentrantLock}s, never by {@code synchronized}, so a virtual thread
+ * blocked on the socket while holding them leaves its carrier thread free. The buffered streams are only created on
+ * the first send or receive, as a connection used in a single direction does not need the other one.
+ * <p>
+ * The frames can also be received into, and sent from, buffers of a {@link BufferPool}, see {@link BufferFrame}.
  */
 public class TaggedConnection implements AutoCloseable {
 
+    public static final int NO_REQUEST = 0; // Request id of the frames not tied to a request.
+    public static final int HEADER_SIZE = 12; // Size of the tag, request id and length of a frame.
+    public static final int MAX_FRAME_SIZE = BufferPool.MAX_SIZE; // Largest data accepted in a pooled frame.
+
     private final Socket socket; // The wrapped socket.
-    private final DataInputStream in; // The input stream.
-    private final DataOutputStream out; // The output stream.
+    private DataInputStream in; // The input stream, created on the first receive.
+    private DataOutputStream out; // The output stream, created on the first send.
 
     private ReentrantLock sendLock = new ReentrantLock(); // Lock for sending frames.
     private ReentrantLock receiveLock = new ReentrantLock(); // Lock for receiving frames.
@@ -27,8 +42,6 @@ public class TaggedConnection implements AutoCloseable {
      */
     public TaggedConnection(Socket socket) throws IOException {
         this.socket = socket;
-        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
     /**
@@ -40,7 +53,7 @@ public class TaggedConnection implements AutoCloseable {
      * @throws IOException If an error occurs while sending the frame.
      */
     public void send(Frame frame) throws IOException {
-        this.send(frame.tag, frame.data);
+        this.send(frame.tag, frame.requestId, frame.data);
     }
 
     /**
@@ -51,11 +64,26 @@ public class TaggedConnection implements AutoCloseable {
      * @throws IOException If an error occurs while sending the frame.
      */
     public void send(int tag, byte[] data) throws IOException {
+        this.send(tag, NO_REQUEST, data);
+    }
+
+    /**
+     * Sends a frame with the given tag, request id and data payload over the connection.
+     *
+     * @param tag       The tag of the frame.
+     * @param requestId The id of the request the frame belongs to.
+     * @param data      The data payload of the frame.
+     * @throws IOException If an error occurs while sending the frame.
+     */
+    public void send(int tag, int requestId, byte[] data) throws IOException {
 
         try {
             this.sendLock.lock();
 
+            if (out == null) out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
             out.writeInt(tag);
+            out.writeInt(requestId);
             out.writeInt(data.length);
             out.write(data);
 
@@ -68,6 +96,43 @@ public class TaggedConnection implements AutoCloseable {
         }
     }
 
+    /**
+     * Sends several frames over the connection at once.
+     * <p>
+     * The frames are laid out in a single buffer leased from the pool, written and flushed together, so a burst
+     * of small frames costs one write on the socket instead of one per frame. The data of the frames is left
+     * untouched, releasing it is up to the caller.
+     *
+     * @param frames The frames to send, in order.
+     * @param pool   The pool of the buffer the frames are laid out in.
+     * @throws IOException If an error occurs while sending the frames.
+     */
+    public void sendAll(Collection<BufferFrame> frames, BufferPool pool) throws IOException {
+
+        int size = 0;
+        for (BufferFrame frame : frames) size += HEADER_SIZE + frame.data.remaining();
+
+        ByteBuffer buffer = pool.acquire(size);
+        for (BufferFrame frame : frames)
+            buffer.putInt(frame.tag).putInt(frame.requestId).putInt(frame.data.remaining()).put(frame.data.duplicate());
+
+        try {
+            this.sendLock.lock();
+
+            if (out == null) out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // A single write: the stream is empty after every flush, and passes large arrays straight through.
+            out.write(buffer.array(), 0, size);
+            out.flush();
+
+        } finally {
+
+            this.sendLock.unlock();
+            pool.release(buffer);
+
+        }
+    }
+
     /**
      * Receives a frame from the connection.
      *
@@ -80,12 +145,55 @@ public class TaggedConnection implements AutoCloseable {
 
             receiveLock.lock();
 
+            if (in == null) in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
             int tag = in.readInt();
+            int requestId = in.readInt();
             int size = in.readInt();
             byte[] data = new byte[size];
 
             in.readFully(data);
-            return new Frame(tag, data);
+            return new Frame(tag, requestId, data);
+
+        } finally {
+
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Receives a frame from the connection, into a buffer leased from the given pool.
+     * <p>
+     * A frame announcing more than {@value #MAX_FRAME_SIZE} bytes is refused before anything is allocated for it,
+     * so a peer cannot exhaust the memory with a forged length. The connection is then out of step with the
+     * frames, and must be closed.
+     *
+     * @param pool The pool of the buffer of the data.
+     * @return The received frame, whose data is to be released by the caller.
+     * @throws IOException If an error occurs while receiving the frame, or it is too large.
+     */
+    public BufferFrame receive(BufferPool pool) throws IOException {
+
+        try {
+
+            receiveLock.lock();
+
+            if (in == null) in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            int tag = in.readInt();
+            int requestId = in.readInt();
+            int size = in.readInt();
+            if (size < 0 || size > MAX_FRAME_SIZE) throw new IOException("Invalid frame size " + size + ".");
+
+            ByteBuffer data = pool.acquire(size);
+            try {
+                in.readFully(data.array(), 0, size);
+            } catch (IOException e) {
+                pool.release(data);
+                throw e;
+            }
+
+            return new BufferFrame(tag, requestId, data);
 
         } finally {
 
@@ -106,21 +214,58 @@ public class TaggedConnection implements AutoCloseable {
     /**
      * A class that represents a frame.
      * <p>
-     * A frame consists of a tag and a payload of data.
+     * A frame consists of a tag, a request id and a payload of data.
      */
     public static class Frame {
 
         public final int tag;
+        public final int requestId;
         public final byte[] data;
 
         /**
-         * Constructs a new frame with the given tag and data.
+         * Constructs a new frame with the given tag and data, not tied to any request.
          *
          * @param tag  The tag for the frame.
          * @param data The payload of data for the frame.
          */
         public Frame(int tag, byte[] data) {
+            this(tag, NO_REQUEST, data);
+        }
+
+        /**
+         * Constructs a new frame with the given tag, request id and data.
+         *
+         * @param tag       The tag for the frame.
+         * @param requestId The id of the request the frame belongs to.
+         * @param data      The payload of data for the frame.
+         */
+        public Frame(int tag, int requestId, byte[] data) {
+            this.tag = tag;
+            this.requestId = requestId;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A frame whose data is held in a {@link ByteBuffer}, between its position and limit, usually leased
+     * from a {@link BufferPool}.
+     */
+    public static class BufferFrame {
+
+        public final int tag;
+        public final int requestId;
+        public final ByteBuffer data;
+
+        /**
+         * Constructs a new frame with the given tag, request id and data.
+         *
+         * @param tag       The tag for the frame.
+         * @param requestId The id of the request the frame belongs to.
+         * @param data      The payload of data for the frame.
+         */
+        public BufferFrame(int tag, int requestId, ByteBuffer data) {
             this.tag = tag;
+            this.requestId = requestId;
             this.data = data;
         }
     }
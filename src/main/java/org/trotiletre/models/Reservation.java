@@ -10,6 +10,7 @@ public class Reservation {
     private LocalDateTime reservationTimestamp = LocalDateTime.now(); // The instant the reservation was made.
     private String user; // The username of the user who made the reservation.
     private Scooter scooter; // The scooter that got reserved.
+    private int claimVersion; // Version of the claim on the scooter made by this reservation.
 
     /**
      * Constructor for the {@code Reservation} class.
@@ -22,6 +23,7 @@ public class Reservation {
         this.reservationId = reservationId;
         this.user = username;
         this.scooter = scooter;
+        this.claimVersion = scooter.getVersion();
     }
 
     /**
@@ -43,4 +45,8 @@ public class Reservation {
     public Scooter getScooter() {
         return scooter;
     }
+
+    public int getClaimVersion() {
+        return claimVersion;
+    }
 }
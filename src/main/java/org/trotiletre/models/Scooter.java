@@ -6,12 +6,17 @@ import org.trotiletre.models.utils.Location;
  * A class that represents a scooter in the  application.
  * <p>
  * This class stores information about the scooter's ID, location, and usage status.
+ * The scooters handed out by the server's scooter map are snapshots of its column store: the index identifies
+ * the scooter on the store, and the remaining fields hold its state when the snapshot was taken.
  */
 public class Scooter {
 
+    private final int index; // Index of the scooter on the scooter map store, -1 if not stored.
     private String scooterId; // Scooter identification.
     private Location location; // Scooter location.
     private boolean inUse; // Indicates whether the scooter is being used or not.
+    private String reservedBy; // Username of the user holding the scooter, if it is in use.
+    private int version; // Number of times the scooter was claimed, identifies each claim.
 
     /**
      * Constructs a new scooter with the given information.
@@ -21,9 +26,35 @@ public class Scooter {
      * @param inUse     Whether the scooter is in use or not.
      */
     public Scooter(String scooterId, Location location, boolean inUse) {
+        this(-1, scooterId, location, inUse, null, 0);
+    }
+
+    /**
+     * Constructs a snapshot of a scooter kept on a scooter map store.
+     *
+     * @param index      The index of the scooter on the store.
+     * @param scooterId  The ID of the scooter.
+     * @param location   The location of the scooter.
+     * @param inUse      Whether the scooter is in use or not.
+     * @param reservedBy The username of the user holding the scooter.
+     * @param version    The version of the current, or last, claim on the scooter.
+     */
+    public Scooter(int index, String scooterId, Location location, boolean inUse, String reservedBy, int version) {
+        this.index = index;
         this.scooterId = scooterId;
         this.location = location;
-        this.inUse = false;
+        this.inUse = inUse;
+        this.reservedBy = reservedBy;
+        this.version = version;
+    }
+
+    /**
+     * Returns the index of the scooter on the scooter map store.
+     *
+     * @return The index, or {@code -1} if the scooter is not stored.
+     */
+    public int getIndex() {
+        return index;
     }
 
     /**
@@ -79,4 +110,22 @@ public class Scooter {
     public void setInUse(boolean inUse) {
         this.inUse = inUse;
     }
+
+    /**
+     * Returns the username of the user holding the scooter.
+     *
+     * @return The username, or {@code null} if the scooter is free.
+     */
+    public String getReservedBy() {
+        return reservedBy;
+    }
+
+    /**
+     * Returns the version of the current, or last, claim on the scooter.
+     *
+     * @return The claim version.
+     */
+    public int getVersion() {
+        return version;
+    }
 }
@@ -0,0 +1,124 @@
+package org.trotiletre.server;
+
+import org.trotiletre.server.services.AuthenticationManager;
+import org.trotiletre.server.services.NotificationManager;
+import org.trotiletre.server.services.ResponseManager;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the open connections, closing those that stay silent for too long, and cleans up after every
+ * connection that closes.
+ * <p>
+ * A client that vanishes without closing its connection, such as a phone losing its signal, leaves no error on the
+ * server: its threads and queues would wait for it forever. The clients send a {@code HEARTBEAT} frame at regular
+ * intervals, and a connection with no frame at all during the idle timeout is closed by a single timer thread.
+ * Its closing then goes through {@link #closed(SocketAddress)}, like any other, which drops the connection from
+ * the {@link ResponseManager}, logs out its user and removes its notification subscriptions.
+ */
+public class ConnectionReaper {
+
+    private final ResponseManager responseManager; // Where the connections are registered.
+    private final AuthenticationManager authenticationManager; // Where the users of the connections are online.
+    private final NotificationManager notificationManager; // Where the users of the connections are subscribed.
+    private final long idleTimeout; // Time without frames after which a connection is closed, in ms, 0 for never.
+    private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>(); // Open connections.
+
+    /**
+     * Constructs a reaper.
+     *
+     * @param responseManager       The response manager of the connections.
+     * @param authenticationManager The authentication manager of the users.
+     * @param notificationManager   The notification manager of the users.
+     * @param idleTimeout           The time without frames after which a connection is closed, in milliseconds,
+     *                              or 0 to never close them.
+     */
+    public ConnectionReaper(ResponseManager responseManager, AuthenticationManager authenticationManager,
+                            NotificationManager notificationManager, long idleTimeout) {
+
+        this.responseManager = responseManager;
+        this.authenticationManager = authenticationManager;
+        this.notificationManager = notificationManager;
+        this.idleTimeout = idleTimeout;
+
+        if (idleTimeout > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "idle-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            long period = Math.max(idleTimeout / 4, 100);
+            timer.scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Starts tracking a connection.
+     *
+     * @param socketAddress The address of the connection.
+     * @param close         Closes the connection, which must then call {@link #closed(SocketAddress)}.
+     * @return The session of the connection, to be touched on every frame received.
+     */
+    public Session opened(SocketAddress socketAddress, Runnable close) {
+
+        Session session = new Session(close);
+        sessions.put(socketAddress, session);
+        return session;
+    }
+
+    /**
+     * Cleans up after a closed connection.
+     *
+     * @param socketAddress The address of the connection.
+     */
+    public void closed(SocketAddress socketAddress) {
+
+        sessions.remove(socketAddress);
+
+        String user = responseManager.remove(socketAddress);
+        if (user != null) {
+            authenticationManager.logoutUser(user);
+            notificationManager.remove(user);
+        }
+    }
+
+    private void reap() {
+
+        long now = System.currentTimeMillis();
+
+        for (Session session : sessions.values()) {
+            if (now - session.lastActivity > idleTimeout && !session.reaped) {
+                session.reaped = true;
+                System.out.println("server> Closing a connection idle for " + (now - session.lastActivity) + " ms.");
+                session.close.run();
+            }
+        }
+    }
+
+    /**
+     * The activity of an open connection.
+     */
+    public static class Session {
+
+        private final Runnable close; // Closes the connection.
+        private volatile long lastActivity = System.currentTimeMillis(); // Time of the last frame received.
+        private boolean reaped = false; // Whether the connection was closed for being idle, only used by the timer.
+
+        private Session(Runnable close) {
+            this.close = close;
+        }
+
+        /**
+         * Records a frame received on the connection.
+         */
+        public void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+}
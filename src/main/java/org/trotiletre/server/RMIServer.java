@@ -1,5 +1,6 @@
 package org.trotiletre.server;
 
+import org.apache.commons.cli.*;
 import org.trotiletre.common.ManagerTag;
 import org.trotiletre.common.communication.Skeleton;
 import org.trotiletre.server.services.*;
@@ -8,10 +9,13 @@ import org.trotiletre.server.skeletons.NotificationManagerSkeleton;
 import org.trotiletre.server.skeletons.ScooterManagerSkeleton;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -23,20 +27,53 @@ import java.util.Map;
 public class RMIServer {
 
     private int serverPort;
-    private ServerSocket socket;
+    private ServerSocket socket; // Socket of the thread per connection transport.
+    private ServerSocketChannel channel; // Channel of the selector transport.
+    private final int selectorLoops; // Number of selector loops, 0 for a thread per connection.
+    private int handlerThreads = Runtime.getRuntime().availableProcessors(); // Threads running the requests.
+    private int handlerQueueDepth = 1024; // Maximum number of requests waiting for a handler thread.
+    private int authHandlerThreads = Math.max(1, handlerThreads / 4); // Threads hashing the passwords.
+    private int maxQueuedFrames = 1024; // Maximum number of responses queued on a connection.
+    private long maxQueuedBytes = 4L << 20; // Maximum number of bytes queued on a connection.
+    private OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.COALESCE; // What to do past the caps.
+    private long idleTimeout = 60_000; // Time without frames after which a connection is closed, in ms.
+    private final int mapSize; // Size of the rows and columns of the scooter map.
+    private final int startingScooters; // Number of scooters placed on the map when the server starts.
+    private final ScooterMap.Storage storage; // How the scooter map keeps its cells.
+    private ThreadFactory threadFactory = null; // Creates the threads of each connection, null for platform threads.
 
     /**
-     * Constructs a new RMI server with the given port.
+     * Constructs a new RMI server with the given port, and a small densely stored map.
      *
      * @param serverPort The port on which the server will listen for incoming connections.
      */
     public RMIServer(int serverPort) {
+        this(serverPort, 10, 10, ScooterMap.Storage.DENSE, 0);
+    }
+
+    /**
+     * Constructs a new RMI server with the given port and map.
+     *
+     * @param serverPort       The port on which the server will listen for incoming connections.
+     * @param mapSize          The size of the rows and columns of the scooter map.
+     * @param startingScooters The number of scooters placed on the map when the server starts.
+     * @param storage          How the scooter map keeps its cells, {@link ScooterMap.Storage#SPARSE} for large maps.
+     * @param selectorLoops    The number of {@link SelectorServer} loops handling the connections,
+     *                         or 0 for a {@link Worker} thread per connection.
+     */
+    public RMIServer(int serverPort, int mapSize, int startingScooters, ScooterMap.Storage storage,
+                     int selectorLoops) {
 
         this.serverPort = serverPort;
+        this.mapSize = mapSize;
+        this.startingScooters = startingScooters;
+        this.storage = storage;
+        this.selectorLoops = selectorLoops;
 
         try {
-            // Create server socket on the specified port.
-            this.socket = new ServerSocket(serverPort);
+            // Create server socket, or channel, on the specified port.
+            if (selectorLoops > 0) this.channel = ServerSocketChannel.open().bind(new InetSocketAddress(serverPort));
+            else this.socket = new ServerSocket(serverPort);
 
         } catch (IOException e) {
 
@@ -46,9 +83,116 @@ public class RMIServer {
 
     }
 
+    /**
+     * Sets the pool of handler threads running the requests, see {@link RequestDispatcher}.
+     *
+     * @param threads    The number of handler threads, or 0 to run the requests on the threads reading them.
+     * @param queueDepth The maximum number of requests waiting for a handler thread.
+     * @throws IllegalArgumentException If there are no handler threads with the selector transport, whose loops
+     *                                  must not run the requests.
+     */
+    public void useHandlers(int threads, int queueDepth) {
+        if (threads <= 0 && selectorLoops > 0)
+            throw new IllegalArgumentException("--handlers must be at least 1 with --selectors.");
+
+        this.handlerThreads = threads;
+        this.handlerQueueDepth = queueDepth;
+    }
+
+    /**
+     * Sets the number of handler threads running the logins and registrations, apart from the other requests
+     * so that their password hashing cannot take all the threads.
+     *
+     * @param threads The number of handler threads of the logins and registrations.
+     */
+    public void useAuthHandlers(int threads) {
+        this.authHandlerThreads = threads;
+    }
+
+    /**
+     * Sets the caps of the responses queued on each connection, and what to do with the clients not reading
+     * them fast enough, see {@link OutboundQueue}.
+     *
+     * @param maxFrames The maximum number of responses queued on a connection.
+     * @param maxBytes  The maximum number of bytes queued on a connection.
+     * @param policy    What to do past the caps.
+     */
+    public void useOutboundLimits(int maxFrames, long maxBytes, OutboundQueue.Policy policy) {
+        this.maxQueuedFrames = maxFrames;
+        this.maxQueuedBytes = maxBytes;
+        this.slowConsumerPolicy = policy;
+    }
+
+    /**
+     * Sets the time without any frame, heartbeats included, after which a connection is closed.
+     *
+     * @param idleTimeout The idle timeout in milliseconds, or 0 to never close idle connections.
+     */
+    public void useIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Runs each connection, with the thread per connection transport, on virtual threads: the thread reading its
+     * requests and the one writing its responses. Requires a Java 21 runtime, which loads the Java 21 version of
+     * {@link VirtualThreads} from the multi-release server jar.
+     *
+     * @throws IllegalArgumentException      With the selector transport, which has no thread per connection.
+     * @throws UnsupportedOperationException If the runtime is older than Java 21.
+     */
+    public void useVirtualThreads() {
+        if (selectorLoops > 0)
+            throw new IllegalArgumentException("--virtual-threads is not allowed with --selectors.");
+
+        this.threadFactory = VirtualThreads.factory("worker-");
+    }
+
     public static void main(String[] args) throws Exception {
 
-        RMIServer server = new RMIServer(12345);
+        Options options = new Options();
+        options.addOption("p", "port", true, "Port to listen on (default 12345).");
+        options.addOption("n", "map-size", true, "Size of the rows and columns of the map (default 10).");
+        options.addOption("s", "scooters", true, "Number of scooters on the map (default 10).");
+        options.addOption(null, "sparse", false, "Keep only the tiles of the map in use, for large maps.");
+        options.addOption(null, "selectors", true,
+                "Handle the connections on this many selector loops, instead of a thread per connection.");
+        options.addOption(null, "handlers", true,
+                "Number of threads running the requests, 0 to run them on the reading threads, not allowed with"
+                        + " --selectors (default: cores).");
+        options.addOption(null, "handler-queue", true,
+                "Maximum number of requests waiting for a handler thread (default 1024).");
+        options.addOption(null, "auth-handlers", true,
+                "Number of threads running the logins and registrations (default: a quarter of the cores).");
+        options.addOption(null, "outbound-frames", true,
+                "Maximum number of responses queued on a connection (default 1024).");
+        options.addOption(null, "outbound-bytes", true,
+                "Maximum number of bytes queued on a connection (default 4194304).");
+        options.addOption(null, "slow-consumer", true,
+                "What to do with a client past those caps: drop, coalesce or disconnect (default coalesce).");
+        options.addOption(null, "idle-timeout", true,
+                "Seconds without frames after which a connection is closed, 0 for never (default 60).");
+        options.addOption(null, "virtual-threads", false,
+                "Run the threads of each connection on virtual threads (requires Java 21), not allowed with"
+                        + " --selectors.");
+
+        CommandLine line = new DefaultParser().parse(options, args);
+
+        RMIServer server = new RMIServer(Integer.parseInt(line.getOptionValue("port", "12345")),
+                Integer.parseInt(line.getOptionValue("map-size", "10")),
+                Integer.parseInt(line.getOptionValue("scooters", "10")),
+                line.hasOption("sparse") ? ScooterMap.Storage.SPARSE : ScooterMap.Storage.DENSE,
+                Integer.parseInt(line.getOptionValue("selectors", "0")));
+        server.useHandlers(
+                Integer.parseInt(line.getOptionValue("handlers",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(line.getOptionValue("handler-queue", "1024")));
+        if (line.hasOption("auth-handlers"))
+            server.useAuthHandlers(Integer.parseInt(line.getOptionValue("auth-handlers")));
+        server.useIdleTimeout(Long.parseLong(line.getOptionValue("idle-timeout", "60")) * 1000);
+        server.useOutboundLimits(Integer.parseInt(line.getOptionValue("outbound-frames", "1024")),
+                Long.parseLong(line.getOptionValue("outbound-bytes", String.valueOf(4L << 20))),
+                OutboundQueue.Policy.valueOf(line.getOptionValue("slow-consumer", "coalesce").toUpperCase()));
+        if (line.hasOption("virtual-threads")) server.useVirtualThreads();
         server.runServer();
 
     }
@@ -65,14 +209,17 @@ public class RMIServer {
 
         System.out.println("Running server...");
 
-        ScooterMap scooterMap = new ScooterMap(10, 10);
+        ScooterMap scooterMap = new ScooterMap(mapSize, startingScooters, storage);
 
         // Map of service skeletons keyed by service ID.
         Map<Integer, Skeleton> services = new HashMap<>();
 
         // Register service skeletons.
         AuthenticationManager authenticationManager = new AuthenticationManager();
-        ResponseManager responseManager = new ResponseManager();
+        // The responding threads run on the same kind of threads as the workers.
+        ResponseManager responseManager = threadFactory == null ? new ResponseManager()
+                : new ResponseManager(threadFactory);
+        responseManager.setOutboundLimits(maxQueuedFrames, maxQueuedBytes, slowConsumerPolicy);
         NotificationManager notificationManager = new NotificationManager();
         RewardManager rewardManager = new RewardManager(responseManager, notificationManager, scooterMap,
                 authenticationManager, 1);
@@ -86,6 +233,15 @@ public class RMIServer {
         services.put(ManagerTag.NOTIFICATION.tag, new NotificationManagerSkeleton(notificationManager,
                 responseManager));
 
+        RequestDispatcher dispatcher = newDispatcher();
+        ConnectionReaper reaper = new ConnectionReaper(responseManager, authenticationManager, notificationManager,
+                idleTimeout);
+
+
+        if (selectorLoops > 0) {
+            new SelectorServer(channel, services, responseManager, dispatcher, reaper, selectorLoops).run();
+            return;
+        }
 
         // Listen for incoming connections.
         while (true) {
@@ -93,8 +249,9 @@ public class RMIServer {
             try {
 
                 Socket s = socket.accept();
-                Worker worker = new Worker(s, services, responseManager);
-                new Thread(worker).start();
+                Worker worker = new Worker(s, services, responseManager, dispatcher, reaper);
+                if (threadFactory == null) new Thread(worker).start();
+                else threadFactory.newThread(worker).start();
 
             } catch (IOException e) {
                 System.out.println(e.getMessage());
@@ -102,4 +259,25 @@ public class RMIServer {
         }
     }
 
+    /**
+     * Creates the dispatcher of the requests. The logins and registrations, hashing passwords, run on a small
+     * pool of their own, and the reservations and parkings on another, so that neither waits behind the other.
+     */
+    private RequestDispatcher newDispatcher() {
+
+        if (handlerThreads <= 0) return new RequestDispatcher();
+
+        RequestDispatcher dispatcher = new RequestDispatcher(handlerThreads, handlerQueueDepth);
+
+        dispatcher.addPool("auth", authHandlerThreads, handlerQueueDepth);
+        dispatcher.route(ManagerTag.AUTHENTICATION.tag, 0, "auth"); // Register.
+        dispatcher.route(ManagerTag.AUTHENTICATION.tag, 1, "auth"); // Login.
+
+        dispatcher.addPool("rides", handlerThreads, handlerQueueDepth);
+        dispatcher.route(ManagerTag.SCOOTER.tag, 1, "rides"); // Reserve.
+        dispatcher.route(ManagerTag.SCOOTER.tag, 2, "rides"); // Park.
+
+        return dispatcher;
+    }
+
 }
@@ -0,0 +1,223 @@
+package org.trotiletre.server;
+
+import org.trotiletre.common.communication.BufferPool;
+import org.trotiletre.common.communication.Codec;
+import org.trotiletre.common.communication.Skeleton;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the requests read by the transports on bounded pools of handler threads.
+ * <p>
+ * The threads reading the connections only hand their frames over, so a slow request, such as a login hashing
+ * its password, no longer holds back the requests read after it on the same connection, and the number of
+ * requests executing at once is capped by the pools, whatever the number of connections.
+ * <p>
+ * Each request runs on the pool its service tag and operation, the varint starting its data, are routed to,
+ * or on the default pool if they have no route. Expensive operations can so be confined to a small pool of their
+ * own, and cannot take the threads of the cheap ones. The pools and routes are set before the server starts.
+ * <p>
+ * The requests wait for a handler on a queue of limited depth, one per pool. When it is full, a {@link Worker}
+ * blocks until there is room, which stops reading its connection and pushes back on its client. A selector loop
+ * must not block, as it serves many connections: it {@linkplain #tryDispatch tries} instead, and only stops
+ * reading the connection of the rejected request until the pool tells it there is room. The requests of a
+ * connection may then complete in any order, their replies being matched by request id.
+ */
+public class RequestDispatcher {
+
+    public static final String DEFAULT_POOL = "handler"; // Name of the pool of the requests without a route.
+    public static final int ANY_OPERATION = -1; // Routes every operation of a service.
+
+    private final Map<String, Pool> pools = new HashMap<>(); // Pools of handler threads, by name.
+    private final Map<Long, Pool> routes = new HashMap<>(); // Pool of each tag and operation.
+    private final Pool defaultPool; // Pool of the other requests, null to run them on the reading thread.
+
+    /**
+     * Constructs a dispatcher running the requests on the reading threads themselves.
+     */
+    public RequestDispatcher() {
+        this.defaultPool = null;
+    }
+
+    /**
+     * Constructs a dispatcher running the requests on a default pool of handler threads.
+     *
+     * @param threads    The number of handler threads.
+     * @param queueDepth The maximum number of requests waiting for a handler.
+     */
+    public RequestDispatcher(int threads, int queueDepth) {
+        this.defaultPool = new Pool(DEFAULT_POOL, threads, queueDepth);
+        this.pools.put(DEFAULT_POOL, defaultPool);
+    }
+
+    /**
+     * Adds a named pool of handler threads.
+     *
+     * @param name       The name of the pool, also naming its threads.
+     * @param threads    The number of handler threads.
+     * @param queueDepth The maximum number of requests waiting for a handler.
+     */
+    public void addPool(String name, int threads, int queueDepth) {
+
+        if (pools.containsKey(name)) throw new IllegalArgumentException("Pool " + name + " already exists.");
+        pools.put(name, new Pool(name, threads, queueDepth));
+    }
+
+    /**
+     * Routes the requests of an operation to a pool.
+     *
+     * @param tag       The tag of the service.
+     * @param operation The operation of the service, or {@link #ANY_OPERATION} for all of them.
+     * @param pool      The name of the pool.
+     */
+    public void route(int tag, int operation, String pool) {
+
+        Pool target = pools.get(pool);
+        if (target == null) throw new IllegalArgumentException("No pool named " + pool + ".");
+
+        routes.put(key(tag, operation), target);
+    }
+
+    /**
+     * Checks whether the requests run on the threads reading them, there being no pool of handler threads.
+     */
+    public boolean runsOnReadingThreads() {
+        return defaultPool == null;
+    }
+
+    /**
+     * Dispatches a request to its service, waiting for room on the queue of its pool if it is full.
+     *
+     * @param tag           The tag of the service of the request.
+     * @param service       The skeleton of the service of the request.
+     * @param data          The data of the request, leased from the shared pool and released once handled.
+     * @param socketAddress The address of the connection the request came from.
+     * @param requestId     The id of the request.
+     * @param onFailure     Called if the service fails handling the request, to close the connection.
+     */
+    public void dispatch(int tag, Skeleton service, ByteBuffer data, SocketAddress socketAddress, int requestId,
+                         Runnable onFailure) {
+
+        Pool pool = poolOf(tag, data);
+        Runnable request = newRequest(pool, service, data, socketAddress, requestId, onFailure);
+
+        if (pool == null) request.run();
+        else pool.executor.execute(request);
+    }
+
+    /**
+     * Dispatches a request to its service, unless the queue of its pool is full. The caller then keeps the request,
+     * and is told once the pool has taken some of its queued requests, to try again.
+     *
+     * @param tag           The tag of the service of the request.
+     * @param service       The skeleton of the service of the request.
+     * @param data          The data of the request, leased from the shared pool and released once handled.
+     * @param socketAddress The address of the connection the request came from.
+     * @param requestId     The id of the request.
+     * @param onFailure     Called if the service fails handling the request, to close the connection.
+     * @param onRoom        Called once, from a handler thread, when the pool has room again, if it had none.
+     * @return {@code true} if the request was dispatched, {@code false} if its pool was full.
+     */
+    public boolean tryDispatch(int tag, Skeleton service, ByteBuffer data, SocketAddress socketAddress,
+                               int requestId, Runnable onFailure, Runnable onRoom) {
+
+        Pool pool = poolOf(tag, data);
+        Runnable request = newRequest(pool, service, data, socketAddress, requestId, onFailure);
+
+        if (pool == null) {
+            request.run();
+            return true;
+        }
+
+        // The threads of the pool are all started, and take the requests straight from the queue.
+        if (pool.executor.getQueue().offer(request)) return true;
+
+        pool.waiters.add(onRoom);
+
+        // The handlers may have emptied the queue before the waiter was there to be told.
+        if (pool.executor.getQueue().remainingCapacity() > 0) pool.wakeWaiters();
+
+        return false;
+    }
+
+    private Runnable newRequest(Pool pool, Skeleton service, ByteBuffer data, SocketAddress socketAddress,
+                                int requestId, Runnable onFailure) {
+        return () -> {
+            try {
+                service.handle(data, socketAddress, requestId);
+            } catch (Exception e) {
+                System.out.println("server> Failed handling a request: " + e.getMessage());
+                onFailure.run();
+            } finally {
+                BufferPool.shared().release(data);
+                if (pool != null) pool.wakeWaiters();
+            }
+        };
+    }
+
+    private Pool poolOf(int tag, ByteBuffer data) {
+
+        if (routes.isEmpty()) return defaultPool;
+
+        // Every request starts with its operation, written as a varint.
+        int operation = Codec.peekVarInt(data);
+        if (operation >= 0) {
+            Pool pool = routes.get(key(tag, operation));
+            if (pool != null) return pool;
+        }
+
+        return routes.getOrDefault(key(tag, ANY_OPERATION), defaultPool);
+    }
+
+    private static long key(int tag, int operation) {
+        return ((long) tag << 32) | (operation & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A pool of handler threads, with the readers waiting for room on its queue.
+     */
+    private static class Pool {
+
+        private final ThreadPoolExecutor executor; // Threads running the requests, and their queue.
+        private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>(); // Told when the queue has room.
+
+        private Pool(String name, int threads, int queueDepth) {
+
+            AtomicInteger created = new AtomicInteger();
+            ThreadFactory factory = task -> {
+                Thread thread = new Thread(task, name + "-" + created.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueDepth), factory, (task, executor) -> {
+                // The queue is full, the reading thread waits for room.
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            this.executor.prestartAllCoreThreads();
+        }
+
+        /**
+         * Tells the readers waiting for room that there may be some.
+         */
+        private void wakeWaiters() {
+            for (Runnable waiter = waiters.poll(); waiter != null; waiter = waiters.poll()) waiter.run();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.trotiletre.server;
+
+import org.trotiletre.common.ManagerTag;
+import org.trotiletre.common.communication.BufferPool;
+import org.trotiletre.common.communication.Skeleton;
+import org.trotiletre.common.communication.TaggedConnection;
+import org.trotiletre.server.services.OutboundQueue;
+import org.trotiletre.server.services.ResponseManager;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event-driven transport of the server, an alternative to a {@link Worker} thread per connection.
+ * <p>
+ * The connections accepted on a {@link ServerSocketChannel} are spread over a small set of selector loops,
+ * each one multiplexing the reads and writes of all its connections on a single thread. The frames are the
+ * same as those of {@link org.trotiletre.common.communication.TaggedConnection}, an {@code int} tag, request id
+ * and length followed by the data, and each complete frame is handed to the {@link RequestDispatcher}.
+ * The responses queued on the {@link ResponseManager} are written by the loop of their connection, so an idle
+ * connection costs no thread at all. All the responses queued on a connection are written at once, with a single
+ * gathering write of their headers and data.
+ * <p>
+ * The frames are read into buffers of the {@linkplain BufferPool#shared() shared pool}, released once handled,
+ * and the responses are written straight from their own buffers, so no frame is copied on its way.
+ * <p>
+ * The requests must run on the handler pools of the {@link RequestDispatcher}: run on a loop, a slow one, such as
+ * a login hashing its password, would hold back every connection of the loop. For the same reason, a loop never
+ * waits for room on a full pool: the connection whose request does not fit keeps it, and stops being read until
+ * the pool has room, while the other connections of the loop go on.
+ */
+public class SelectorServer {
+
+    private static final int HEADER_SIZE = TaggedConnection.HEADER_SIZE; // Size of the tag, request id and length.
+    private static final int MAX_BATCH = 64; // Maximum number of responses gathered in a single write.
+
+    private final ServerSocketChannel serverChannel; // Channel where the connections are accepted.
+    private final Map<Integer, Skeleton> services; // Service skeletons keyed by service ID.
+    private final ResponseManager responseManager; // Where the responses to the clients are queued.
+    private final RequestDispatcher dispatcher; // Runs the requests read.
+    private final ConnectionReaper reaper; // Closes the silent connections, and cleans up after the closed ones.
+    private final SelectorLoop[] loops; // Loops handling the accepted connections.
+
+    /**
+     * Constructs a new selector server.
+     *
+     * @param serverChannel   The bound channel where the connections are accepted.
+     * @param services        The service skeletons, keyed by service ID.
+     * @param responseManager The response manager of the services.
+     * @param dispatcher      The dispatcher running the requests.
+     * @param reaper          The reaper of the connections.
+     * @param loops           The number of selector loops.
+     * @throws IOException              If a selector cannot be opened.
+     * @throws IllegalArgumentException If the dispatcher runs the requests on the reading threads.
+     */
+    public SelectorServer(ServerSocketChannel serverChannel, Map<Integer, Skeleton> services,
+                          ResponseManager responseManager, RequestDispatcher dispatcher, ConnectionReaper reaper,
+                          int loops) throws IOException {
+
+        if (dispatcher.runsOnReadingThreads())
+            throw new IllegalArgumentException("The selector transport needs handler threads to run the requests.");
+
+        this.serverChannel = serverChannel;
+        this.services = services;
+        this.responseManager = responseManager;
+        this.dispatcher = dispatcher;
+        this.reaper = reaper;
+        this.loops = new SelectorLoop[Math.max(loops, 1)];
+
+        for (int i = 0; i < this.loops.length; i++) this.loops[i] = new SelectorLoop(Selector.open());
+    }
+
+    /**
+     * Starts the selector loops, and accepts connections on the calling thread, handing them to the loops
+     * in turn.
+     *
+     * @throws IOException If the server channel fails.
+     */
+    public void run() throws IOException {
+
+        for (int i = 0; i < loops.length; i++) new Thread(loops[i], "selector-" + i).start();
+
+        int next = 0;
+
+        while (true) {
+
+            SocketChannel channel = serverChannel.accept();
+
+            try {
+                channel.configureBlocking(false);
+                loops[next].add(channel);
+                next = (next + 1) % loops.length;
+
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A selector thread, reading the frames and writing the responses of its connections.
+     */
+    private class SelectorLoop implements Runnable {
+
+        private final Selector selector; // Selector of the connections of this loop.
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>(); // Channels to register.
+        private final Queue<Connection> writable = new ConcurrentLinkedQueue<>(); // Connections with responses.
+        private final Queue<Connection> failed = new ConcurrentLinkedQueue<>(); // Connections to close.
+        private final Queue<Connection> resumable = new ConcurrentLinkedQueue<>(); // Stalled, their pool has room.
+
+        private SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        private void wakeForWrite(Connection connection) {
+            writable.add(connection);
+            selector.wakeup();
+        }
+
+        private void closeLater(Connection connection) {
+            failed.add(connection);
+            selector.wakeup();
+        }
+
+        private void resumeLater(Connection connection) {
+            resumable.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                registerAccepted();
+
+                // Requests of these connections failed on a handler thread.
+                for (Connection connection = failed.poll(); connection != null; connection = failed.poll())
+                    connection.close();
+
+                // The pools of these connections' stalled requests have room again.
+                for (Connection connection = resumable.poll(); connection != null; connection = resumable.poll())
+                    connection.resume();
+
+                // Responses were queued from other threads, the connections must now wait to be writable.
+                for (Connection connection = writable.poll(); connection != null; connection = writable.poll()) {
+                    if (connection.key.isValid())
+                        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+
+                    } catch (Exception e) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private void registerAccepted() {
+
+            for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(channel, key, this);
+                    key.attach(connection);
+
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection handled by a selector loop, with its partially read and written frames.
+     */
+    private class Connection {
+
+        private final SocketChannel channel; // The connection channel.
+        private final SelectionKey key; // Registration of the channel on its loop.
+        private final SelectorLoop loop; // Loop handling the connection.
+        private final SocketAddress address; // Address of the client, identifying it on the response manager.
+        private final ConnectionReaper.Session session; // Activity of the connection.
+        private final OutboundQueue responses; // Responses waiting to be written.
+
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE); // Header of the frame being read.
+        private ByteBuffer body; // Data of the frame being read, leased from the pool, null while reading the header.
+        private int tag; // Tag of the frame being read.
+        private int requestId; // Request id of the frame being read.
+        private ByteBuffer stalled; // Data of a request its pool had no room for, null if none.
+        private int stalledTag; // Tag of the stalled request.
+        private int stalledRequestId; // Request id of the stalled request.
+        private final ByteBuffer[] output = new ByteBuffer[2 * MAX_BATCH]; // Headers and data being written.
+        private final ByteBuffer[] headers = new ByteBuffer[MAX_BATCH]; // Headers of the output, reused.
+        private final ResponseManager.SenderData[] written = new ResponseManager.SenderData[MAX_BATCH]; // Responses of the output.
+        private int writtenCount = 0; // Number of responses in the output.
+        private int outputFrom = 0; // First buffer of the output not fully written.
+        private int outputTo = 0; // End of the buffers of the output.
+        private boolean closing = false; // Whether the connection closes once the output is written.
+        private boolean closed = false; // Whether the connection was closed.
+
+        private Connection(SocketChannel channel, SelectionKey key, SelectorLoop loop) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.address = channel.getRemoteAddress();
+            this.responses = responseManager.register(address, () -> loop.wakeForWrite(this), () -> loop.closeLater(this));
+            this.session = reaper.opened(address, () -> loop.closeLater(this));
+        }
+
+        /**
+         * Reads what is available on the channel, handing each complete frame to its service.
+         */
+        private void read() throws Exception {
+
+            while (true) {
+
+                ByteBuffer target = body == null ? header : body;
+                int read = channel.read(target);
+
+                if (read == -1) {
+                    close();
+                    return;
+                }
+
+                if (target.hasRemaining()) return;
+
+                if (body == null) {
+                    header.flip();
+                    tag = header.getInt();
+                    requestId = header.getInt();
+                    int size = header.getInt();
+                    header.clear();
+
+                    // Past the cap, the frame is refused before leasing its buffer, and the connection closed.
+                    if (size < 0 || size > TaggedConnection.MAX_FRAME_SIZE)
+                        throw new IOException("Invalid frame size " + size + ".");
+                    body = BufferPool.shared().acquire(size);
+
+                } else {
+                    ByteBuffer data = body.flip();
+                    body = null;
+                    session.touch();
+
+                    if (tag == ManagerTag.HEARTBEAT.tag) {
+                        BufferPool.shared().release(data);
+                        continue;
+                    }
+
+                    if (!dispatch(tag, data, requestId)) return;
+                }
+            }
+        }
+
+        /**
+         * Hands a request to the dispatcher, or keeps it and stops reading the connection if its pool is full.
+         *
+         * @return {@code true} if the request was dispatched.
+         */
+        private boolean dispatch(int tag, ByteBuffer data, int requestId) {
+
+            Skeleton service = services.get(tag);
+            if (dispatcher.tryDispatch(tag, service, data, address, requestId, () -> loop.closeLater(this),
+                    () -> loop.resumeLater(this)))
+                return true;
+
+            stalled = data;
+            stalledTag = tag;
+            stalledRequestId = requestId;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+            return false;
+        }
+
+        /**
+         * Dispatches the stalled request again, and goes back to reading the connection once it is dispatched.
+         */
+        private void resume() {
+
+            if (closed || stalled == null) return;
+
+            ByteBuffer data = stalled;
+            stalled = null;
+
+            if (dispatch(stalledTag, data, stalledRequestId))
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Writes the queued responses while the channel accepts them.
+         */
+        private void write() throws IOException {
+
+            while (true) {
+
+                if (outputFrom == outputTo) {
+
+                    if (closing) {
+                        close();
+                        return;
+                    }
+
+                    gather();
+
+                    if (outputFrom == outputTo && !closing) {
+                        // Nothing else to write, the connection goes back to waiting for requests, unless stalled.
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                channel.write(output, outputFrom, outputTo - outputFrom);
+
+                while (outputFrom < outputTo && !output[outputFrom].hasRemaining()) output[outputFrom++] = null;
+                if (outputFrom < outputTo) return;
+            }
+        }
+
+        /**
+         * Moves the queued responses to the output, each one as a header buffer followed by its data.
+         */
+        private void gather() {
+
+            // The previous responses were fully written, their buffers can go back to the pool.
+            for (int i = 0; i < writtenCount; i++) {
+                written[i].release();
+                written[i] = null;
+            }
+
+            writtenCount = 0;
+            outputFrom = 0;
+            outputTo = 0;
+
+            while (writtenCount < MAX_BATCH) {
+
+                ResponseManager.SenderData response = responses.poll();
+                if (response == null) return;
+
+                if (response.stop()) {
+                    closing = true;
+                    return;
+                }
+
+                if (headers[writtenCount] == null) headers[writtenCount] = ByteBuffer.allocate(HEADER_SIZE);
+                ByteBuffer header = headers[writtenCount].clear();
+                header.putInt(response.tag()).putInt(response.requestId()).putInt(response.data().remaining()).flip();
+
+                written[writtenCount++] = response;
+                output[outputTo++] = header;
+                output[outputTo++] = response.data();
+            }
+        }
+
+        private void close() {
+
+            if (closed) return;
+            closed = true;
+
+            key.cancel();
+            reaper.closed(address);
+
+            // The frame being read, and the responses being written, will never be done with.
+            if (body != null) {
+                BufferPool.shared().release(body);
+                body = null;
+            }
+
+            if (stalled != null) {
+                BufferPool.shared().release(stalled);
+                stalled = null;
+            }
+
+            for (int i = 0; i < writtenCount; i++) {
+                written[i].release();
+                written[i] = null;
+            }
+            writtenCount = 0;
+
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+
+            System.out.println("server> Closed connection a client.");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.trotiletre.server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the virtual threads of the connections, see {@link RMIServer#useVirtualThreads()}.
+ * <p>
+ * This is the Java 17 version, without virtual threads. The server jar is a multi-release jar, and on a Java 21
+ * runtime the version in {@code META-INF/versions/21}, built from {@code src/main/java21}, replaces it.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns whether the runtime has virtual threads.
+     */
+    static boolean available() {
+        return false;
+    }
+
+    /**
+     * Returns a factory of virtual threads named {@code name} followed by a counter.
+     *
+     * @throws UnsupportedOperationException Always, as this version is only loaded without Java 21.
+     */
+    static ThreadFactory factory(String name) {
+        throw new UnsupportedOperationException("Virtual threads require a Java 21 runtime and the multi-release"
+                + " server jar, running on Java " + Runtime.version().feature() + ".");
+    }
+}
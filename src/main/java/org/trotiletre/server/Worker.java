@@ -1,5 +1,7 @@
 package org.trotiletre.server;
 
+import org.trotiletre.common.ManagerTag;
+import org.trotiletre.common.communication.BufferPool;
 import org.trotiletre.common.communication.Skeleton;
 import org.trotiletre.common.communication.TaggedConnection;
 import org.trotiletre.server.services.ResponseManager;
@@ -11,7 +13,7 @@ import java.util.Map;
 /**
  * Class representing a worker that processes incoming requests from a client.
  * This worker is created for each new connection and runs in a separate thread.
- * The worker processes requests until the connection is closed.
+ * The worker reads requests until the connection is closed, handing them to the {@link RequestDispatcher}.
  */
 public class Worker implements Runnable {
 
@@ -19,13 +21,20 @@ public class Worker implements Runnable {
     private Socket socket;
     private TaggedConnection connection;
     private Map<Integer, Skeleton> services;
+    private final RequestDispatcher dispatcher; // Runs the requests read.
+    private final ConnectionReaper reaper; // Closes the connection if it goes silent, and cleans up after it.
+    private final ConnectionReaper.Session session; // Activity of the connection.
 
-    public Worker(Socket socket, Map<Integer, Skeleton> services, ResponseManager responseManager) throws IOException {
+    public Worker(Socket socket, Map<Integer, Skeleton> services, ResponseManager responseManager,
+                  RequestDispatcher dispatcher, ConnectionReaper reaper) throws IOException {
         this.socket = socket;
         this.services = services;
+        this.dispatcher = dispatcher;
+        this.reaper = reaper;
         this.connection = new TaggedConnection(socket);
         this.responseManager = responseManager;
         this.responseManager.register(socket);
+        this.session = reaper.opened(socket.getRemoteSocketAddress(), this::close);
     }
 
     @Override
@@ -34,25 +43,39 @@ public class Worker implements Runnable {
         try {
 
             while (true) {
-                TaggedConnection.Frame receivedMessage = connection.receive();
+                TaggedConnection.BufferFrame receivedMessage = connection.receive(BufferPool.shared());
+                session.touch();
+
+                if (receivedMessage.tag == ManagerTag.HEARTBEAT.tag) {
+                    BufferPool.shared().release(receivedMessage.data);
+                    continue;
+                }
+
                 Skeleton service = services.get(receivedMessage.tag);
-                service.handle(receivedMessage.data, socket.getRemoteSocketAddress());
+                dispatcher.dispatch(receivedMessage.tag, service, receivedMessage.data, socket.getRemoteSocketAddress(),
+                        receivedMessage.requestId, this::close);
             }
 
         } catch (Exception e) {
-            this.responseManager.remove(socket.getRemoteSocketAddress());
+            this.reaper.closed(socket.getRemoteSocketAddress());
 
             System.out.println("server> Closed connection a client.");
 
         } finally {
+            close();
+        }
 
-            try {
-                socket.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    }
 
-        }
+    /**
+     * Closes the socket, which also ends the reading loop if it is still running.
+     */
+    private void close() {
 
+        try {
+            socket.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
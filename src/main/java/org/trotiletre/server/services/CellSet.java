@@ -0,0 +1,139 @@
+package org.trotiletre.server.services;
+
+import org.trotiletre.models.utils.Location;
+
+import java.util.*;
+
+/**
+ * A set of map cells indexed in row-major order, so the cells within a distance of a location can be found
+ * without going through the whole set.
+ * <p>
+ * This class is not thread safe, it is guarded by the lock of its owner.
+ */
+class CellSet extends AbstractSet<Location> {
+
+    private static final Comparator<Location> ROW_MAJOR =
+            Comparator.comparingInt(Location::y).thenComparingInt(Location::x);
+
+    private final NavigableSet<Location> cells = new TreeSet<>(ROW_MAJOR); // The cells, sorted by row and column.
+
+    @Override
+    public boolean add(Location cell) {
+        return cells.add(cell);
+    }
+
+    @Override
+    public boolean remove(Object cell) {
+        return cell instanceof Location && cells.remove(cell);
+    }
+
+    @Override
+    public boolean contains(Object cell) {
+        return cell instanceof Location && cells.contains(cell);
+    }
+
+    @Override
+    public int size() {
+        return cells.size();
+    }
+
+    @Override
+    public void clear() {
+        cells.clear();
+    }
+
+    /**
+     * Lists the cells at Manhattan distance of at most {@code range} from {@code center}.
+     * <p>
+     * Each row of the range diamond is looked up as an interval of the index, unless the set is small enough
+     * that filtering every cell is cheaper. Only the rows between the first and the last cell of the set are
+     * looked up, so the work is bounded by the set whatever the range.
+     *
+     * @param center Center of the search.
+     * @param range  Maximum distance to the center.
+     * @return The cells found, in row-major order.
+     */
+    List<Location> withinRange(Location center, int range) {
+
+        List<Location> found = new ArrayList<>();
+        if (range < 0 || cells.isEmpty()) return found;
+
+        long fromDy = Math.max(-(long) range, (long) cells.first().y() - center.y());
+        long toDy = Math.min(range, (long) cells.last().y() - center.y());
+        if (fromDy > toDy) return found;
+
+        if (cells.size() <= toDy - fromDy + 1) {
+            for (Location cell : cells) {
+                if (distance(cell, center) <= range) found.add(cell);
+            }
+            return found;
+        }
+
+        for (long dy = fromDy; dy <= toDy; dy++) {
+            long span = range - Math.abs(dy);
+            int y = (int) (center.y() + dy);
+            found.addAll(cells.subSet(new Location(clamp(center.x() - span), y), true,
+                    new Location(clamp(center.x() + span), y), true));
+        }
+
+        return found;
+    }
+
+    /**
+     * Lists the cells at Manhattan distance of exactly {@code ring} from {@code center}, looking up each of the
+     * cells of the ring on the rows of the set, unless the set is small enough that filtering every cell is cheaper.
+     *
+     * @param center Center of the ring.
+     * @param ring   Distance to the center.
+     * @return The cells found, in row-major order.
+     */
+    List<Location> atDistance(Location center, int ring) {
+
+        List<Location> found = new ArrayList<>();
+        if (ring < 0 || cells.isEmpty()) return found;
+
+        long fromDy = Math.max(-(long) ring, (long) cells.first().y() - center.y());
+        long toDy = Math.min(ring, (long) cells.last().y() - center.y());
+        if (fromDy > toDy) return found;
+
+        if (cells.size() <= 2 * (toDy - fromDy + 1)) {
+            for (Location cell : cells) {
+                if (distance(cell, center) == ring) found.add(cell);
+            }
+            return found;
+        }
+
+        for (long dy = fromDy; dy <= toDy; dy++) {
+            long span = ring - Math.abs(dy);
+            int y = (int) (center.y() + dy);
+
+            addIfContained(found, center.x() - span, y);
+            if (span > 0) addIfContained(found, center.x() + span, y);
+        }
+
+        return found;
+    }
+
+    private void addIfContained(List<Location> found, long x, int y) {
+        if (x < Integer.MIN_VALUE || x > Integer.MAX_VALUE) return;
+
+        Location cell = new Location((int) x, y);
+        if (cells.contains(cell)) found.add(cell);
+    }
+
+    /**
+     * Manhattan distance between two locations, which can be farther apart than an int holds.
+     */
+    private static long distance(Location cell, Location center) {
+        return Math.abs((long) cell.x() - center.x()) + Math.abs((long) cell.y() - center.y());
+    }
+
+    private static int clamp(long coordinate) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(coordinate, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public Iterator<Location> iterator() {
+        return cells.iterator();
+    }
+}
@@ -0,0 +1,80 @@
+package org.trotiletre.server.services;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Two-dimensional Fenwick tree over the free scooter counts of a square area of the map.
+ * <p>
+ * Both point updates and rectangle sums take {@code O(log² n)}, so checking whether a whole neighbourhood
+ * has free scooters no longer requires visiting each of its cells. The nodes are atomic, since claims update
+ * the counts under shared tile locks; a sum racing with an update may miss it, but never sees a torn node.
+ */
+class FreeCountTree {
+
+    private final int size; // Side of the area covered by the tree.
+    private final AtomicIntegerArray tree; // Nodes of the tree, in row-major order.
+
+    /**
+     * Creates a tree with every count at zero.
+     *
+     * @param size Side of the area covered by the tree.
+     */
+    FreeCountTree(int size) {
+        this.size = size;
+        this.tree = new AtomicIntegerArray(size * size);
+    }
+
+    /**
+     * Adds {@code delta} to the count of the cell {@code (x, y)}.
+     *
+     * @param x     Column of the cell, relative to the area.
+     * @param y     Row of the cell, relative to the area.
+     * @param delta Variation of the count.
+     * @throws IllegalArgumentException If the cell is outside the area.
+     */
+    void add(int x, int y, int delta) {
+
+        // A negative index would never grow past the area: -1 | 0 is -1 again.
+        if (x < 0 || y < 0 || x >= size || y >= size)
+            throw new IllegalArgumentException("Cell (" + x + "," + y + ") outside the area of the tree.");
+
+        for (int i = y; i < size; i |= i + 1) {
+            for (int j = x; j < size; j |= j + 1) tree.addAndGet(i * size + j, delta);
+        }
+    }
+
+    /**
+     * Sums the counts of the rectangle {@code [fromX, toX] x [fromY, toY]}, clipped to the area.
+     *
+     * @param fromX First column of the rectangle.
+     * @param fromY First row of the rectangle.
+     * @param toX   Last column of the rectangle.
+     * @param toY   Last row of the rectangle.
+     * @return The sum of the counts.
+     */
+    int sum(int fromX, int fromY, int toX, int toY) {
+
+        fromX = Math.max(fromX, 0);
+        fromY = Math.max(fromY, 0);
+        toX = Math.min(toX, size - 1);
+        toY = Math.min(toY, size - 1);
+
+        if (fromX > toX || fromY > toY) return 0;
+
+        return prefix(toX, toY) - prefix(fromX - 1, toY) - prefix(toX, fromY - 1) + prefix(fromX - 1, fromY - 1);
+    }
+
+    /**
+     * Sums the counts of the rectangle {@code [0, x] x [0, y]}.
+     */
+    private int prefix(int x, int y) {
+
+        int sum = 0;
+
+        for (int i = y; i >= 0; i = (i & (i + 1)) - 1) {
+            for (int j = x; j >= 0; j = (j & (j + 1)) - 1) sum += tree.get(i * size + j);
+        }
+
+        return sum;
+    }
+}
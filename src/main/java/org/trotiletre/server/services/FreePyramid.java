@@ -0,0 +1,103 @@
+package org.trotiletre.server.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Multi-resolution counts of the free scooters of the {@link ScooterMap}, from the tiles up to the whole map.
+ * <p>
+ * A block of level {@code l} is a square of {@code 2^l} cells aligned on multiples of its side, and sums the four
+ * blocks of level {@code l - 1} it covers. The lowest level is {@link #TILE_LEVEL}, one block per {@link MapTile},
+ * whose cells are already summarized by its own bitmap and tree; the highest level has a single block covering
+ * the map. Searches go down from the top, skipping the blocks without free scooters.
+ * <p>
+ * Dense maps keep each level in an array, sparse maps keep only the blocks ever counted, in a hash.
+ * The counts are atomic, since reservations update them under shared tile locks.
+ */
+class FreePyramid {
+
+    static final int TILE_LEVEL = Integer.numberOfTrailingZeros(MapTile.SIZE); // Level of the blocks of a tile.
+
+    private final int topLevel; // Level of the block covering the whole map.
+    private final int[] blocksPerRow; // Number of blocks on each row of the map, for each level.
+    private final AtomicIntegerArray[] levels; // Counts of each level in row-major order, if dense.
+    private final ConcurrentHashMap<Long, AtomicInteger> blocks; // Counts of the blocks in use by key, if sparse.
+
+    /**
+     * Creates a pyramid with every count at zero.
+     *
+     * @param mapSize Size of the rows and columns of the map.
+     * @param storage How the counts are kept, following the map.
+     */
+    FreePyramid(int mapSize, ScooterMap.Storage storage) {
+
+        int top = TILE_LEVEL;
+        while ((1L << top) < mapSize) top++;
+        this.topLevel = top;
+
+        this.blocksPerRow = new int[topLevel + 1];
+        for (int level = TILE_LEVEL; level <= topLevel; level++)
+            blocksPerRow[level] = (int) ((mapSize + (1L << level) - 1) >> level);
+
+        if (storage == ScooterMap.Storage.SPARSE) {
+            this.levels = null;
+            this.blocks = new ConcurrentHashMap<>();
+        } else {
+            this.levels = new AtomicIntegerArray[topLevel + 1];
+            for (int level = TILE_LEVEL; level <= topLevel; level++)
+                levels[level] = new AtomicIntegerArray(blocksPerRow[level] * blocksPerRow[level]);
+            this.blocks = null;
+        }
+    }
+
+    int topLevel() {
+        return topLevel;
+    }
+
+    /**
+     * Returns the number of blocks on each row of the map, at the given level.
+     */
+    int blocksPerRow(int level) {
+        return blocksPerRow[level];
+    }
+
+    /**
+     * Adds {@code delta} to the count of the cell {@code (x, y)}, on every level.
+     *
+     * @param x     Column of the cell.
+     * @param y     Row of the cell.
+     * @param delta Variation of the count.
+     */
+    void add(int x, int y, int delta) {
+
+        for (int level = TILE_LEVEL; level <= topLevel; level++) {
+            int blockX = x >> level;
+            int blockY = y >> level;
+
+            if (levels != null) levels[level].addAndGet(blockY * blocksPerRow[level] + blockX, delta);
+            else blocks.computeIfAbsent(key(level, blockX, blockY), key -> new AtomicInteger()).addAndGet(delta);
+        }
+    }
+
+    /**
+     * Returns the count of a block.
+     *
+     * @param level  Level of the block.
+     * @param blockX Column of the block, in blocks of its level.
+     * @param blockY Row of the block, in blocks of its level.
+     * @return The number of free scooters in the block, {@code 0} outside the map.
+     */
+    int count(int level, int blockX, int blockY) {
+
+        if (blockX < 0 || blockY < 0 || blockX >= blocksPerRow[level] || blockY >= blocksPerRow[level]) return 0;
+        if (levels != null) return levels[level].get(blockY * blocksPerRow[level] + blockX);
+
+        AtomicInteger count = blocks.get(key(level, blockX, blockY));
+        return count == null ? 0 : count.get();
+    }
+
+    private static long key(int level, int blockX, int blockY) {
+        return ((long) level << 58) | ((long) blockX << 29) | blockY;
+    }
+}
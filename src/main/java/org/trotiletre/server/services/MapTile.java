@@ -0,0 +1,140 @@
+package org.trotiletre.server.services;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The cells of a square tile of the {@link ScooterMap}, {@value TileLocks#TILE_SIZE} cells wide, matching the
+ * tiles of {@link TileLocks}.
+ * <p>
+ * A tile keeps the heads of the scooter lists of its cells, their free scooter counts, a bitmap of the cells with
+ * free scooters (a row of the tile fits in one word), and a tree to sum the free counts of any rectangle of it.
+ * The cells are addressed by their map coordinates, which must fall inside the tile.
+ */
+class MapTile {
+
+    static final int SIZE = TileLocks.TILE_SIZE; // Side of a tile.
+
+    final int originX; // Column of the first cell of the tile.
+    final int originY; // Row of the first cell of the tile.
+    final int[] heads; // First scooter on each cell, in row-major order, chained through the store.
+
+    // Reservations update these under shared tile locks, hence the atomic arrays.
+    private final AtomicIntegerArray freeCount; // Number of free scooters on each cell, in row-major order.
+    private final AtomicLongArray freeCells; // Bitmap of the cells holding at least one free scooter, a word per row.
+    private final FreeCountTree freeTree; // Free scooter counts, for counting whole areas at once.
+
+    /**
+     * Creates a tile without scooters.
+     *
+     * @param tileX Column of the tile, in tiles.
+     * @param tileY Row of the tile, in tiles.
+     */
+    MapTile(int tileX, int tileY) {
+
+        this.originX = tileX * SIZE;
+        this.originY = tileY * SIZE;
+        this.heads = new int[SIZE * SIZE];
+        Arrays.fill(heads, ScooterStore.NONE);
+
+        this.freeCount = new AtomicIntegerArray(SIZE * SIZE);
+        this.freeCells = new AtomicLongArray(SIZE);
+        this.freeTree = new FreeCountTree(SIZE);
+    }
+
+    /**
+     * Position of the cell {@code (x, y)} on the arrays of the tile.
+     *
+     * @throws IllegalArgumentException If the cell is not on the tile, where it would alias a cell that is.
+     */
+    int slot(int x, int y) {
+        int column = x - originX;
+        int row = y - originY;
+        if (column < 0 || row < 0 || column >= SIZE || row >= SIZE)
+            throw new IllegalArgumentException("Cell (" + x + "," + y + ") outside the tile.");
+        return row * SIZE + column;
+    }
+
+    int freeCount(int x, int y) {
+        return freeCount.get(slot(x, y));
+    }
+
+    /**
+     * Updates the free scooter counter of a cell, keeping the bitmap and the tree in sync.
+     * <p>
+     * Reservations decrement counters concurrently, while increments only happen under an exclusive tile lock.
+     * The bitmap is therefore only touched on the transitions from and to zero, which one thread sees at a time.
+     *
+     * @param x     Column of the cell.
+     * @param y     Row of the cell.
+     * @param delta Variation of the number of free scooters.
+     */
+    void addFreeScooters(int x, int y, int delta) {
+
+        int count = freeCount.addAndGet(slot(x, y), delta);
+        long bit = 1L << (x - originX);
+
+        freeTree.add(x - originX, y - originY, delta);
+
+        if (count > 0 && count - delta <= 0) freeCells.getAndUpdate(y - originY, word -> word | bit);
+        else if (count <= 0 && count - delta > 0) freeCells.getAndUpdate(y - originY, word -> word & ~bit);
+    }
+
+    /**
+     * Returns the cells of row {@code y} in {@code [fromX, toX]} holding at least one free scooter, as a bitmap
+     * where bit {@code i} stands for the column {@code originX + i}.
+     *
+     * @param y     Row of the cells, inside the tile.
+     * @param fromX First column, clipped to the tile.
+     * @param toX   Last column, clipped to the tile.
+     * @return The bitmap, {@code 0} if there is none.
+     */
+    long freeCells(int y, int fromX, int toX) {
+
+        int from = Math.max(clip(fromX, originX), 0);
+        int to = Math.min(clip(toX, originX), SIZE - 1);
+        if (from > to) return 0;
+
+        return freeCells.get(y - originY) & (-1L << from) & (-1L >>> (63 - to));
+    }
+
+    /**
+     * Finds the last cell of row {@code y}, up to column {@code toX}, holding at least one free scooter.
+     *
+     * @param y   Row of the cells, inside the tile.
+     * @param toX Last column to consider, clipped to the tile.
+     * @return The column of the cell, or {@code -1} if there is none on the tile.
+     */
+    int lastFreeCell(int y, int toX) {
+        long free = freeCells(y, originX, toX);
+        return free == 0 ? -1 : originX + 63 - Long.numberOfLeadingZeros(free);
+    }
+
+    /**
+     * Finds the first cell of row {@code y}, from column {@code fromX} on, holding at least one free scooter.
+     *
+     * @param y     Row of the cells, inside the tile.
+     * @param fromX First column to consider, clipped to the tile.
+     * @return The column of the cell, or {@code -1} if there is none on the tile.
+     */
+    int firstFreeCell(int y, int fromX) {
+        long free = freeCells(y, fromX, originX + SIZE - 1);
+        return free == 0 ? -1 : originX + Long.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * Sums the free scooters of the rectangle {@code [fromX, toX] x [fromY, toY]}, clipped to the tile.
+     */
+    int sumFree(int fromX, int fromY, int toX, int toY) {
+        return freeTree.sum(clip(fromX, originX), clip(fromY, originY), clip(toX, originX), clip(toY, originY));
+    }
+
+    /**
+     * Returns a map coordinate relative to the tile, between {@code -1} and {@link #SIZE}, so that the bounds of a
+     * search far past the tile, even near the ends of the int range, clip to it instead of wrapping around.
+     */
+    private static int clip(int coordinate, int origin) {
+        return (int) Math.max(-1, Math.min((long) coordinate - origin, SIZE));
+    }
+}
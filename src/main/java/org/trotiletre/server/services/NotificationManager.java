@@ -3,15 +3,27 @@ package org.trotiletre.server.services;
 import org.trotiletre.common.INotificationManager;
 import org.trotiletre.models.utils.Location;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Keeps the locations each user is subscribed to for reward notifications.
+ * <p>
+ * The subscriptions are also indexed on a grid of buckets of {@link #BUCKET_SIZE} cells: each one is added to
+ * every bucket its radius reaches, so the users affected by a change on some cells are found by looking at the
+ * buckets of these cells only, whatever the number of users. The subscriptions whose radius reaches more than
+ * {@link #MAX_BUCKETS} buckets are kept apart, and checked on every lookup.
+ */
 public class NotificationManager implements INotificationManager {
+    static final int BUCKET_SIZE = 16; // Side of the square of cells of a bucket of the index.
+    static final int MAX_BUCKETS = 256; // Maximum number of buckets a subscription is indexed in.
+
     private final Map<String, Set<LocationData>> userMap = new HashMap<>();
+    private final Map<Long, Set<Subscription>> buckets = new HashMap<>(); // Subscriptions reaching each bucket.
+    private final Set<Subscription> wideSubscriptions = new HashSet<>(); // Subscriptions reaching too many buckets.
+    private final Set<String> newSubscribers = new HashSet<>(); // Users subscribed to a location since the last drain.
+    private final Map<String, Delivered> delivered = new HashMap<>(); // Rewards each user's client was last told.
     private final Lock lock = new ReentrantLock();
 
     public boolean register(String user) {
@@ -42,7 +54,11 @@ public class NotificationManager implements INotificationManager {
             if (locationDataSet == null)
                 return false;
 
-            locationDataSet.add(new LocationData(location, radius));
+            LocationData locationData = new LocationData(location, radius);
+            if (locationDataSet.add(locationData)) {
+                index(new Subscription(user, locationData), true);
+                this.newSubscribers.add(user);
+            }
             return true;
         } finally {
             lock.unlock();
@@ -52,10 +68,14 @@ public class NotificationManager implements INotificationManager {
     public boolean remove(String user) {
         lock.lock();
         try {
-            if (!this.userMap.containsKey(user))
+            Set<LocationData> locationDataSet = this.userMap.remove(user);
+            if (locationDataSet == null)
                 return false;
 
-            this.userMap.remove(user);
+            for (LocationData locationData : locationDataSet)
+                index(new Subscription(user, locationData), false);
+            this.newSubscribers.remove(user);
+            this.delivered.remove(user);
             return true;
         } finally {
             lock.unlock();
@@ -84,7 +104,147 @@ public class NotificationManager implements INotificationManager {
         }
     }
 
+    /**
+     * Finds the users with a subscription whose radius reaches any of the given cells.
+     *
+     * @param cells The cells.
+     * @return The users found.
+     */
+    public Set<String> getSubscribersNear(Collection<Location> cells) {
+        lock.lock();
+        try {
+            Set<String> users = new HashSet<>();
+
+            for (Location cell : cells) {
+                Set<Subscription> bucket = this.buckets.get(bucketKey(bucketOf(cell.x()), bucketOf(cell.y())));
+                if (bucket != null)
+                    addReaching(bucket, cell, users);
+                addReaching(this.wideSubscriptions, cell, users);
+            }
+
+            return users;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the users who subscribed to a location since the last call, so they are told about the rewards
+     * already there.
+     *
+     * @return The users.
+     */
+    public Set<String> drainNewSubscribers() {
+        lock.lock();
+        try {
+            Set<String> users = new HashSet<>(this.newSubscribers);
+            this.newSubscribers.clear();
+            return users;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the rewards the client of a user was last told about.
+     *
+     * @param user The user.
+     * @return The rewards and the number of the notification that told them, or null if the client is not known
+     * to hold any, and must be sent a snapshot.
+     */
+    public Delivered getDelivered(String user) {
+        lock.lock();
+        try {
+            return this.delivered.get(user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the rewards the client of a user was told about, if the user is still registered.
+     *
+     * @param user      The user.
+     * @param delivered The rewards and the number of the notification, or null if a notification was lost.
+     */
+    public void setDelivered(String user, Delivered delivered) {
+        lock.lock();
+        try {
+            if (delivered == null)
+                this.delivered.remove(user);
+            else if (this.userMap.containsKey(user))
+                this.delivered.put(user, delivered);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void addReaching(Set<Subscription> subscriptions, Location cell, Set<String> users) {
+        for (Subscription subscription : subscriptions) {
+            LocationData locationData = subscription.locationData();
+            if (!users.contains(subscription.user())
+                    && locationData.location().manhattanDistance(cell) <= locationData.radius())
+                users.add(subscription.user());
+        }
+    }
+
+    /**
+     * Adds a subscription to, or removes it from, the buckets its radius reaches. Must hold the lock.
+     */
+    private void index(Subscription subscription, boolean add) {
+        Location location = subscription.locationData().location();
+        int radius = Math.max(subscription.locationData().radius(), 0);
+
+        long fromX = Math.floorDiv((long) location.x() - radius, BUCKET_SIZE);
+        long toX = Math.floorDiv((long) location.x() + radius, BUCKET_SIZE);
+        long fromY = Math.floorDiv((long) location.y() - radius, BUCKET_SIZE);
+        long toY = Math.floorDiv((long) location.y() + radius, BUCKET_SIZE);
+
+        if ((toX - fromX + 1) * (toY - fromY + 1) > MAX_BUCKETS) {
+            if (add) this.wideSubscriptions.add(subscription);
+            else this.wideSubscriptions.remove(subscription);
+            return;
+        }
+
+        for (int by = (int) fromY; by <= toY; by++) {
+            for (int bx = (int) fromX; bx <= toX; bx++) {
+                long key = bucketKey(bx, by);
+
+                if (add) {
+                    this.buckets.computeIfAbsent(key, k -> new HashSet<>()).add(subscription);
+                } else {
+                    Set<Subscription> bucket = this.buckets.get(key);
+                    if (bucket != null && bucket.remove(subscription) && bucket.isEmpty())
+                        this.buckets.remove(key);
+                }
+            }
+        }
+    }
+
+    private static int bucketOf(int coordinate) {
+        return Math.floorDiv(coordinate, BUCKET_SIZE);
+    }
+
+    private static long bucketKey(int bucketX, int bucketY) {
+        return ((long) bucketX << 32) | (bucketY & 0xFFFFFFFFL);
+    }
+
     public record LocationData(Location location, int radius) {
     }
 
+    /**
+     * The rewards the client of a user was told about.
+     *
+     * @param version The number of the notification that told them.
+     * @param rewards The rewards.
+     */
+    public record Delivered(int version, Set<RewardManager.RewardPath> rewards) {
+    }
+
+    /**
+     * A location a user is subscribed to, as kept on the index.
+     */
+    private record Subscription(String user, LocationData locationData) {
+    }
+
 }
@@ -0,0 +1,288 @@
+package org.trotiletre.server.services;
+
+import org.trotiletre.common.communication.TaggedConnection;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The responses waiting to be written on a connection, capped in frames and bytes.
+ * <p>
+ * A client that stops reading would otherwise have its notifications pile up on the server without limit.
+ * What happens past the caps is up to the {@link Policy}. The replies to requests are never dropped, as their
+ * clients wait for them, but the notifications can be. The replies still count toward the caps: one that does not
+ * fit the bytes cap, even once the notifications are dropped, comes from a client pipelining requests without
+ * reading the replies, which is disconnected whatever the policy. A lone reply, queued while no other one is, is
+ * the exception: it is not counted against the bytes cap, so that a listing larger than the cap still reaches a
+ * client that reads its replies. A notification that only holds the changes since the
+ * previous one is then useless to its client, so the outcome of queueing a notification tells its sender
+ * whether any notification was lost, including the ones dropped to make room for a reply, and the sender follows up
+ * with a full snapshot. Such a notification is never coalesced, as it does not replace the ones before it.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a client whose queue is full.
+     */
+    public enum Policy {
+        DROP, // Drop the queued notifications, oldest first, or else the new one, to stay within the caps.
+        COALESCE, // Let a notification that supersedes the queued ones of its tag replace them, and DROP past the caps.
+        DISCONNECT // Close the connection.
+    }
+
+    /**
+     * The outcome of queueing a response.
+     */
+    enum Outcome {
+        QUEUED, // Queued within the caps.
+        DROPPED_OLDER, // Queued, after dropping older notifications to make room.
+        DROPPED, // The new notification was dropped, and maybe queued ones as well.
+        COALESCED, // Queued, replacing the queued notifications of its tag.
+        OVERFLOW // Past the caps with the DISCONNECT policy, or a non-lone reply past the bytes cap; nothing queued.
+    }
+
+    private final ArrayDeque<ResponseManager.SenderData> queue = new ArrayDeque<>(); // Responses, oldest first.
+    private final ReentrantLock lock = new ReentrantLock(); // Guards the queue.
+    private final Condition notEmpty = lock.newCondition(); // Signalled when a response is queued.
+
+    private final int maxFrames; // Maximum number of responses queued.
+    private final long maxBytes; // Maximum number of bytes queued, headers included.
+    private final Policy policy; // What to do past the caps.
+    private long bytes = 0; // Number of bytes queued, headers included.
+    private int replies = 0; // Number of replies to requests queued.
+    private boolean lostNotifications = false; // Whether notifications were dropped without their sender knowing.
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param maxFrames The maximum number of responses queued.
+     * @param maxBytes  The maximum number of bytes queued, headers included.
+     * @param policy    What to do past the caps.
+     */
+    OutboundQueue(int maxFrames, long maxBytes, Policy policy) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a response, following the policy. The stop markers are always queued.
+     *
+     * @param data The response.
+     * @return The outcome, {@link Outcome#OVERFLOW} leaving it to the caller to disconnect the client.
+     */
+    Outcome offer(ResponseManager.SenderData data) {
+        return offer(data, true);
+    }
+
+    /**
+     * Queues a response, following the policy. The stop markers are always queued.
+     *
+     * @param data       The response.
+     * @param supersedes Whether a notification replaces the queued ones of its tag with the {@link Policy#COALESCE}
+     *                   policy, as a snapshot does; one that only holds the changes since the previous one does not.
+     * @return The outcome, {@link Outcome#OVERFLOW} leaving it to the caller to disconnect the client.
+     */
+    Outcome offer(ResponseManager.SenderData data, boolean supersedes) {
+
+        try {
+            lock.lock();
+
+            boolean notification = !data.stop() && data.requestId() == TaggedConnection.NO_REQUEST;
+            boolean reply = !data.stop() && !notification;
+            long size = reply && replies == 0 ? 0 : sizeOf(data); // Bytes counted against the cap.
+            Outcome outcome = Outcome.QUEUED;
+
+            // The sender of this notification is the one to learn about the notifications dropped for a reply.
+            if (notification && lostNotifications) {
+                lostNotifications = false;
+                outcome = Outcome.DROPPED_OLDER;
+            }
+
+            if (notification && supersedes && policy == Policy.COALESCE && dropNotifications(data.tag(), 0, 0) > 0)
+                outcome = Outcome.COALESCED;
+
+            if (!data.stop() && overflows(1, size)) {
+
+                if (policy == Policy.DISCONNECT) {
+                    data.release();
+                    return Outcome.OVERFLOW;
+                }
+
+                // Superseded notifications make room first, the new one is dropped if that is not enough.
+                if (dropNotifications(-1, 1, size) > 0) {
+                    if (notification) outcome = Outcome.DROPPED_OLDER;
+                    else lostNotifications = true;
+                }
+
+                if (notification && overflows(1, size)) {
+                    data.release();
+                    return Outcome.DROPPED;
+                }
+
+                if (reply && bytes + size > maxBytes) {
+                    data.release();
+                    return Outcome.OVERFLOW;
+                }
+            }
+
+            queue.add(data);
+            bytes += sizeOf(data);
+            if (reply) replies++;
+            notEmpty.signal();
+
+            return outcome;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest response, waiting for one if there is none.
+     */
+    ResponseManager.SenderData take() throws InterruptedException {
+
+        try {
+            lock.lock();
+
+            while (queue.isEmpty()) notEmpty.await();
+            return remove();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest response.
+     *
+     * @return The response, or null if there is none.
+     */
+    public ResponseManager.SenderData poll() {
+
+        try {
+            lock.lock();
+            return queue.isEmpty() ? null : remove();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest responses, at most {@code max} of them.
+     *
+     * @param target Where the responses are added, oldest first.
+     * @param max    The maximum number of responses taken.
+     * @return The number of responses taken.
+     */
+    int drainTo(Collection<ResponseManager.SenderData> target, int max) {
+
+        try {
+            lock.lock();
+
+            int taken = 0;
+            while (taken < max && !queue.isEmpty()) {
+                target.add(remove());
+                taken++;
+            }
+            return taken;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every queued response.
+     */
+    void clear() {
+
+        try {
+            lock.lock();
+
+            for (ResponseManager.SenderData data : queue) data.release();
+            queue.clear();
+            bytes = 0;
+            replies = 0;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of responses queued.
+     */
+    int size() {
+
+        try {
+            lock.lock();
+            return queue.size();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes queued, headers included.
+     */
+    long bytes() {
+
+        try {
+            lock.lock();
+            return bytes;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ResponseManager.SenderData remove() {
+        ResponseManager.SenderData data = queue.poll();
+        bytes -= sizeOf(data);
+        if (!data.stop() && data.requestId() != TaggedConnection.NO_REQUEST) replies--;
+        return data;
+    }
+
+    private boolean overflows(int frames, long size) {
+        return queue.size() + frames > maxFrames || bytes + size > maxBytes;
+    }
+
+    /**
+     * Drops queued notifications, oldest first. Must hold the lock.
+     *
+     * @param tag    The tag of the notifications dropped, -1 for any.
+     * @param frames If positive, stops as soon as this many more responses, of {@code size} bytes, fit the caps.
+     * @param size   The number of bytes to fit.
+     * @return The number of notifications dropped.
+     */
+    private int dropNotifications(int tag, int frames, long size) {
+
+        int dropped = 0;
+        Iterator<ResponseManager.SenderData> queued = queue.iterator();
+
+        while (queued.hasNext() && (frames <= 0 || overflows(frames, size))) {
+
+            ResponseManager.SenderData data = queued.next();
+            if (data.stop() || data.requestId() != TaggedConnection.NO_REQUEST || (tag != -1 && data.tag() != tag))
+                continue;
+
+            queued.remove();
+            bytes -= sizeOf(data);
+            data.release();
+            dropped++;
+        }
+
+        return dropped;
+    }
+
+    private static long sizeOf(ResponseManager.SenderData data) {
+        return data.data() == null ? 0 : TaggedConnection.HEADER_SIZE + data.data().remaining();
+    }
+}
@@ -1,16 +1,20 @@
 package org.trotiletre.server.services;
 
+import org.trotiletre.common.communication.BufferPool;
 import org.trotiletre.common.communication.TaggedConnection;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,14 +24,82 @@ public class ResponseManager {
     private final Map<String, SocketAddress> userMap = new HashMap<>();
     private final Map<SocketAddress, String> socketMap = new HashMap<>();
     private final Lock mapLock = new ReentrantLock();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Executor executorService; // Runs the responding thread of each connection.
+    private int maxQueuedFrames = 1024; // Maximum number of responses queued on a connection.
+    private long maxQueuedBytes = 4L << 20; // Maximum number of bytes queued on a connection.
+    private OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.COALESCE; // What to do past the caps.
+    private final AtomicLong dropped = new AtomicLong(); // Notifications dropped past the caps.
+    private final AtomicLong coalesced = new AtomicLong(); // Notifications replaced by a newer one.
+    private final AtomicLong disconnected = new AtomicLong(); // Clients disconnected past the caps.
+
+    /**
+     * Constructs a response manager running the responding threads on a pool of platform threads.
+     */
+    public ResponseManager() {
+        this.executorService = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Constructs a response manager running each responding thread on a new thread of a factory, such as
+     * a factory of virtual threads.
+     *
+     * @param threadFactory The factory of the responding threads.
+     */
+    public ResponseManager(ThreadFactory threadFactory) {
+        this.executorService = task -> threadFactory.newThread(task).start();
+    }
+
+    /**
+     * Sets the caps of the responses queued on each connection registered from now on, and what to do with
+     * the clients not reading them fast enough, see {@link OutboundQueue}.
+     *
+     * @param maxFrames The maximum number of responses queued on a connection.
+     * @param maxBytes  The maximum number of bytes queued on a connection.
+     * @param policy    What to do past the caps.
+     */
+    public void setOutboundLimits(int maxFrames, long maxBytes, OutboundQueue.Policy policy) {
+        mapLock.lock();
+        try {
+            this.maxQueuedFrames = maxFrames;
+            this.maxQueuedBytes = maxBytes;
+            this.slowConsumerPolicy = policy;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current depth of the queues of responses, and how often their caps were reached.
+     */
+    public OutboundStats outboundStats() {
+        mapLock.lock();
+        try {
+            long frames = 0, bytes = 0, maxBytes = 0;
+            for (SenderInfo senderInfo : this.senderMap.values()) {
+                long queued = senderInfo.dataQueue.bytes();
+                frames += senderInfo.dataQueue.size();
+                bytes += queued;
+                maxBytes = Math.max(maxBytes, queued);
+            }
+            return new OutboundStats(this.senderMap.size(), frames, bytes, maxBytes,
+                    dropped.get(), coalesced.get(), disconnected.get());
+        } finally {
+            mapLock.unlock();
+        }
+    }
 
     public void register(Socket socket) {
         mapLock.lock();
         try {
             SocketAddress socketAddress = socket.getRemoteSocketAddress();
             if (!this.senderMap.containsKey(socketAddress)) {
-                SenderInfo sdata = new SenderInfo(socketAddress, new LinkedBlockingDeque<>());
+                // Closing the socket also wakes up a responding thread blocked writing to it.
+                SenderInfo sdata = new SenderInfo(socketAddress, newQueue(), null, () -> {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                });
                 this.senderMap.put(socketAddress, sdata);
                 this.executorService.execute(new RespondingThread(sdata.dataQueue, socket));
             } else {
@@ -41,6 +113,31 @@ public class ResponseManager {
         }
     }
 
+    /**
+     * Registers a connection whose responses are written by someone else, such as a selector loop,
+     * instead of a responding thread of its own.
+     *
+     * @param socketAddress The address of the connection.
+     * @param onSend        Called after each response is queued, to have it written.
+     * @param onDisconnect  Called to close the connection, when the client does not read its responses.
+     * @return The queue of the responses to write on the connection.
+     */
+    public OutboundQueue register(SocketAddress socketAddress, Runnable onSend, Runnable onDisconnect) {
+        mapLock.lock();
+        try {
+            SenderInfo sdata = this.senderMap.get(socketAddress);
+            if (sdata == null) {
+                sdata = new SenderInfo(socketAddress, newQueue(), onSend, onDisconnect);
+                this.senderMap.put(socketAddress, sdata);
+            } else {
+                sdata.resourceUsers += 1;
+            }
+            return sdata.dataQueue;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
     public void registerUser(String user, SocketAddress socketAddress) {
         mapLock.lock();
         try {
@@ -56,50 +153,157 @@ public class ResponseManager {
     }
 
     public void send(SocketAddress socketAddress, byte[] data, int tag) {
+        this.send(socketAddress, data, tag, TaggedConnection.NO_REQUEST);
+    }
+
+    /**
+     * Queues the reply to a request, to be sent to the connection the request came from.
+     *
+     * @param socketAddress The address of the connection.
+     * @param data          The data of the reply.
+     * @param tag           The tag of the reply.
+     * @param requestId     The id of the request being answered.
+     */
+    public void send(SocketAddress socketAddress, byte[] data, int tag, int requestId) {
+        this.queue(socketAddress, new SenderData(ByteBuffer.wrap(data), tag, requestId, false, false));
+    }
+
+    /**
+     * Queues the reply to a request, held in a buffer leased from the {@linkplain BufferPool#shared() shared pool},
+     * such as the one of a {@link org.trotiletre.common.communication.BufferOutput}. The buffer now belongs to
+     * the response manager, which releases it once written.
+     *
+     * @param socketAddress The address of the connection.
+     * @param data          The data of the reply, between the position and the limit of the buffer.
+     * @param tag           The tag of the reply.
+     * @param requestId     The id of the request being answered.
+     */
+    public void send(SocketAddress socketAddress, ByteBuffer data, int tag, int requestId) {
+        this.queue(socketAddress, new SenderData(data, tag, requestId, false, true));
+    }
+
+    private OutboundQueue.Outcome queue(SocketAddress socketAddress, SenderData senderData) {
+        return this.queue(socketAddress, senderData, true);
+    }
+
+    private OutboundQueue.Outcome queue(SocketAddress socketAddress, SenderData senderData, boolean supersedes) {
+        OutboundQueue.Outcome outcome;
+        Runnable callback;
+
         mapLock.lock();
         try {
             SenderInfo senderInfo = this.senderMap.get(socketAddress);
-            if (senderInfo == null)
-                return;
+            if (senderInfo == null || senderInfo.disconnected) {
+                senderData.release();
+                return OutboundQueue.Outcome.DROPPED;
+            }
+
+            outcome = senderInfo.dataQueue.offer(senderData, supersedes);
+
+            switch (outcome) {
+                case DROPPED, DROPPED_OLDER -> dropped.incrementAndGet();
+                case COALESCED -> coalesced.incrementAndGet();
+                case OVERFLOW -> {
+                    // The client does not keep up, it is disconnected, and removed once its connection closes.
+                    disconnected.incrementAndGet();
+                    senderInfo.disconnected = true;
+                    senderInfo.dataQueue.clear();
+                }
+            }
 
-            senderInfo.dataQueue.add(new SenderData(data, tag, false));
+            callback = outcome == OutboundQueue.Outcome.OVERFLOW ? senderInfo.onDisconnect : senderInfo.onSend;
         } finally {
             mapLock.unlock();
         }
+
+        // The callbacks take the locks of the transports, so they run without holding the map.
+        if (outcome == OutboundQueue.Outcome.OVERFLOW)
+            System.out.println("server> Disconnected a client not reading its responses.");
+        if (callback != null)
+            callback.run();
+
+        return outcome;
     }
 
     public void send(String user, byte[] data, int tag) {
+        this.notify(user, data, tag);
+    }
+
+    /**
+     * Queues a notification to the connection of a user, superseding the queued ones of its tag.
+     *
+     * @param user The user.
+     * @param data The data of the notification.
+     * @param tag  The tag of the notification.
+     * @return The outcome of queueing it, {@link OutboundQueue.Outcome#DROPPED} if the user is not connected.
+     */
+    OutboundQueue.Outcome notify(String user, byte[] data, int tag) {
+        return this.notify(user, data, tag, true);
+    }
+
+    /**
+     * Queues a notification to the connection of a user.
+     *
+     * @param user       The user.
+     * @param data       The data of the notification.
+     * @param tag        The tag of the notification.
+     * @param supersedes Whether the notification may replace the queued ones of its tag, see
+     *                   {@link OutboundQueue#offer(SenderData, boolean)}.
+     * @return The outcome of queueing it, {@link OutboundQueue.Outcome#DROPPED} if the user is not connected.
+     */
+    OutboundQueue.Outcome notify(String user, byte[] data, int tag, boolean supersedes) {
+        SocketAddress socketAddress;
+
         mapLock.lock();
         try {
-            SocketAddress socketAddress = this.userMap.get(user);
-            if (socketAddress == null)
-                return;
-
-            this.send(socketAddress, data, tag);
+            socketAddress = this.userMap.get(user);
         } finally {
             mapLock.unlock();
         }
+
+        // Queued without holding the map, as queueing may call back the transport.
+        if (socketAddress == null)
+            return OutboundQueue.Outcome.DROPPED;
+
+        return this.queue(socketAddress, new SenderData(ByteBuffer.wrap(data), tag, TaggedConnection.NO_REQUEST, false, false),
+                supersedes);
     }
 
-    public void remove(SocketAddress socketAddress) {
+    /**
+     * Unregisters a connection, once every one of its users is done with it.
+     *
+     * @param socketAddress The address of the connection.
+     * @return The user logged in on the connection, if it was unregistered, or null.
+     */
+    public String remove(SocketAddress socketAddress) {
+        Runnable onSend;
+        String user;
+
         mapLock.lock();
         try {
             if (!this.senderMap.containsKey(socketAddress))
-                return;
+                return null;
 
             SenderInfo senderInfo = this.senderMap.get(socketAddress);
             senderInfo.resourceUsers--;
-            if (senderInfo.resourceUsers == 0) {
-                senderInfo.dataQueue.add(new SenderData(null, -1, true));
-                this.senderMap.remove(socketAddress);
-                String user = this.socketMap.remove(socketAddress);
-                if (user != null) {
-                    this.userMap.remove(user);
-                }
+            if (senderInfo.resourceUsers != 0)
+                return null;
+
+            senderInfo.dataQueue.offer(new SenderData(null, -1, TaggedConnection.NO_REQUEST, true, false));
+            onSend = senderInfo.onSend;
+            this.senderMap.remove(socketAddress);
+            user = this.socketMap.remove(socketAddress);
+            if (user != null) {
+                this.userMap.remove(user);
             }
         } finally {
             mapLock.unlock();
         }
+
+        if (onSend != null)
+            onSend.run();
+
+        return user;
     }
 
     public void removeUser(String user) {
@@ -116,51 +320,114 @@ public class ResponseManager {
         }
     }
 
+    private OutboundQueue newQueue() {
+        return new OutboundQueue(maxQueuedFrames, maxQueuedBytes, slowConsumerPolicy);
+    }
+
     private static class SenderInfo {
         public final SocketAddress address;
-        public final BlockingDeque<SenderData> dataQueue;
+        public final OutboundQueue dataQueue;
+        public final Runnable onSend; // Wakes up whoever writes the queue, null for a responding thread.
+        public final Runnable onDisconnect; // Closes the connection.
         public int resourceUsers;
+        public boolean disconnected = false; // Whether the connection is being closed for not keeping up.
 
-        public SenderInfo(SocketAddress address, BlockingDeque<SenderData> dataQueue) {
+        public SenderInfo(SocketAddress address, OutboundQueue dataQueue, Runnable onSend, Runnable onDisconnect) {
             this.address = address;
             this.dataQueue = dataQueue;
+            this.onSend = onSend;
+            this.onDisconnect = onDisconnect;
             this.resourceUsers = 1;
         }
     }
 
-    protected record SenderData(byte[] data, int tag, boolean stop) {
+    /**
+     * The depth of the queues of responses, and how often their caps were reached.
+     *
+     * @param connections      The number of connections.
+     * @param queuedFrames     The number of responses queued, on all the connections.
+     * @param queuedBytes      The number of bytes queued, on all the connections.
+     * @param maxQueuedBytes   The number of bytes queued on the most backed up connection.
+     * @param dropped          The number of notifications dropped past the caps, since the server started.
+     * @param coalesced        The number of notifications replaced by a newer one, since the server started.
+     * @param disconnected     The number of clients disconnected past the caps, since the server started.
+     */
+    public record OutboundStats(int connections, long queuedFrames, long queuedBytes, long maxQueuedBytes,
+                                long dropped, long coalesced, long disconnected) {
+    }
+
+    /**
+     * A response waiting to be written.
+     *
+     * @param data      The data of the response, between the position and the limit of the buffer.
+     * @param tag       The tag of the response.
+     * @param requestId The id of the request being answered.
+     * @param stop      Whether it marks the end of the connection instead.
+     * @param pooled    Whether the buffer was leased from the shared pool, to release it once written.
+     */
+    public record SenderData(ByteBuffer data, int tag, int requestId, boolean stop, boolean pooled) {
+
+        /**
+         * Gives the buffer of the data back to the shared pool, if it came from it.
+         */
+        public void release() {
+            if (pooled) BufferPool.shared().release(data);
+        }
     }
 
 }
 
 class RespondingThread implements Runnable {
 
-    private final BlockingDeque<ResponseManager.SenderData> dataQueue;
+    private static final int MAX_BATCH = 256; // Maximum number of responses sent in a single write.
+
+    private final OutboundQueue dataQueue;
     private final TaggedConnection taggedConnection;
 
-    public RespondingThread(BlockingDeque<ResponseManager.SenderData> dataQueue, Socket socket) throws IOException {
+    public RespondingThread(OutboundQueue dataQueue, Socket socket) throws IOException {
         this.dataQueue = dataQueue;
         this.taggedConnection = new TaggedConnection(socket);
     }
 
     @Override
     public void run() {
+        List<ResponseManager.SenderData> batch = new ArrayList<>();
+        List<TaggedConnection.BufferFrame> frames = new ArrayList<>();
+
         while (true) {
-            ResponseManager.SenderData senderData;
             try {
-                senderData = this.dataQueue.take();
+                batch.add(this.dataQueue.take());
             } catch (InterruptedException e) {
                 e.printStackTrace();
                 return;
             }
-            if (senderData.stop())
-                return;
+
+            // Everything queued meanwhile goes out in the same write.
+            this.dataQueue.drainTo(batch, MAX_BATCH - 1);
+
+            boolean stop = false;
+            for (ResponseManager.SenderData senderData : batch) {
+                if (senderData.stop()) {
+                    stop = true;
+                    break;
+                }
+                frames.add(new TaggedConnection.BufferFrame(senderData.tag(), senderData.requestId(), senderData.data()));
+            }
 
             try {
-                this.taggedConnection.send(senderData.tag(), senderData.data());
+                if (!frames.isEmpty()) this.taggedConnection.sendAll(frames, BufferPool.shared());
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                // The connection was closed, by the client or for not keeping up.
+                stop = true;
             }
+
+            for (ResponseManager.SenderData senderData : batch) senderData.release();
+
+            if (stop)
+                return;
+
+            batch.clear();
+            frames.clear();
         }
 
     }
@@ -1,17 +1,26 @@
 package org.trotiletre.server.services;
 
 import org.trotiletre.common.AnswerTag;
+import org.trotiletre.common.communication.Codec;
+import org.trotiletre.common.communication.ScooterMessages;
 import org.trotiletre.models.utils.Location;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Keeps the rewards offered to the riders who move scooters from crowded cells to empty ones, and notifies the
+ * users subscribed to their destinations.
+ * <p>
+ * A reward starts at a cell with more than one scooter, free or reserved, so a rider keeps the reward of the
+ * scooter they reserved until they park it. A reward finishes at a cell which is not a start and has no free
+ * scooter in the square of radius {@code defaultRadius} around it. Every pair of a start and a finish is a reward
+ * path, and claiming one only takes that path: the other starts keep their rewards to the same finish until the
+ * parked scooter fills it.
+ */
 public class RewardManager {
     private final WorkSignaller workSignaller = new WorkSignaller();
     private final NotificationManager notificationManager;
@@ -20,8 +29,10 @@ public class RewardManager {
     private final ResponseManager responseManager;
     private final int defaultRadius;
     private final double defaultReward = 10;
-    private final Map<Location, Set<RewardPath>> rewardPathMap = new HashMap<>();
-    private final Map<Location, Set<RewardPath>> reversePathMap = new HashMap<>();
+    // Rewards are kept as two indexed cell sets, the paths being every pair of a start and a finish.
+    private final CellSet rewardStarts = new CellSet(); // Cells with surplus scooters, where rewards start.
+    private final CellSet rewardFinishes = new CellSet(); // Cells lacking free scooters, where rewards finish.
+    private final Set<RewardPath> claimedPaths = new HashSet<>(); // Paths claimed while their cells are still rewarded.
     private final Lock rewardPathLock = new ReentrantLock();
     public RewardManager(ResponseManager responseManager, NotificationManager notificationManager, ScooterMap scooterMap,
                          AuthenticationManager authenticationManager, int defaultRadius) {
@@ -41,44 +52,35 @@ public class RewardManager {
     public List<RewardPath> getRewardPathsOther(Location sstart, int radius) {
         rewardPathLock.lock();
         try {
-            List<Location> searchList = new ArrayList<>();
-            searchList.add(sstart);
-            for (Location location : this.rewardPathMap.keySet()) {
-                if (location.manhattanDistance(sstart) <= radius)
-                    searchList.add(location);
-            }
-
             List<RewardPath> rewardPathList = new ArrayList<>();
-            for (Location start : searchList) {
-                Set<RewardPath> mapRewardPathList = this.rewardPathMap.get(start);
-                if (mapRewardPathList == null)
-                    continue;
-
-                for (RewardPath rewardPath : mapRewardPathList) {
-                    if (start.manhattanDistance(rewardPath.finish) <= radius)
-                        rewardPathList.add(rewardPath);
-                }
+            for (Location start : this.rewardStarts.withinRange(sstart, radius)) {
+                for (Location finish : this.rewardFinishes.withinRange(start, radius))
+                    addUnclaimed(rewardPathList, start, finish);
             }
             return rewardPathList;
 
-
         } finally {
             rewardPathLock.unlock();
         }
     }
 
+    /**
+     * Lists the reward paths starting at {@code start} and finishing within {@code radius} of it.
+     * The paths are generated from the start and finish sets when asked for.
+     *
+     * @param start  Start of the paths.
+     * @param radius Maximum length of the paths.
+     * @return The reward paths.
+     */
     public List<RewardPath> getRewardPaths(Location start, int radius) {
         rewardPathLock.lock();
         try {
             List<RewardPath> rewardPathList = new ArrayList<>();
-            Set<RewardPath> mapRewardPathList = this.rewardPathMap.get(start);
-            if (mapRewardPathList == null)
+            if (!this.rewardStarts.contains(start))
                 return rewardPathList;
 
-            for (RewardPath rewardPath : mapRewardPathList) {
-                if (start.manhattanDistance(rewardPath.finish) <= radius)
-                    rewardPathList.add(rewardPath);
-            }
+            for (Location finish : this.rewardFinishes.withinRange(start, radius))
+                addUnclaimed(rewardPathList, start, finish);
 
             return rewardPathList;
         } finally {
@@ -86,34 +88,122 @@ public class RewardManager {
         }
     }
 
-    public Optional<Double> getReward(Location start, Location finish) {
+    /**
+     * Lists a page of the reward paths starting at {@code start} and finishing within {@code radius} of it, by
+     * increasing length and, for the same length, by the position of the finish in its ring: the paths from the
+     * finish of {@code cursor} on, until {@code maxPaths} are listed.
+     * <p>
+     * The lock is only held for the page, so a large radius can be listed in several calls without holding back
+     * the reward thread and the rides.
+     *
+     * @param start    Start of the paths.
+     * @param radius   Maximum length of the paths.
+     * @param cursor   Index of the first finish, in ring-by-ring order around the start.
+     * @param maxPaths Maximum number of paths of the page.
+     * @param page     Where the paths are added.
+     * @return The index of the finish to continue from, or -1 if there are no more paths.
+     */
+    public long getRewardPaths(Location start, int radius, long cursor, int maxPaths, List<RewardPath> page) {
         rewardPathLock.lock();
         try {
-            Optional<Double> optReward = Optional.empty();
-
-            Set<RewardPath> rewardPathList = this.rewardPathMap.get(start);
-            if (rewardPathList == null)
-                return optReward;
-
-            for (var iter = rewardPathList.iterator(); iter.hasNext(); ) {
-                RewardPath rewardPath = iter.next();
-                if (rewardPath.finish.equals(finish)) {
-                    optReward = Optional.of(rewardPath.reward);
-                    iter.remove();
-                    break;
+            // No finish can be farther than the farthest corner of the map.
+            long mapSize = scooterMap.getMapSize();
+            int lastLength = (int) Math.min(radius, Math.max(Math.abs(start.x()), Math.abs(start.x() - (mapSize - 1)))
+                    + Math.max(Math.abs(start.y()), Math.abs(start.y() - (mapSize - 1))));
+
+            if (!this.rewardStarts.contains(start) || cursor < 0 || lastLength < 0 || cursor >= Rings.end(lastLength))
+                return -1;
+
+            int listed = 0;
+            long fromOffset = Rings.offset(cursor);
+
+            for (int length = Rings.ring(cursor); ; length++, fromOffset = 0) {
+                for (Location finish : this.rewardFinishes.atDistance(start, length)) {
+
+                    long offset = Rings.offsetOf(finish.x() - start.x(), finish.y() - start.y());
+                    RewardPath rewardPath = new RewardPath(start, finish, defaultReward);
+                    if (offset < fromOffset || this.claimedPaths.contains(rewardPath))
+                        continue;
+
+                    if (listed == maxPaths)
+                        return Rings.cursor(length, offset);
+
+                    page.add(rewardPath);
+                    listed++;
                 }
-            }
 
-            if (rewardPathList.size() == 0) {
-                this.rewardPathMap.remove(start);
+                if (length == lastLength)
+                    return -1;
             }
+        } finally {
+            rewardPathLock.unlock();
+        }
+    }
 
-            return optReward;
+    /**
+     * Finds the reward of the path from {@code start} to {@code finish}, if there is one, without claiming it.
+     * <p>
+     * The start and the finish must be in the reward sets, and are checked again on the map, since the sets are
+     * only patched by the reward thread. The path is looked up before the scooter is parked, as parking it changes
+     * both cells, and claimed with {@link #claimReward(Location, Location)} once it is.
+     *
+     * @param start  Where the scooter was picked up.
+     * @param finish Where the scooter is being parked.
+     * @return The value of the reward, if the path has one.
+     */
+    public Optional<Double> findReward(Location start, Location finish) {
+        rewardPathLock.lock();
+        try {
+            if (!this.rewardStarts.contains(start) || !this.rewardFinishes.contains(finish)
+                    || this.claimedPaths.contains(new RewardPath(start, finish, defaultReward)))
+                return Optional.empty();
+
+            if (!this.scooterMap.isRewardStart(start) || !isRewardFinish(finish))
+                return Optional.empty();
+
+            return Optional.of(defaultReward);
+        } finally {
+            rewardPathLock.unlock();
+        }
+    }
+
+    /**
+     * Claims the reward of a path found by {@link #findReward(Location, Location)}, once its scooter is parked.
+     * Only this path is taken: the other starts keep their rewards to the same finish until the parked scooter
+     * fills it and the reward thread takes it out.
+     *
+     * @param start  Where the scooter was picked up.
+     * @param finish Where the scooter was parked.
+     * @return {@code true} if the path was not claimed yet.
+     */
+    public boolean claimReward(Location start, Location finish) {
+        rewardPathLock.lock();
+        try {
+            return this.claimedPaths.add(new RewardPath(start, finish, defaultReward));
         } finally {
             rewardPathLock.unlock();
         }
     }
 
+    /**
+     * Checks on the map whether a reward can finish at a cell. As on a full scan, a cell where rewards start
+     * is never a finish.
+     */
+    private boolean isRewardFinish(Location cell) {
+        return !this.scooterMap.isRewardStart(cell) && this.scooterMap.isRewardFinish(cell, this.defaultRadius);
+    }
+
+    /**
+     * Adds the path from {@code start} to {@code finish} to a list, unless it was claimed. Must hold
+     * {@code rewardPathLock}.
+     *
+     * @return {@code true} if the path was added.
+     */
+    private boolean addUnclaimed(Collection<RewardPath> rewardPaths, Location start, Location finish) {
+        RewardPath rewardPath = new RewardPath(start, finish, defaultReward);
+        return !this.claimedPaths.contains(rewardPath) && rewardPaths.add(rewardPath);
+    }
+
     public record RewardPath(Location start, Location finish, double reward) {
         @Override
         public String toString() {
@@ -121,6 +211,21 @@ public class RewardManager {
         }
     }
 
+    /**
+     * Converts reward paths into the message sent to the clients, as a reply or a notification.
+     *
+     * @param rewardPaths The reward paths.
+     * @return The message.
+     */
+    public static ScooterMessages.Rewards toMessage(List<RewardPath> rewardPaths) {
+
+        List<ScooterMessages.Reward> rewards = new ArrayList<>(rewardPaths.size());
+        for (RewardPath rewardPath : rewardPaths)
+            rewards.add(new ScooterMessages.Reward(rewardPath.start, rewardPath.finish, rewardPath.reward));
+
+        return new ScooterMessages.Rewards(rewards);
+    }
+
     private static class WorkSignaller {
         private final Lock workLock = new ReentrantLock();
         private final Condition workCond = workLock.newCondition();
@@ -142,7 +247,15 @@ public class RewardManager {
         }
     }
 
+    /**
+     * Background thread keeping the reward paths up-to-date and notifying the interested users.
+     * <p>
+     * The start and finish sets are built from a full scan of the map only once. Afterwards, each round re-evaluates
+     * only the cells that may have been affected by the changes published by the map, and patches the sets in place.
+     */
     private class RewardThread implements Runnable {
+        private boolean built = false; // Whether the paths were already built from a full scan.
+
         public void run() {
             while (true) {
                 try {
@@ -151,66 +264,152 @@ public class RewardManager {
                     e.printStackTrace();
                     return;
                 }
-                rewardPathLock.lock();
+                // Taking the changes before looking at the map, so none of them is lost.
+                Set<Location> changedCells = scooterMap.drainChangedCells();
 
-                rewardPathMap.clear();
-                reversePathMap.clear();
+                rewardPathLock.lock();
 
-                for (Map.Entry<Location, Set<Location>> entry : scooterMap.getRewardPaths(defaultRadius).entrySet()) {
-                    Set<RewardPath> rewardPathList = new HashSet<>();
-                    for (Location finish : entry.getValue()) {
-                        RewardPath rewardPath = new RewardPath(entry.getKey(), finish, defaultReward);
-                        rewardPathList.add(rewardPath);
-                        Set<RewardPath> reverseSet = reversePathMap.computeIfAbsent(finish, k -> new HashSet<>());
-                        reverseSet.add(rewardPath);
-                    }
-                    rewardPathMap.put(entry.getKey(), rewardPathList);
+                // Only the users subscribed around the cells whose scooters or rewards changed are notified.
+                Set<String> affectedUsers;
+
+                if (!built) {
+                    rebuildRewardPaths();
+                    built = true;
+                    affectedUsers = notificationManager.getUserSet();
+                } else {
+                    Set<Location> changedRewardCells = new HashSet<>(changedCells);
+                    if (defaultRadius > 0)
+                        patchRewardPaths(changedCells, changedRewardCells);
+                    affectedUsers = notificationManager.getSubscribersNear(changedRewardCells);
                 }
 
-                Map<String, List<RewardPath>> notifUsers = new HashMap<>();
+                // A claim lasts while both of its cells are rewarded, the next reward between them is a new one.
+                claimedPaths.removeIf(rewardPath -> !rewardStarts.contains(rewardPath.start())
+                        || !rewardFinishes.contains(rewardPath.finish()));
+
+                // The new subscribers are told about the rewards already there.
+                affectedUsers.addAll(notificationManager.drainNewSubscribers());
 
-                for (String user : notificationManager.getUserSet()) {
-                    List<RewardPath> rewardPathList = new ArrayList<>();
+                Map<String, Set<RewardPath>> notifUsers = new HashMap<>();
+
+                for (String user : affectedUsers) {
+                    Set<RewardPath> rewardPaths = new LinkedHashSet<>();
 
                     for (NotificationManager.LocationData locationData : notificationManager.getUserLocationSet(user)) {
-                        var rewardMapPathSet = reversePathMap.get(locationData.location());
-                        if (rewardMapPathSet == null)
+                        Location finish = locationData.location();
+                        if (!rewardFinishes.contains(finish))
                             continue;
-                        for (RewardPath rewardPath : rewardMapPathSet) {
-                            if (rewardPath.start.manhattanDistance(rewardPath.finish) <= locationData.radius()) {
-                                rewardPathList.add(rewardPath);
-                            }
-                        }
+                        for (Location start : rewardStarts.withinRange(finish, locationData.radius()))
+                            addUnclaimed(rewardPaths, start, finish);
                     }
-                    notifUsers.put(user, rewardPathList);
+                    notifUsers.put(user, rewardPaths);
                 }
 
                 rewardPathLock.unlock();
 
-                for (Map.Entry<String, List<RewardPath>> entry : notifUsers.entrySet()) {
-                    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                    DataOutput dataOutput = new DataOutputStream(byteStream);
-                    List<RewardPath> rewardPathList = entry.getValue();
-                    try {
-                        if (rewardPathList.size() == 0) {
-                            continue;
-                        }
-                        System.out.println("server> Sending notification to " + entry.getKey());
-                        dataOutput.writeInt(rewardPathList.size());
-                        for (RewardPath rewardPath : rewardPathList) {
-                            dataOutput.writeInt(rewardPath.start.x());
-                            dataOutput.writeInt(rewardPath.start.y());
-                            dataOutput.writeInt(rewardPath.finish.x());
-                            dataOutput.writeInt(rewardPath.finish.y());
-                            dataOutput.writeDouble(rewardPath.reward);
-                        }
-                    } catch (IOException ignored) {
+                for (Map.Entry<String, Set<RewardPath>> entry : notifUsers.entrySet())
+                    notifyRewards(entry.getKey(), entry.getValue());
+            }
+        }
 
-                    }
+        /**
+         * Sends a user the rewards added and removed since their last notification, or all of them if their client
+         * is not known to hold the previous ones. If a notification is lost on the way, all of them are sent again.
+         *
+         * @param user        The user.
+         * @param rewardPaths The rewards of the locations the user is subscribed to.
+         */
+        private void notifyRewards(String user, Set<RewardPath> rewardPaths) {
+            NotificationManager.Delivered last = notificationManager.getDelivered(user);
+            int version = last == null ? 1 : last.version() + 1;
+
+            if (last != null) {
+                List<RewardPath> added = new ArrayList<>();
+                for (RewardPath rewardPath : rewardPaths)
+                    if (!last.rewards().contains(rewardPath)) added.add(rewardPath);
+
+                List<RewardPath> removed = new ArrayList<>();
+                for (RewardPath rewardPath : last.rewards())
+                    if (!rewardPaths.contains(rewardPath)) removed.add(rewardPath);
+
+                if (added.isEmpty() && removed.isEmpty())
+                    return;
 
-                    responseManager.send(entry.getKey(), byteStream.toByteArray(), AnswerTag.NOTIFICATION.tag);
+                OutboundQueue.Outcome outcome = sendUpdate(user, ScooterMessages.RewardsUpdate.DELTA, version, added, removed);
+                if (outcome == OutboundQueue.Outcome.QUEUED) {
+                    notificationManager.setDelivered(user, new NotificationManager.Delivered(version, rewardPaths));
+                    return;
                 }
 
+                // This delta, or one before it, was lost, so the client cannot apply it.
+                version++;
+            }
+
+            OutboundQueue.Outcome outcome = sendUpdate(user, ScooterMessages.RewardsUpdate.SNAPSHOT, version,
+                    new ArrayList<>(rewardPaths), List.of());
+
+            // The snapshot replaces whatever notifications of the user it coalesced or dropped.
+            boolean delivered = outcome != OutboundQueue.Outcome.DROPPED && outcome != OutboundQueue.Outcome.OVERFLOW;
+            notificationManager.setDelivered(user, delivered ? new NotificationManager.Delivered(version, rewardPaths) : null);
+        }
+
+        private OutboundQueue.Outcome sendUpdate(String user, int kind, int version, List<RewardPath> added,
+                                                 List<RewardPath> removed) {
+            byte[] notification;
+            try {
+                notification = Codec.toBytes(new ScooterMessages.RewardsUpdate(kind, version,
+                        toMessage(added).rewards(), toMessage(removed).rewards()));
+            } catch (IOException e) {
+                return OutboundQueue.Outcome.DROPPED;
+            }
+
+            // A delta does not replace the queued notifications, the client needs each one of them.
+            System.out.println("server> Sending notification to " + user);
+            return responseManager.notify(user, notification, AnswerTag.NOTIFICATION.tag,
+                    kind == ScooterMessages.RewardsUpdate.SNAPSHOT);
+        }
+
+        /**
+         * Builds the start and finish sets from a full scan of the map. Must hold {@code rewardPathLock}.
+         */
+        private void rebuildRewardPaths() {
+            rewardStarts.clear();
+            rewardFinishes.clear();
+
+            if (defaultRadius <= 0)
+                return;
+
+            scooterMap.collectRewardCells(defaultRadius, rewardStarts, rewardFinishes);
+        }
+
+        /**
+         * Re-evaluates the cells affected by the changed cells and patches the start and finish sets in place.
+         * A change can only turn its own cell into, or out of, a start, but it can affect the finishes
+         * within the empty radius around it; the union of those squares is checked once per batch.
+         * Must hold {@code rewardPathLock}.
+         *
+         * @param changedCells       Cells whose number of scooters changed.
+         * @param changedRewardCells Where the cells that became, or stopped being, a start or a finish are added.
+         */
+        private void patchRewardPaths(Set<Location> changedCells, Set<Location> changedRewardCells) {
+            int mapSize = scooterMap.getMapSize();
+
+            Set<Location> affectedCells = new HashSet<>();
+
+            for (Location cell : changedCells) {
+                if (scooterMap.isRewardStart(cell) ? rewardStarts.add(cell) : rewardStarts.remove(cell))
+                    changedRewardCells.add(cell);
+
+                for (int y = Math.max(cell.y() - defaultRadius, 0); y <= Math.min(cell.y() + defaultRadius, mapSize - 1); ++y) {
+                    for (int x = Math.max(cell.x() - defaultRadius, 0); x <= Math.min(cell.x() + defaultRadius, mapSize - 1); ++x)
+                        affectedCells.add(new Location(x, y));
+                }
+            }
+
+            // The squares of nearby changes overlap, each cell under them is checked once for the whole batch.
+            for (Location finish : affectedCells) {
+                if (isRewardFinish(finish) ? rewardFinishes.add(finish) : rewardFinishes.remove(finish))
+                    changedRewardCells.add(finish);
             }
         }
     }
@@ -0,0 +1,99 @@
+package org.trotiletre.server.services;
+
+/**
+ * The cells around a center in ring-by-ring order, as walked by the paged listings: ring 0 is the center, ring
+ * {@code r} the {@code 4r} cells at distance {@code r}, each ring row by row from the top, and each row from the
+ * left.
+ * <p>
+ * The cursor of a page is the index of its first cell in this order, so a page can end within a ring and the next
+ * one continue from the same cell. The index only depends on the position of the cell, not on what is on the map.
+ * The rings past 32768 hold more cells than an int counts, so the cursors and the offsets in a ring are longs: every
+ * ring up to {@link Integer#MAX_VALUE} fits, the cursors below {@link #end(int) end(Integer.MAX_VALUE)}.
+ */
+final class Rings {
+
+    private Rings() {
+    }
+
+    /**
+     * Returns the number of cells of a ring.
+     */
+    static long size(int ring) {
+        return ring == 0 ? 1 : 4L * ring;
+    }
+
+    /**
+     * Returns the cursor of the cell at {@code offset} in a ring.
+     */
+    static long cursor(int ring, long offset) {
+        return first(ring) + offset;
+    }
+
+    /**
+     * Returns the cursor following the last cell of a ring, the first one of the next ring.
+     */
+    static long end(int ring) {
+        return first(ring + 1L);
+    }
+
+    /**
+     * Returns the ring of the cell of a cursor.
+     *
+     * @throws IllegalArgumentException If the cursor is past the last ring.
+     */
+    static int ring(long cursor) {
+
+        if (cursor <= 0) return 0;
+        if (cursor >= end(Integer.MAX_VALUE))
+            throw new IllegalArgumentException("Cursor " + cursor + " past the last ring.");
+
+        long ring = (long) ((1 + Math.sqrt(2.0 * cursor - 1)) / 2);
+        while (ring > 0 && first(ring) > cursor) ring--;
+        while (first(ring + 1) <= cursor) ring++;
+
+        return (int) ring;
+    }
+
+    /**
+     * Returns the offset in its ring of the cell of a cursor.
+     *
+     * @throws IllegalArgumentException If the cursor is past the last ring.
+     */
+    static long offset(long cursor) {
+        return Math.max(cursor, 0) - first(ring(cursor));
+    }
+
+    /**
+     * Returns the row of the cell at {@code offset} in a ring, relative to the center.
+     */
+    static int dy(int ring, long offset) {
+        if (offset == 0 || ring == 0) return -ring;
+        if (offset == 4L * ring - 1) return ring;
+        return (int) (-ring + 1 + (offset - 1) / 2);
+    }
+
+    /**
+     * Returns the column of the cell at {@code offset} in a ring, relative to the center.
+     */
+    static int dx(int ring, long offset) {
+        int span = ring - Math.abs(dy(ring, offset));
+        return span > 0 && (offset - 1) % 2 == 1 ? span : -span;
+    }
+
+    /**
+     * Returns the offset in its ring of the cell at {@code (dx, dy)} from the center, which must be at most
+     * {@link Integer#MAX_VALUE} away.
+     */
+    static long offsetOf(int dx, int dy) {
+
+        int ring = Math.abs(dx) + Math.abs(dy);
+
+        if (ring == 0 || dy == -ring) return 0;
+        if (dy == ring) return 4L * ring - 1;
+        return 1 + 2 * ((long) dy + ring - 1) + (dx > 0 ? 1 : 0);
+    }
+
+    private static long first(long ring) {
+        return ring == 0 ? 0 : 2 * ring * (ring - 1) + 1;
+    }
+}
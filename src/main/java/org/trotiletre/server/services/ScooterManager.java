@@ -2,6 +2,7 @@ package org.trotiletre.server.services;
 
 import org.jetbrains.annotations.NotNull;
 import org.trotiletre.common.IScooterManager;
+import org.trotiletre.common.communication.ScooterMessages;
 import org.trotiletre.models.Reservation;
 import org.trotiletre.models.Scooter;
 import org.trotiletre.models.User;
@@ -71,6 +72,64 @@ public class ScooterManager implements IScooterManager {
         return String.join(",", locations);
     }
 
+    /**
+     * Lists the cells with free scooters within the given range of the lookup position, with their number of free
+     * scooters, without a snapshot or a string for each scooter.
+     *
+     * @param range          The maximum range in meters to search for free scooters.
+     * @param lookupPosition The position to use as the center of the search.
+     * @param perCell        Whether the listing is sent per cell, with the counts, or per scooter.
+     * @return The listing, in the same order as {@link #listFreeScooters(int, Location)}.
+     */
+    public ScooterMessages.FreeScooters listFreeScooterLocations(final int range, @NotNull Location lookupPosition,
+                                                                 boolean perCell) {
+
+        ScooterMessages.FreeScooters listing = new ScooterMessages.FreeScooters(lookupPosition, perCell);
+        map.forEachFreeCell(range, lookupPosition, listing::add);
+        return listing;
+    }
+
+    /**
+     * Lists a page of the cells with free scooters within the given range of the lookup position, ring by ring
+     * from the cell of the cursor, locking the map one ring at a time.
+     * <p>
+     * The page holds at most {@code pageSize} entries, cells if per cell or scooters otherwise, and ends before
+     * the first cell that does not fit. A cell with more free scooters than a whole page is listed alone, per cell.
+     *
+     * @param range          The maximum range in meters to search for free scooters.
+     * @param lookupPosition The position to use as the center of the search.
+     * @param perCell        Whether the listing is sent per cell, with the counts, or per scooter.
+     * @param cursor         The cursor of the page, the index of its first cell in ring-by-ring order.
+     * @param pageSize       The maximum number of entries of the page, up to {@link ScooterMessages#MAX_PAGE_SIZE}.
+     * @return The page and the cursor of the next one.
+     */
+    public ScooterMessages.FreeScootersPage listFreeScootersPage(final int range, @NotNull Location lookupPosition,
+                                                                 boolean perCell, long cursor, int pageSize) {
+
+        ScooterMessages.FreeScooters cells = new ScooterMessages.FreeScooters(lookupPosition, true);
+        if (cursor < 0) return new ScooterMessages.FreeScootersPage(ScooterMessages.CURSOR_END, cells);
+
+        int maxEntries = Math.min(Math.max(pageSize, 1), ScooterMessages.MAX_PAGE_SIZE);
+        long next = map.forEachFreeCellInRings(cursor, range, lookupPosition, (x, y, freeScooters) -> {
+
+            int entries = perCell ? cells.cells() + 1 : cells.scooters() + freeScooters;
+            if (cells.cells() > 0 && entries > maxEntries) return false;
+
+            cells.add(x, y, freeScooters);
+            return true;
+        });
+
+        if (perCell || cells.scooters() > maxEntries) return new ScooterMessages.FreeScootersPage(next, cells);
+
+        ScooterMessages.FreeScooters scooters = new ScooterMessages.FreeScooters(lookupPosition, false);
+        for (int cell = 0; cell < cells.cells(); cell++) {
+            Location location = cells.location(cell);
+            scooters.add(location.x(), location.y(), cells.count(cell));
+        }
+
+        return new ScooterMessages.FreeScootersPage(next, scooters);
+    }
+
     /**
      * Reserve the free scooter closest to {@code local} within the range {@code range}.
      * When done, return the location of the scooter and the reservation code.
@@ -84,7 +143,7 @@ public class ScooterManager implements IScooterManager {
     public GenericPair<String, Location> reserveScooter(final int range, @NotNull Location local, String username) {
 
         // Get the closest free scooter of the provided location within the specified range.
-        Scooter scooter = map.getClosestScooterWithinRange(range, local, mapSize); // Scooter already comes marked with being used.
+        Scooter scooter = map.getClosestScooterWithinRange(range, local, username); // Scooter already comes marked with being used.
 
         try {
 
@@ -119,17 +178,31 @@ public class ScooterManager implements IScooterManager {
      * @return The price to pay for the travel or {@code -1} if the {@code reservationCode} is on correct.
      */
     public GenericPair<Double, Double> parkScooter(String reservationCode, Location newScooterLocation, String username) {
+        return parkScooter(UUID.fromString(reservationCode), newScooterLocation, username);
+    }
+
+    /**
+     * Park a scooter by providing a previously generated reservation code, as sent by the clients.
+     *
+     * @param reservationCode    Reservation code for the scooter.
+     * @param newScooterLocation The new location of the scooter.
+     * @return The price to pay for the travel or {@code null} if the {@code reservationCode} or the new location
+     * is not valid, or the scooter could not be parked, in which case the reservation stays open.
+     */
+    public GenericPair<Double, Double> parkScooter(UUID reservationCode, Location newScooterLocation, String username) {
+
+        // A scooter can only be left on the map, the reservation stays open otherwise.
+        if (!map.isInside(newScooterLocation)) return null;
 
         try {
 
             managerLock.lock();
 
             // Retrieving the scooter from the reservation map.
-            Reservation context = reservation.get(UUID.fromString(reservationCode));
+            Reservation context = reservation.get(reservationCode);
             if (context == null) return null; // The provided reservation code is invalid.
 
             Scooter scooter = context.getScooter();
-            scooter.setInUse(false);
 
             // Calculating the distance travelled.
             int distanceScooted = map.distanceBetween(
@@ -140,17 +213,20 @@ public class ScooterManager implements IScooterManager {
             // Calculating the price for the trip. The user pays 10 cents per unit of distance and 20 cents per minute.
             double priceToPay = context.getPriceOfTrip(distanceScooted, LocalDateTime.now());
 
-            // Get bounty if exists
-            Optional<Double> rewardOpt = this.rewardManager.getReward(scooter.getLocation(), newScooterLocation);
+            // Get bounty if exists, before parking the scooter changes both ends of the path.
+            Location start = scooter.getLocation();
+            Optional<Double> rewardOpt = this.rewardManager.findReward(start, newScooterLocation);
+
+            // Set the scooter free at the new location provided, unless its claim is no longer current.
+            if (!map.parkScooter(scooter, context.getClaimVersion(), newScooterLocation))
+                return null;
+
             Double reward = null;
-            if (rewardOpt.isPresent())
+            if (rewardOpt.isPresent() && this.rewardManager.claimReward(start, newScooterLocation))
                 reward = rewardOpt.get();
 
-            // Update the location of the scooter to the new location provided.
-            map.updateScooterLocation(scooter.getLocation(), newScooterLocation, scooter.getScooterId());
-
             // Removing the reservation and updating the user's information.
-            reservation.remove(UUID.fromString(reservationCode));
+            reservation.remove(reservationCode);
 
             User user = authManager.getUser(username);
 
@@ -5,12 +5,35 @@ import org.trotiletre.models.Scooter;
 import org.trotiletre.models.utils.Location;
 
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ScooterMap {
 
+    /**
+     * How the cells of the map are kept in memory.
+     */
+    public enum Storage {
+        /**
+         * Every tile of the map is allocated up front, for small and densely covered maps.
+         */
+        DENSE,
+        /**
+         * Only the tiles where scooters have been are allocated, for very large maps mostly left empty.
+         * Rewards can only finish on these tiles.
+         */
+        SPARSE
+    }
+
+    public static final int MAX_HEATMAP_SIDE = 1024; // Maximum number of blocks on each side of a heatmap.
+
+    private static final int SPARSE_LOCK_STRIPES = 4096; // Maximum number of tile locks of a sparse map.
+    private static final int CELL_LEVEL = 0; // Pyramid level of a single cell.
+    private static final long RING_TAKEN = -1; // A ring whose free cells the visitor all took.
+    private static final long RING_EMPTY = -2; // A ring without free cells from the offset visited.
+
     private final int startingScooters;
-    private final ReentrantLock mapLock = new ReentrantLock();
+    private final Storage storage; // How the cells of the map are kept.
+    private final TileLocks tileLocks; // Striped locks, each guarding a tile of the map.
     /**
      * + Assuma uma distribuição aleatória de uma dado número fixo de trotinetes pelo mapa,
      * todas livres, quando o servidor arranca.
@@ -19,176 +42,948 @@ public class ScooterMap {
      * + A distância entre dois pontos é medida pela distância de Manhattan.
      */
 
-    private List<Scooter>[][] map;
+    private final int mapSize; // Size of the rows and columns of the map.
+    private final ScooterStore store; // Column store with every scooter of the map.
+    private final TileGrid tiles; // Cells of the map, grouped in tiles.
+    private final FreePyramid freePyramid; // Free scooter counts of the tiles and of the blocks above them.
+    private final Set<Location> changedCells = ConcurrentHashMap.newKeySet(); // Cells changed since the last drain.
 
     public ScooterMap(final int mapSize, final int startingScooters) {
+        this(mapSize, startingScooters, Storage.DENSE);
+    }
+
+    /**
+     * Creates a map without scooters.
+     *
+     * @param mapSize          Size of the rows and columns of the map.
+     * @param startingScooters Number of scooters placed by {@link #populateMap()}.
+     * @param storage          How the cells of the map are kept in memory.
+     */
+    public ScooterMap(final int mapSize, final int startingScooters, final Storage storage) {
 
-        this.map = new ArrayList[mapSize][mapSize]; // Creating the map with the provided size.
+        this.mapSize = mapSize;
+        this.storage = storage;
+        this.store = new ScooterStore(startingScooters);
 
         // Initializing the map with empty lists of scooters.
-        for (int i = 0; i < map.length; i++) {
-            for (int j = 0; j < map[i].length; j++) {
-                map[i][j] = new ArrayList<>();
-            }
-        }
+        this.tiles = TileGrid.create(mapSize, storage);
+        this.freePyramid = new FreePyramid(mapSize, storage);
+        this.tileLocks = storage == Storage.SPARSE
+                ? new TileLocks(mapSize, SPARSE_LOCK_STRIPES)
+                : new TileLocks(mapSize);
 
         this.startingScooters = startingScooters;
     }
 
     public int getMapSize() {
-        return this.map.length;
+        return this.mapSize;
     }
 
     public void populateMap() {
 
-        try {
+        TileLocks.Stripe stripe = tileLocks.lockAll(true);
 
-            mapLock.lock();
+        try {
 
             Random random = new Random();
 
             for (int i = 0; i < startingScooters; i++) {
 
                 // Choose a random location in the matrix.
-                int row = random.nextInt(map.length);
-                int col = random.nextInt(map[row].length);
+                int row = random.nextInt(mapSize);
+                int col = random.nextInt(mapSize);
 
-                // Choose a random UUID for the scooter.
-                String scooterID = UUID.randomUUID().toString();
-
-                // Place a value at the random location.
-                map[row][col].add(new Scooter(scooterID, new Location(col, row), false));
+                // Choose a random UUID for the scooter, and place it at the random location.
+                int scooter = store.add(UUID.randomUUID(), col, row);
+                MapTile tile = tileOrCreateAt(col, row);
+                store.link(tile.heads, tile.slot(col, row), scooter, col, row);
+                addFreeScooters(col, row, 1);
             }
 
             show();
         } finally {
-            mapLock.unlock();
+            stripe.unlock();
         }
 
     }
 
-    public Scooter getClosestScooterWithinRange(int range, Location startingPoint, int size) {
+    /**
+     * Finds and claims for {@code owner} the free scooter closest to {@code startingPoint}, within {@code range}.
+     * <p>
+     * The search goes down the free counts pyramid, best first: blocks, then cells, are taken by increasing
+     * distance to the starting point, and the blocks without free scooters or out of range are never opened.
+     * On a tile, each row offers its free cell closest to the starting point on either side, found on the
+     * free cells bitmap. Only the cells up to the distance of the closest free scooter are ever claimed,
+     * however large and empty the map is around them.
+     * <p>
+     * The tiles are only locked for reading: the scooters are claimed with compare-and-set, so concurrent
+     * reservations search in parallel, and the one losing a race moves on to the next candidate.
+     *
+     * @param range         Maximum distance to look for a scooter.
+     * @param startingPoint Location where the search starts.
+     * @param owner         Username of the user reserving the scooter.
+     * @return The reserved scooter, or {@code null} if there is no free scooter within the range, or the starting
+     * point is outside the map.
+     */
+    public Scooter getClosestScooterWithinRange(int range, Location startingPoint, String owner) {
+
+        if (!isInside(startingPoint)) return null;
+        range = clampRange(range);
+
+        // Only the tiles covering the range can hold a candidate, the rest of the map stays available.
+        TileLocks.Stripe stripe = lockRange(range, startingPoint, false);
 
         try {
 
-            mapLock.lock();
+            PriorityQueue<Candidate> queue = new PriorityQueue<>(Comparator.comparingInt(Candidate::distance));
+            offerBlock(queue, freePyramid.topLevel(), 0, 0, range, startingPoint);
 
-            int closestScooterDistance = size + 1;
-            Scooter closestScooter = null;
+            while (!queue.isEmpty()) {
 
-            for (int i = 0; i < map.length; i++) {
+                Candidate candidate = queue.poll();
 
-                for (int j = 0; j < map[i].length; j++) {
+                if (candidate.level() > FreePyramid.TILE_LEVEL) {
+                    offerChildren(queue, candidate, range, startingPoint);
 
-                    List<Scooter> scootersInLocation = map[i][j];
-                    int distance = distanceBetween(new Location(j, i), startingPoint);
+                } else if (candidate.level() == FreePyramid.TILE_LEVEL) {
+                    MapTile tile = tiles.get(candidate.x(), candidate.y());
+                    if (tile == null) continue;
 
-                    if (distance <= range && distance <= closestScooterDistance) {
+                    int fromY = Math.max(startingPoint.y() - range, tile.originY);
+                    int toY = Math.min(Math.min(startingPoint.y() + range, mapSize - 1),
+                            tile.originY + MapTile.SIZE - 1);
 
-                        for (Scooter s : scootersInLocation) {
-                            if (!s.isInUse()) {
-                                closestScooter = s;
-                                closestScooterDistance = distance;
-                            }
-                        }
+                    for (int y = fromY; y <= toY; y++) {
+                        offerCell(queue, tile, y, startingPoint.x(), -1, range, startingPoint);
+                        offerCell(queue, tile, y, startingPoint.x() + 1, 1, range, startingPoint);
                     }
+
+                } else {
+                    int closestScooter = claimFreeScooterAt(candidate.x(), candidate.y(), owner);
+
+                    if (closestScooter != ScooterStore.NONE) {
+                        addFreeScooters(store.x(closestScooter), store.y(closestScooter), -1);
+                        return store.snapshot(closestScooter);
+                    }
+
+                    // Someone else got the cell first, the next cell on the same side of the row takes its place.
+                    offerCell(queue, tiles.tileAt(candidate.x(), candidate.y()), candidate.y(),
+                            candidate.x() + candidate.direction(), candidate.direction(), range, startingPoint);
                 }
             }
 
-            if (closestScooter != null) closestScooter.setInUse(true);
-            return closestScooter;
+            return null;
 
         } finally {
-            mapLock.unlock();
+            stripe.unlock();
         }
     }
 
-    public ArrayList<Scooter> getFreeScootersWithinRange(int range, Location startingPoint) {
+    /**
+     * Visits a cell with free scooters.
+     */
+    @FunctionalInterface
+    public interface FreeCellVisitor {
 
-        try {
+        /**
+         * @param x            Column of the cell.
+         * @param y            Row of the cell.
+         * @param freeScooters Number of free scooters in the cell.
+         */
+        void visit(int x, int y, int freeScooters);
+    }
 
-            mapLock.lock();
+    /**
+     * Lists the free scooters within {@code range} of {@code startingPoint}.
+     * <p>
+     * The free counts pyramid is walked down to the tiles with free scooters under the range diamond, and on each
+     * of their rows the free cells bitmap is used to jump over the cells without free scooters.
+     *
+     * @param range         Maximum distance of the scooters.
+     * @param startingPoint Center of the search.
+     * @return The free scooters found, none if the starting point is outside the map.
+     */
+    public ArrayList<Scooter> getFreeScootersWithinRange(int range, Location startingPoint) {
 
-            ArrayList<Scooter> results = new ArrayList<>();
+        if (!isInside(startingPoint)) return new ArrayList<>();
+        range = clampRange(range);
 
-            for (int i = 0; i < map.length; i++) {
+        TileLocks.Stripe stripe = lockRange(range, startingPoint, false);
 
-                for (int j = 0; j < map[i].length; j++) {
+        try {
 
-                    List<Scooter> scootersInLocation = map[i][j];
-                    int distance = distanceBetween(startingPoint, new Location(j, i));
+            ArrayList<Scooter> results = new ArrayList<>();
 
-                    if (distance <= range) {
-                        for (Scooter s : scootersInLocation) {
-                            if (!s.isInUse()) {
-                                results.add(s);
-                            }
-                        }
+            walkFreeCells(range, startingPoint, (tile, x, y) -> {
+                for (int s = tile.heads[tile.slot(x, y)]; s != ScooterStore.NONE; s = store.next(s)) {
+                    if (!store.isInUse(s)) {
+                        results.add(store.snapshot(s));
                     }
                 }
-            }
+            });
 
             return results;
 
         } finally {
-            mapLock.unlock();
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Visits the cells with free scooters within {@code range} of {@code startingPoint}, in the same order as
+     * {@link #getFreeScootersWithinRange(int, Location)} lists their scooters, with their number of free scooters
+     * instead of a snapshot of each one.
+     * <p>
+     * The visitor is called with the tiles locked, so it must not block.
+     *
+     * @param range         Maximum distance of the scooters.
+     * @param startingPoint Center of the search.
+     * @param visitor       Visitor of the cells, never called if the starting point is outside the map.
+     */
+    public void forEachFreeCell(int range, Location startingPoint, FreeCellVisitor visitor) {
+
+        if (!isInside(startingPoint)) return;
+        range = clampRange(range);
+
+        TileLocks.Stripe stripe = lockRange(range, startingPoint, false);
+
+        try {
+            walkFreeCells(range, startingPoint, (tile, x, y) -> {
+                int free = tile.freeCount(x, y);
+                if (free > 0) visitor.visit(x, y, free); // A reservation may have just taken the last one.
+            });
+
+        } finally {
+            stripe.unlock();
         }
     }
 
+    /**
+     * Visits a cell with free scooters for a page of a listing.
+     */
+    @FunctionalInterface
+    public interface FreeCellPageVisitor {
+
+        /**
+         * @param x            Column of the cell.
+         * @param y            Row of the cell.
+         * @param freeScooters Number of free scooters in the cell.
+         * @return Whether the cell was taken; if not, the page ends before it.
+         */
+        boolean visit(int x, int y, int freeScooters);
+    }
+
+    /**
+     * Visits the cells with free scooters within {@code range} of {@code startingPoint}, ring by ring and in each
+     * ring row by row, starting with the cell of {@code cursor} and stopping at the first cell the visitor does not
+     * take.
+     * <p>
+     * Only the free scooters are walked, not the rings: past a ring without any, the search jumps down the free
+     * counts pyramid to the next ring holding one, and on a ring the spans crossing tiles without free scooters, or
+     * off the map, are skipped whole. Only the tiles of one ring at a time are locked, so a listing of the whole
+     * map, split in several calls, never holds them for long. Between two calls the scooters can move, so a scooter
+     * can be listed twice or not at all.
+     *
+     * @param cursor        Index of the first cell visited, in ring-by-ring order, 0 being the starting point.
+     * @param range         Distance of the last ring that may be visited.
+     * @param startingPoint Center of the rings.
+     * @param visitor       Visitor of the cells, called with the tiles locked.
+     * @return The index of the cell to continue from, or -1 if there is none within range and the map, or the
+     * starting point is outside the map.
+     */
+    public long forEachFreeCellInRings(long cursor, int range, Location startingPoint, FreeCellPageVisitor visitor) {
+
+        if (!isInside(startingPoint) || cursor < 0) return -1;
+
+        // Past the farthest corner of the map, the rings are empty.
+        int lastRing = (int) Math.min(range, farthestInBlock(freePyramid.topLevel(), 0, 0, startingPoint));
+        if (lastRing < 0 || cursor >= Rings.end(lastRing)) return -1;
+
+        int ring = Rings.ring(cursor);
+        long offset = Rings.offset(cursor);
+        boolean jump = true; // Whether to look for the next ring with free scooters, rather than walk this one.
+
+        while (true) {
+
+            if (jump) {
+                // Read without locking, as a scooter parked meanwhile could as well have been parked after the page.
+                int next = nextFreeRing(ring, lastRing, startingPoint);
+                if (next == -1) return -1;
+                if (next != ring) offset = 0;
+                ring = next;
+            }
+
+            TileLocks.Stripe stripe = lockRange(ring, startingPoint, false);
+            long stop;
+
+            try {
+                stop = visitRing(ring, offset, startingPoint, visitor);
+                if (stop >= 0) return Rings.cursor(ring, stop);
+
+            } finally {
+                stripe.unlock();
+            }
+
+            if (ring == lastRing) return -1;
+
+            jump = stop == RING_EMPTY;
+            ring++;
+            offset = 0;
+        }
+    }
+
+    private interface TileCellVisitor {
+        void visit(MapTile tile, int x, int y);
+    }
+
+    /**
+     * Visits the cells with free scooters under the range diamond, tile by tile and row by row. The tiles must be
+     * locked.
+     */
+    private void walkFreeCells(int range, Location startingPoint, TileCellVisitor visitor) {
+
+        for (MapTile tile : tilesWithFreeScooters(range, startingPoint)) {
+
+            int fromY = Math.max(startingPoint.y() - range, tile.originY);
+            int toY = Math.min(Math.min(startingPoint.y() + range, mapSize - 1), tile.originY + MapTile.SIZE - 1);
+
+            for (int y = fromY; y <= toY; y++) {
+
+                // Horizontal span of the diamond on this row.
+                int span = range - Math.abs(y - startingPoint.y());
+
+                long free = tile.freeCells(y, startingPoint.x() - span, startingPoint.x() + span);
+                for (; free != 0; free &= free - 1) {
+                    visitor.visit(tile, tile.originX + Long.numberOfTrailingZeros(free), y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts every scooter, free or not, on the cell {@code (x, y)}.
+     *
+     * @param x Column of the cell.
+     * @param y Row of the cell.
+     * @return The number of scooters, {@code 0} outside the map.
+     */
     public int getNumberOfScootersAt(int x, int y) {
-        this.mapLock.lock();
+        if (!inBounds(x, y))
+            return 0;
+
+        TileLocks.Stripe stripe = this.tileLocks.lockCells(false, x, y);
         try {
-            return this.map[y][x].size();
+            return countScootersAt(x, y);
         } finally {
-            this.mapLock.unlock();
+            stripe.unlock();
         }
     }
 
+    /**
+     * Counts the free scooters of the map in square blocks of {@code 2^level} cells, for zoomed-out views.
+     * <p>
+     * From the tile size up, the counts come straight from a level of the free counts pyramid; smaller blocks
+     * are summed on the tiles in use. A level too fine for the map is raised until the heatmap is at most
+     * {@value #MAX_HEATMAP_SIDE} blocks wide. The whole map is locked for reading.
+     *
+     * @param level Zoom level, the side of the blocks being {@code 2^level} cells.
+     * @return The counts, indexed by block row and then by block column.
+     */
+    public int[][] getFreeScooterHeatmap(int level) {
+
+        level = Math.min(Math.max(level, CELL_LEVEL), freePyramid.topLevel());
+        while (level < freePyramid.topLevel() && (mapSize - 1L) >> level >= MAX_HEATMAP_SIDE) level++;
+
+        int side = 1 << level;
+        int blocks = (int) ((mapSize + (long) side - 1) >> level);
+
+        int[][] heatmap = new int[blocks][blocks];
+
+        TileLocks.Stripe stripe = tileLocks.lockAll(false);
 
-    public Map<Location, Set<Location>> getRewardPaths(int emptyRadius) {
-        this.mapLock.lock();
         try {
-            Map<Location, Set<Location>> rewardPaths = new HashMap<>();
-            if (emptyRadius <= 0)
-                return rewardPaths;
-
-            Set<Location> startList = new HashSet<>();
-            Set<Location> finishList = new HashSet<>();
-
-            for (int y = 0; y < this.map.length; ++y) {
-                for (int x = 0; x < this.map.length; ++x) {
-                    if (this.map[y][x].size() > 1)
-                        startList.add(new Location(x, y));
-                    else if (this.map[y][x].size() == 0) {
-                        boolean shouldHaveReward = true;
-                        for (int i = emptyRadius; i >= -emptyRadius && shouldHaveReward; --i) {
-                            int yy = y + i;
-                            if (i == 0 || yy < 0 || yy >= this.map.length)
-                                continue;
-                            for (int j = emptyRadius; j >= -emptyRadius && shouldHaveReward; --j) {
-                                int xx = x + j;
-                                if (j == 0 || xx < 0 || xx >= this.map.length)
-                                    continue;
-                                if (this.map[yy][xx].size() > 0) {
-                                    shouldHaveReward = false;
-                                }
-                            }
-                        }
-                        if (shouldHaveReward)
+            if (level >= FreePyramid.TILE_LEVEL) {
+                for (int blockY = 0; blockY < blocks; blockY++) {
+                    for (int blockX = 0; blockX < blocks; blockX++)
+                        heatmap[blockY][blockX] = freePyramid.count(level, blockX, blockY);
+                }
+                return heatmap;
+            }
+
+            for (MapTile tile : tiles.within(0, 0, mapSize - 1, mapSize - 1)) {
+                for (int y = tile.originY; y < Math.min(tile.originY + MapTile.SIZE, mapSize); y += side) {
+                    for (int x = tile.originX; x < Math.min(tile.originX + MapTile.SIZE, mapSize); x += side)
+                        heatmap[y >> level][x >> level] = tile.sumFree(x, y, x + side - 1, y + side - 1);
+                }
+            }
+
+            return heatmap;
+
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+
+    /**
+     * Computes the reward paths of the map: from the cells with more than one scooter, free or reserved, to the
+     * cells without free scooters around them, up to {@code emptyRadius}.
+     * <p>
+     * The map is processed one tile at a time, holding only the locks of the tile and of its neighbours
+     * within the radius, so riders elsewhere are not blocked while the scan goes on. Only the tiles in use are
+     * processed. Checking the surroundings
+     * of a cell is a single rectangle query on the free counts tree, whatever the radius.
+     *
+     * @param emptyRadius Radius around a destination that must be empty of free scooters.
+     * @return The destinations of each starting location.
+     */
+    public Map<Location, Set<Location>> getRewardPaths(int emptyRadius) {
+        Map<Location, Set<Location>> rewardPaths = new HashMap<>();
+        if (emptyRadius <= 0)
+            return rewardPaths;
+
+        Set<Location> startList = new HashSet<>();
+        Set<Location> finishList = new HashSet<>();
+        collectRewardCells(emptyRadius, startList, finishList);
+
+        for (Location start : startList)
+            rewardPaths.put(start, finishList);
+
+        return rewardPaths;
+    }
+
+    /**
+     * Collects every cell of the map where rewards can start or finish, as in {@link #getRewardPaths(int)}.
+     *
+     * @param emptyRadius Radius around a destination that must be empty of free scooters.
+     * @param startList   Set where the starting cells are added.
+     * @param finishList  Set where the destination cells are added.
+     */
+    public void collectRewardCells(int emptyRadius, Set<Location> startList, Set<Location> finishList) {
+        for (MapTile tile : this.tiles.within(0, 0, this.mapSize - 1, this.mapSize - 1)) {
+
+            int lastX = Math.min(tile.originX + MapTile.SIZE, this.mapSize) - 1;
+            int lastY = Math.min(tile.originY + MapTile.SIZE, this.mapSize) - 1;
+
+            TileLocks.Stripe stripe = this.tileLocks.lockArea(tile.originX - emptyRadius, tile.originY - emptyRadius,
+                    lastX + emptyRadius, lastY + emptyRadius, false);
+            try {
+                for (int y = tile.originY; y <= lastY; ++y) {
+                    for (int x = tile.originX; x <= lastX; ++x) {
+                        if (isRewardStart(x, y))
+                            startList.add(new Location(x, y));
+                        else if (isRewardFinish(x, y, emptyRadius))
                             finishList.add(new Location(x, y));
                     }
                 }
+            } finally {
+                stripe.unlock();
             }
-            for (Location start : startList)
-                rewardPaths.put(start, finishList);
+        }
+    }
 
-            return rewardPaths;
+    /**
+     * Takes the cells whose number of free scooters changed since the last call, through reservations,
+     * parking or moves. Each cell is reported once, however many times it changed.
+     *
+     * @return The changed cells.
+     */
+    public Set<Location> drainChangedCells() {
+
+        Set<Location> drained = new HashSet<>();
+
+        // Removing before reporting, so a cell changed again meanwhile stays recorded for the next drain.
+        for (Location cell : changedCells) {
+            if (changedCells.remove(cell)) drained.add(cell);
+        }
+
+        return drained;
+    }
+
+    /**
+     * Checks whether a reward can start at a location, that is, it has more than one scooter.
+     *
+     * @param location The location to check.
+     * @return {@code true} if rewards can start at the location.
+     */
+    public boolean isRewardStart(Location location) {
+        if (!isInside(location))
+            return false;
 
+        TileLocks.Stripe stripe = tileLocks.lockCells(false, location.x(), location.y());
+        try {
+            return isRewardStart(location.x(), location.y());
         } finally {
-            this.mapLock.unlock();
+            stripe.unlock();
         }
     }
 
+    /**
+     * Checks whether a reward can finish at a location, that is, there are no free scooters in the square of
+     * radius {@code emptyRadius} around it. On a {@link Storage#SPARSE} map, the location must also be on a tile
+     * in use.
+     * <p>
+     * Reads the atomic counters without locking, so a change still being applied may be missed; such a change
+     * is reported by {@link #drainChangedCells()} once it is done.
+     *
+     * @param location    The location to check.
+     * @param emptyRadius Radius around the location that must be empty of free scooters.
+     * @return {@code true} if rewards can finish at the location.
+     */
+    public boolean isRewardFinish(Location location, int emptyRadius) {
+        return isInside(location) && isRewardFinish(location.x(), location.y(), emptyRadius);
+    }
+
+    /**
+     * Checks whether a location is a cell of the map. Every public operation checks the locations it is given
+     * with it before locking or looking up their tiles.
+     *
+     * @param location The location to check.
+     * @return {@code true} if the location is inside the map.
+     */
+    public boolean isInside(Location location) {
+        return inBounds(location.x(), location.y());
+    }
+
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < mapSize && y < mapSize;
+    }
+
+    /**
+     * Checks whether a reward can start at the cell {@code (x, y)}, that is, it has more than one scooter.
+     * Reserved scooters still count until they are parked, so the riders who reserved them can claim the reward.
+     * The tile of the cell must be locked.
+     */
+    private boolean isRewardStart(int x, int y) {
+        int head = headAt(x, y);
+        return head != ScooterStore.NONE && this.store.next(head) != ScooterStore.NONE;
+    }
+
+    /**
+     * Checks whether a reward can finish at the cell {@code (x, y)}, that is, there are no free scooters
+     * in the square of radius {@code emptyRadius} around it.
+     */
+    private boolean isRewardFinish(int x, int y, int emptyRadius) {
+        MapTile tile = this.tiles.tileAt(x, y);
+        return tile != null && tile.freeCount(x, y) == 0
+                && sumFree(x - emptyRadius, y - emptyRadius, x + emptyRadius, y + emptyRadius) == 0;
+    }
+
+    /**
+     * Sums the free scooters of the rectangle {@code [fromX, toX] x [fromY, toY]}, clipped to the map,
+     * adding up a rectangle query on each tile in use it intersects.
+     */
+    private int sumFree(int fromX, int fromY, int toX, int toY) {
+
+        fromX = Math.max(fromX, 0);
+        fromY = Math.max(fromY, 0);
+        toX = Math.min(toX, mapSize - 1);
+        toY = Math.min(toY, mapSize - 1);
+
+        int sum = 0;
+
+        for (int tileY = fromY / MapTile.SIZE; fromY <= toY && tileY <= toY / MapTile.SIZE; tileY++) {
+            for (int tileX = fromX / MapTile.SIZE; fromX <= toX && tileX <= toX / MapTile.SIZE; tileX++) {
+                MapTile tile = this.tiles.get(tileX, tileY);
+                if (tile != null) sum += tile.sumFree(fromX, fromY, toX, toY);
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * A block of the free counts pyramid, or a cell, waiting to be searched.
+     *
+     * @param distance  Distance from the starting point to the closest cell of the block.
+     * @param level     Level of the block, {@link #CELL_LEVEL} for a cell.
+     * @param x         Column of the block, in blocks of its level.
+     * @param y         Row of the block, in blocks of its level.
+     * @param direction For a cell, the side of the row where the search goes on if it has no free scooter.
+     */
+    private record Candidate(int distance, int level, int x, int y, int direction) {
+    }
+
+    /**
+     * Offers a block of the pyramid to the search, unless it has no free scooters or is out of range.
+     */
+    private void offerBlock(PriorityQueue<Candidate> queue, int level, int blockX, int blockY, int range,
+                            Location center) {
+
+        if (freePyramid.count(level, blockX, blockY) == 0) return;
+
+        int distance = distanceToBlock(level, blockX, blockY, center);
+        if (distance <= range) queue.add(new Candidate(distance, level, blockX, blockY, 0));
+    }
+
+    /**
+     * Offers the four blocks covered by a block of the pyramid to the search.
+     */
+    private void offerChildren(PriorityQueue<Candidate> queue, Candidate block, int range, Location center) {
+        for (int dy = 0; dy <= 1; dy++) {
+            for (int dx = 0; dx <= 1; dx++)
+                offerBlock(queue, block.level() - 1, 2 * block.x() + dx, 2 * block.y() + dy, range, center);
+        }
+    }
+
+    /**
+     * Offers to the search the free cell of row {@code y} of a tile closest to {@code fromX}, going in
+     * {@code direction}, unless it is out of range.
+     */
+    private void offerCell(PriorityQueue<Candidate> queue, MapTile tile, int y, int fromX, int direction, int range,
+                           Location center) {
+
+        int x = direction < 0 ? tile.lastFreeCell(y, fromX) : tile.firstFreeCell(y, fromX);
+        if (x == -1) return;
+
+        int distance = Math.abs(x - center.x()) + Math.abs(y - center.y());
+        if (distance <= range) queue.add(new Candidate(distance, CELL_LEVEL, x, y, direction));
+    }
+
+    /**
+     * Calculates the distance from a point to the closest cell of a block of the pyramid, clipped to the map.
+     */
+    private int distanceToBlock(int level, int blockX, int blockY, Location point) {
+
+        long fromX = (long) blockX << level;
+        long fromY = (long) blockY << level;
+        long toX = Math.min(fromX + (1L << level), mapSize) - 1;
+        long toY = Math.min(fromY + (1L << level), mapSize) - 1;
+
+        long dx = Math.max(0, Math.max(fromX - point.x(), point.x() - toX));
+        long dy = Math.max(0, Math.max(fromY - point.y(), point.y() - toY));
+
+        return (int) Math.min(dx + dy, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Calculates the distance from a point to the farthest cell of a block of the pyramid, clipped to the map.
+     */
+    private long farthestInBlock(int level, int blockX, int blockY, Location point) {
+
+        long fromX = (long) blockX << level;
+        long fromY = (long) blockY << level;
+        long toX = Math.min(fromX + (1L << level), mapSize) - 1;
+        long toY = Math.min(fromY + (1L << level), mapSize) - 1;
+
+        return Math.max(Math.abs(fromX - point.x()), Math.abs(toX - point.x()))
+                + Math.max(Math.abs(fromY - point.y()), Math.abs(toY - point.y()));
+    }
+
+    /**
+     * Finds the closest ring around {@code center}, from {@code fromRing} to {@code lastRing}, with a free scooter.
+     * <p>
+     * The search goes down the free counts pyramid best first, as {@link #getClosestScooterWithinRange} does, each
+     * block keyed by the first ring from {@code fromRing} on it reaches, and the cells taking precedence over the
+     * blocks of the same ring. On a tile, each row offers its free cells closest to the center from
+     * {@code fromRing} on, found on the free cells bitmap. Reads the atomic counters without locking.
+     *
+     * @return The ring, or -1 if there is none.
+     */
+    private int nextFreeRing(int fromRing, int lastRing, Location center) {
+
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(
+                Comparator.comparingInt(Candidate::distance).thenComparingInt(Candidate::level));
+        offerRingBlock(queue, freePyramid.topLevel(), 0, 0, fromRing, lastRing, center);
+
+        while (!queue.isEmpty()) {
+
+            Candidate candidate = queue.poll();
+
+            if (candidate.level() == CELL_LEVEL) return candidate.distance();
+
+            if (candidate.level() > FreePyramid.TILE_LEVEL) {
+                for (int dy = 0; dy <= 1; dy++) {
+                    for (int dx = 0; dx <= 1; dx++)
+                        offerRingBlock(queue, candidate.level() - 1, 2 * candidate.x() + dx, 2 * candidate.y() + dy,
+                                fromRing, lastRing, center);
+                }
+                continue;
+            }
+
+            MapTile tile = tiles.get(candidate.x(), candidate.y());
+            if (tile != null) offerRingCell(queue, tile, fromRing, lastRing, center);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Offers a block of the pyramid to the search of the next ring, unless it has no free scooters or no cell
+     * between the rings {@code fromRing} and {@code lastRing}.
+     */
+    private void offerRingBlock(PriorityQueue<Candidate> queue, int level, int blockX, int blockY, int fromRing,
+                                int lastRing, Location center) {
+
+        if (freePyramid.count(level, blockX, blockY) == 0) return;
+        if (farthestInBlock(level, blockX, blockY, center) < fromRing) return;
+
+        int distance = Math.max(distanceToBlock(level, blockX, blockY, center), fromRing);
+        if (distance <= lastRing) queue.add(new Candidate(distance, level, blockX, blockY, 0));
+    }
+
+    /**
+     * Offers to the search of the next ring the free cell of a tile closest to {@code center}, from the ring
+     * {@code fromRing} on, unless it is past {@code lastRing}.
+     */
+    private void offerRingCell(PriorityQueue<Candidate> queue, MapTile tile, int fromRing, int lastRing,
+                               Location center) {
+
+        long closest = Long.MAX_VALUE;
+        int closestX = 0;
+        int closestY = 0;
+        int toY = (int) Math.min(tile.originY + (long) MapTile.SIZE, mapSize) - 1;
+
+        for (int y = tile.originY; y <= toY; y++) {
+
+            // The cells of the row from the ring on are at least this many columns away from the center.
+            long dy = Math.abs((long) y - center.y());
+            long reach = Math.max(fromRing - dy, 0);
+
+            int left = tile.lastFreeCell(y, (int) (center.x() - reach));
+            int right = tile.firstFreeCell(y, (int) Math.min(center.x() + reach, Integer.MAX_VALUE));
+
+            if (left != -1 && center.x() - left + dy < closest) {
+                closest = center.x() - left + dy;
+                closestX = left;
+                closestY = y;
+            }
+            if (right != -1 && right - center.x() + dy < closest) {
+                closest = right - center.x() + dy;
+                closestX = right;
+                closestY = y;
+            }
+        }
+
+        if (closest <= lastRing) queue.add(new Candidate((int) closest, CELL_LEVEL, closestX, closestY, 0));
+    }
+
+    /**
+     * Visits the free cells of a ring around {@code center} from {@code offset} on, in ring order.
+     * <p>
+     * Each side of the ring, left and right of the center, is followed row by row, and its spans on tiles without
+     * free scooters, or off the map, are skipped whole, see {@link #emptySpanEnd}. The tiles of the ring must be
+     * locked.
+     *
+     * @return The offset of the first cell the visitor did not take, or {@link #RING_TAKEN} if it took every free
+     * cell, {@link #RING_EMPTY} if there was none.
+     */
+    private long visitRing(int ring, long offset, Location center, FreeCellPageVisitor visitor) {
+
+        long firstDy = Math.max(Rings.dy(ring, offset), -(long) center.y());
+        long lastDy = Math.min(ring, mapSize - 1L - center.y());
+        long[] sideFrom = {firstDy, firstDy}; // First row where each side, left then right, may have a free cell.
+        boolean found = false;
+
+        for (long dy = firstDy; dy <= lastDy; dy = Math.max(dy + 1, Math.min(sideFrom[0], sideFrom[1]))) {
+
+            int span = (int) (ring - Math.abs(dy));
+            int y = (int) (center.y() + dy);
+
+            // The top and bottom rows of a ring have a single cell.
+            for (int side = 0; side < (span == 0 ? 1 : 2); side++) {
+
+                if (dy < sideFrom[side]) continue;
+
+                long x = side == 0 ? center.x() - (long) span : center.x() + (long) span;
+                sideFrom[side] = emptySpanEnd(side == 0 ? -1 : 1, dy, x, y, center);
+                if (sideFrom[side] > dy) continue;
+
+                long cell = Rings.offsetOf(side == 0 ? -span : span, (int) dy);
+                MapTile tile = tiles.tileAt((int) x, y);
+                int free = cell < offset || tile == null ? 0 : tile.freeCount((int) x, y);
+                if (free == 0) continue;
+
+                found = true;
+                if (!visitor.visit((int) x, y, free)) return cell;
+            }
+        }
+
+        return found ? RING_TAKEN : RING_EMPTY;
+    }
+
+    /**
+     * Returns the first row, relative to {@code center}, after {@code dy} where a side of a ring may have a free
+     * cell again, or {@code dy} itself if the cell {@code (x, y)} of the side is on a tile with free scooters.
+     * <p>
+     * Along a side, the cells move a column each row, outwards above the center and inwards below it, so the rows
+     * left on a tile without free scooters, or off the map, follow from the bounds of the tile.
+     *
+     * @param side -1 for the left side of the ring, 1 for the right one.
+     */
+    private long emptySpanEnd(int side, long dy, long x, int y, Location center) {
+
+        long fromX; // First column of the tile of the cell, or of the area off the map.
+        long toX; // Last column of the tile of the cell, or of the area off the map.
+
+        if (x < 0) {
+            fromX = Long.MIN_VALUE;
+            toX = -1;
+        } else if (x >= mapSize) {
+            fromX = mapSize;
+            toX = Long.MAX_VALUE;
+        } else if (freePyramid.count(FreePyramid.TILE_LEVEL, (int) x / MapTile.SIZE, y / MapTile.SIZE) > 0) {
+            return dy;
+        } else {
+            fromX = x / MapTile.SIZE * MapTile.SIZE;
+            toX = fromX + MapTile.SIZE - 1;
+        }
+
+        long tileEnd = (y / MapTile.SIZE + 1L) * MapTile.SIZE - center.y(); // First row of the next tile down.
+        long halfEnd = dy < 0 ? 0 : Long.MAX_VALUE; // The side turns back at the row of the center.
+
+        int step = dy < 0 ? side : -side; // Columns moved each row.
+        long columnEnd;
+        if (step > 0) columnEnd = toX == Long.MAX_VALUE ? Long.MAX_VALUE : dy + toX - x + 1;
+        else columnEnd = fromX == Long.MIN_VALUE ? Long.MAX_VALUE : dy + x - fromX + 1;
+
+        return Math.min(Math.min(tileEnd, halfEnd), columnEnd);
+    }
+
+    /**
+     * Lists the tiles with free scooters within {@code range} of {@code center}, going down the pyramid
+     * and skipping the blocks without free scooters or out of range.
+     */
+    private List<MapTile> tilesWithFreeScooters(int range, Location center) {
+
+        List<MapTile> found = new ArrayList<>();
+        Deque<Candidate> pending = new ArrayDeque<>();
+
+        int top = freePyramid.topLevel();
+        if (freePyramid.count(top, 0, 0) > 0 && distanceToBlock(top, 0, 0, center) <= range)
+            pending.push(new Candidate(0, top, 0, 0, 0));
+
+        while (!pending.isEmpty()) {
+
+            Candidate block = pending.pop();
+
+            if (block.level() == FreePyramid.TILE_LEVEL) {
+                MapTile tile = tiles.get(block.x(), block.y());
+                if (tile != null) found.add(tile);
+                continue;
+            }
+
+            for (int dy = 0; dy <= 1; dy++) {
+                for (int dx = 0; dx <= 1; dx++) {
+                    int level = block.level() - 1;
+                    int blockX = 2 * block.x() + dx;
+                    int blockY = 2 * block.y() + dy;
+
+                    if (freePyramid.count(level, blockX, blockY) > 0
+                            && distanceToBlock(level, blockX, blockY, center) <= range)
+                        pending.push(new Candidate(0, level, blockX, blockY, 0));
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Clamps a search range to the diameter of the map, which no distance between two of its cells exceeds, so that
+     * the bounds of a search from a cell of the map never overflow, whatever range a client asks for.
+     */
+    private int clampRange(int range) {
+        return (int) Math.min(range, 2L * (mapSize - 1));
+    }
+
+    /**
+     * Locks the tiles covering the bounding box of the diamond of radius {@code range} around {@code center}.
+     *
+     * @param range     Radius of the diamond.
+     * @param center    Center of the diamond.
+     * @param exclusive Whether the tiles are locked for writing.
+     * @return The locked stripe.
+     */
+    private TileLocks.Stripe lockRange(int range, Location center, boolean exclusive) {
+        return tileLocks.lockArea(center.x() - range, center.y() - range,
+                (int) Math.min((long) center.x() + range, Integer.MAX_VALUE),
+                (int) Math.min((long) center.y() + range, Integer.MAX_VALUE), exclusive);
+    }
+
+    /**
+     * Claims a free scooter on the cell {@code (x, y)}.
+     *
+     * @param x     Column of the cell, may be outside the map.
+     * @param y     Row of the cell, may be outside the map.
+     * @param owner Username of the user claiming the scooter.
+     * @return The index of the claimed scooter, or {@link ScooterStore#NONE} if there is no free scooter on the cell.
+     */
+    private int claimFreeScooterAt(int x, int y, String owner) {
+
+        if (!inBounds(x, y)) return ScooterStore.NONE;
+
+        MapTile tile = tiles.tileAt(x, y);
+        if (tile == null || tile.freeCount(x, y) == 0) return ScooterStore.NONE;
+
+        for (int s = tile.heads[tile.slot(x, y)]; s != ScooterStore.NONE; s = store.next(s)) {
+            if (!store.isInUse(s) && store.tryClaim(s, owner)) return s;
+        }
+
+        return ScooterStore.NONE;
+    }
+
+    /**
+     * Counts every scooter, free or not, on the cell {@code (x, y)}.
+     *
+     * @param x Column of the cell.
+     * @param y Row of the cell.
+     * @return The number of scooters.
+     */
+    private int countScootersAt(int x, int y) {
+
+        int count = 0;
+        for (int s = headAt(x, y); s != ScooterStore.NONE; s = store.next(s)) count++;
+
+        return count;
+    }
+
+    /**
+     * Returns the tile of the cell {@code (x, y)}, creating it if needed. The tile must be locked for writing.
+     * <p>
+     * Every cell of a new tile is recorded as changed, since on a {@link Storage#SPARSE} map they may only
+     * become reward finishes once the tile is in use.
+     */
+    private MapTile tileOrCreateAt(int x, int y) {
+
+        MapTile tile = tiles.tileAt(x, y);
+        if (tile != null) return tile;
+
+        tile = tiles.tileOrCreateAt(x, y);
+
+        int lastX = Math.min(tile.originX + MapTile.SIZE, mapSize) - 1;
+        int lastY = Math.min(tile.originY + MapTile.SIZE, mapSize) - 1;
+        for (int cellY = tile.originY; cellY <= lastY; cellY++) {
+            for (int cellX = tile.originX; cellX <= lastX; cellX++) changedCells.add(new Location(cellX, cellY));
+        }
+
+        return tile;
+    }
+
+    /**
+     * Returns the first scooter on the cell {@code (x, y)}, or {@link ScooterStore#NONE} if it is empty.
+     */
+    private int headAt(int x, int y) {
+        MapTile tile = tiles.tileAt(x, y);
+        return tile == null ? ScooterStore.NONE : tile.heads[tile.slot(x, y)];
+    }
+
+    /**
+     * Updates the free scooter counter of a cell, see {@link MapTile#addFreeScooters(int, int, int)}, and the
+     * pyramid above it, and records the cell as changed. The tile of the cell must be in use.
+     *
+     * @param x     Column of the cell.
+     * @param y     Row of the cell.
+     * @param delta Variation of the number of free scooters.
+     */
+    private void addFreeScooters(int x, int y, int delta) {
+
+        tiles.tileAt(x, y).addFreeScooters(x, y, delta);
+        freePyramid.add(x, y, delta);
+
+        changedCells.add(new Location(x, y)); // Published only once the counters are up-to-date.
+    }
+
     /**
      * Calculates the distance between to points ({@link Location}), using
      * the Manhattan distance: {@code |ax - bx| + |ay - by|}.
@@ -202,6 +997,38 @@ public class ScooterMap {
         return Math.abs(a.x() - b.x()) + Math.abs(a.y() - b.y());
     }
 
+    /**
+     * Parks a reserved scooter, setting it free at its new location.
+     *
+     * @param scooter      The scooter to park.
+     * @param claimVersion Version of the claim made when the scooter was reserved.
+     * @param newLocation  The location where the scooter is left.
+     * @return {@code true} if the scooter was parked, {@code false} if the claim was no longer current or the new
+     * location is outside the map.
+     */
+    public boolean parkScooter(Scooter scooter, int claimVersion, Location newLocation) {
+
+        if (!isInside(newLocation)) return false;
+
+        int index = scooter.getIndex();
+        Location location = scooter.getLocation(); // A reserved scooter does not move until it is parked.
+
+        TileLocks.Stripe stripe = tileLocks.lockCells(true, location.x(), location.y(),
+                newLocation.x(), newLocation.y());
+
+        try {
+
+            if (!store.release(index, claimVersion)) return false;
+            addFreeScooters(location.x(), location.y(), 1);
+
+            moveScooter(index, location, newLocation);
+            return true;
+
+        } finally {
+            stripe.unlock();
+        }
+    }
+
     /**
      * Updates the location of a scooter in the scooter map.
      *
@@ -211,29 +1038,64 @@ public class ScooterMap {
      */
     public void updateScooterLocation(Location a, Location b, String scooterId) {
 
-        // Iterate through the scooters at the old location.
-        for (Scooter s : map[a.y()][a.x()]) {
-            // If a scooter is found with the specified ID, update its location to the new location.
-            if (s.getScooterId().equals(scooterId)) {
-                s.setLocation(b);
-                map[b.y()][b.x()].add(s);
-                map[a.y()][a.x()].remove(s);
-                show();
-                return; // For some reason if this return; is removed the code breaks ?
+        if (!isInside(a) || !isInside(b)) return;
+
+        TileLocks.Stripe stripe = tileLocks.lockCells(true, a.x(), a.y(), b.x(), b.y());
+
+        try {
+
+            UUID id = UUID.fromString(scooterId);
+
+            // Iterate through the scooters at the old location.
+            for (int s = headAt(a.x(), a.y()); s != ScooterStore.NONE; s = store.next(s)) {
+                // If a scooter is found with the specified ID, update its location to the new location.
+                if (store.hasId(s, id)) {
+                    moveScooter(s, a, b);
+                    return;
+                }
             }
+
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Moves a scooter between cells, carrying it over on the free counters if it is free.
+     * The tiles of both cells must be locked for writing.
+     *
+     * @param s Index of the scooter.
+     * @param a The old location of the scooter.
+     * @param b The new location of the scooter.
+     */
+    private void moveScooter(int s, Location a, Location b) {
+
+        MapTile from = tiles.tileAt(a.x(), a.y());
+        MapTile to = tileOrCreateAt(b.x(), b.y());
+
+        store.unlink(from.heads, from.slot(a.x(), a.y()), s);
+        store.link(to.heads, to.slot(b.x(), b.y()), s, b.x(), b.y());
+
+        // A free scooter takes its place on the counters of the new cell.
+        if (!store.isInUse(s)) {
+            addFreeScooters(a.x(), a.y(), -1);
+            addFreeScooters(b.x(), b.y(), 1);
         }
     }
 
     /**
      * This method prints the current location of all scooters in the map.
      * Each scooter's location is represented by a string, and the map is
-     * printed as a matrix of strings.
+     * printed as a matrix of strings. Sparse maps are too large to be printed.
      */
     private void show() {
 
-        for (List<Scooter>[] lists : map) {
-            for (List<Scooter> list : lists) {
-                for (Scooter s : list) System.out.print(s.getLocation().toString() + " ");
+        if (storage == Storage.SPARSE) return;
+
+        for (int y = 0; y < mapSize; y++) {
+            for (int x = 0; x < mapSize; x++) {
+                for (int s = headAt(x, y); s != ScooterStore.NONE; s = store.next(s))
+                    System.out.print(new Location(store.x(s), store.y(s)) + " ");
                 System.out.print(" | ");
             }
             System.out.print("\n");
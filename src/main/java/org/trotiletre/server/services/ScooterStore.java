@@ -0,0 +1,195 @@
+package org.trotiletre.server.services;
+
+import org.trotiletre.models.Scooter;
+import org.trotiletre.models.utils.Location;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Column store with the scooters of the {@link ScooterMap}.
+ * <p>
+ * Each scooter is interned to an {@code int} index, and its identification, coordinates and state are kept in
+ * primitive arrays, one per field, instead of one object per scooter. The scooters on the same cell are chained
+ * through the {@code next}/{@code prev} columns, forming an intrusive linked list whose head is kept by the map.
+ * <p>
+ * The store itself does no locking: the map guards coordinates and links with its tile locks, while the usage
+ * state is claimed with compare-and-set, so it can be changed under shared locks.
+ */
+class ScooterStore {
+
+    static final int NONE = -1; // Index representing the absence of a scooter.
+
+    private static final int FREE = 0; // State of a free scooter.
+    private static final int IN_USE = 1; // State of a scooter being used.
+    private static final VarHandle STATE = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private long[] idHigh; // Most significant bits of the scooter UUIDs.
+    private long[] idLow; // Least significant bits of the scooter UUIDs.
+    private int[] x; // Column of each scooter.
+    private int[] y; // Row of each scooter.
+    private int[] state; // Usage state of each scooter, only accessed through 'STATE'.
+    private int[] version; // Number of times each scooter was claimed.
+    private String[] owner; // Username of the user holding each scooter.
+    private int[] next; // Next scooter on the same cell.
+    private int[] prev; // Previous scooter on the same cell.
+    private int size = 0; // Number of scooters in the store.
+
+    /**
+     * Creates an empty store.
+     *
+     * @param capacity Initial number of scooters the store can hold.
+     */
+    ScooterStore(int capacity) {
+        resize(Math.max(capacity, 1));
+    }
+
+    /**
+     * Adds a new free scooter to the store, not yet linked to any cell.
+     * Must not run concurrently with any other access to the store.
+     *
+     * @param id Identification of the scooter.
+     * @param x  Column of the scooter.
+     * @param y  Row of the scooter.
+     * @return The index of the scooter.
+     */
+    int add(UUID id, int x, int y) {
+
+        if (size == this.x.length) resize(size * 2);
+
+        int i = size++;
+        this.idHigh[i] = id.getMostSignificantBits();
+        this.idLow[i] = id.getLeastSignificantBits();
+        this.x[i] = x;
+        this.y[i] = y;
+        this.next[i] = NONE;
+        this.prev[i] = NONE;
+
+        return i;
+    }
+
+    private void resize(int capacity) {
+
+        idHigh = idHigh == null ? new long[capacity] : Arrays.copyOf(idHigh, capacity);
+        idLow = idLow == null ? new long[capacity] : Arrays.copyOf(idLow, capacity);
+        x = x == null ? new int[capacity] : Arrays.copyOf(x, capacity);
+        y = y == null ? new int[capacity] : Arrays.copyOf(y, capacity);
+        state = state == null ? new int[capacity] : Arrays.copyOf(state, capacity);
+        version = version == null ? new int[capacity] : Arrays.copyOf(version, capacity);
+        owner = owner == null ? new String[capacity] : Arrays.copyOf(owner, capacity);
+        next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+        prev = prev == null ? new int[capacity] : Arrays.copyOf(prev, capacity);
+    }
+
+    /**
+     * Atomically claims a scooter for a user, if it is free.
+     *
+     * @param i     Index of the scooter.
+     * @param owner Username of the user claiming the scooter.
+     * @return {@code true} if the scooter was claimed, {@code false} if someone else got it first.
+     */
+    boolean tryClaim(int i, String owner) {
+
+        if (!STATE.compareAndSet(state, i, FREE, IN_USE)) return false;
+
+        // Only the winner of the claim gets here, until the scooter is released again.
+        this.owner[i] = owner;
+        this.version[i]++;
+        return true;
+    }
+
+    /**
+     * Releases a scooter, if it is still held by the claim with the given version.
+     *
+     * @param i       Index of the scooter.
+     * @param version Version of the claim being released.
+     * @return {@code true} if the scooter was released, {@code false} if the claim was not current.
+     */
+    boolean release(int i, int version) {
+
+        if (!isInUse(i) || this.version[i] != version) return false;
+
+        this.owner[i] = null;
+        return STATE.compareAndSet(state, i, IN_USE, FREE);
+    }
+
+    boolean isInUse(int i) {
+        return (int) STATE.getVolatile(state, i) == IN_USE;
+    }
+
+    int x(int i) {
+        return x[i];
+    }
+
+    int y(int i) {
+        return y[i];
+    }
+
+    int next(int i) {
+        return next[i];
+    }
+
+    /**
+     * Checks whether a scooter has the given identification.
+     *
+     * @param i  Index of the scooter.
+     * @param id Identification to compare with.
+     * @return {@code true} if the identifications match.
+     */
+    boolean hasId(int i, UUID id) {
+        return idHigh[i] == id.getMostSignificantBits() && idLow[i] == id.getLeastSignificantBits();
+    }
+
+    /**
+     * Links a scooter at the head of a cell list and updates its coordinates.
+     *
+     * @param heads Array holding the head of the cell list.
+     * @param slot  Position of the head in {@code heads}.
+     * @param i     Index of the scooter.
+     * @param x     Column of the cell.
+     * @param y     Row of the cell.
+     */
+    void link(int[] heads, int slot, int i, int x, int y) {
+
+        int head = heads[slot];
+
+        this.next[i] = head;
+        this.prev[i] = NONE;
+        if (head != NONE) this.prev[head] = i;
+        heads[slot] = i;
+
+        this.x[i] = x;
+        this.y[i] = y;
+    }
+
+    /**
+     * Removes a scooter from a cell list.
+     *
+     * @param heads Array holding the head of the cell list.
+     * @param slot  Position of the head in {@code heads}.
+     * @param i     Index of the scooter.
+     */
+    void unlink(int[] heads, int slot, int i) {
+
+        if (prev[i] != NONE) next[prev[i]] = next[i];
+        else heads[slot] = next[i];
+
+        if (next[i] != NONE) prev[next[i]] = prev[i];
+
+        next[i] = NONE;
+        prev[i] = NONE;
+    }
+
+    /**
+     * Creates a {@link Scooter} with the current information of a scooter in the store.
+     *
+     * @param i Index of the scooter.
+     * @return The scooter.
+     */
+    Scooter snapshot(int i) {
+        return new Scooter(i, new UUID(idHigh[i], idLow[i]).toString(), new Location(x[i], y[i]),
+                isInUse(i), owner[i], version[i]);
+    }
+}
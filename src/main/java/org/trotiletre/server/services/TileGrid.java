@@ -0,0 +1,188 @@
+package org.trotiletre.server.services;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tiles of the {@link ScooterMap}, as laid out by its {@link ScooterMap.Storage} mode.
+ * <p>
+ * The dense grid holds every tile of the map from the start. The sparse grid only holds the tiles where scooters
+ * have been, keyed by tile coordinates, so its memory and scans follow the populated area instead of the whole map.
+ * Tiles are only created under the exclusive lock of their tile, and never removed. Cells and tiles outside the
+ * map have no tile, rather than the tile of a neighbouring row or of the origin.
+ */
+abstract class TileGrid {
+
+    protected final int mapSize; // Size of the rows and columns of the map.
+    protected final int tilesPerRow; // Number of tiles on each row of the map.
+
+    private TileGrid(int mapSize) {
+        this.mapSize = mapSize;
+        this.tilesPerRow = (mapSize + MapTile.SIZE - 1) / MapTile.SIZE;
+    }
+
+    /**
+     * Creates the grid of a map.
+     *
+     * @param mapSize Size of the rows and columns of the map.
+     * @param storage How the tiles are laid out.
+     * @return The grid.
+     */
+    static TileGrid create(int mapSize, ScooterMap.Storage storage) {
+        return storage == ScooterMap.Storage.SPARSE ? new Sparse(mapSize) : new Dense(mapSize);
+    }
+
+    /**
+     * Returns the tile holding the cell {@code (x, y)}.
+     *
+     * @return The tile, or {@code null} if it has no cells in use or the cell is outside the map.
+     */
+    MapTile tileAt(int x, int y) {
+        if (!containsCell(x, y)) return null;
+        return get(x / MapTile.SIZE, y / MapTile.SIZE);
+    }
+
+    /**
+     * Checks whether the cell {@code (x, y)} is on the map, and not only on one of its tiles: the last tiles of a
+     * map whose size is not a multiple of theirs reach past it.
+     */
+    protected boolean containsCell(int x, int y) {
+        return x >= 0 && y >= 0 && x < mapSize && y < mapSize;
+    }
+
+    /**
+     * Checks whether the tile at {@code (tileX, tileY)}, in tiles, is on the map.
+     */
+    protected boolean contains(int tileX, int tileY) {
+        return tileX >= 0 && tileY >= 0 && tileX < tilesPerRow && tileY < tilesPerRow;
+    }
+
+    /**
+     * Returns the tile holding the cell {@code (x, y)}, creating it if needed.
+     * The tile must be locked for writing.
+     *
+     * @throws IllegalArgumentException If the cell is outside the map.
+     */
+    abstract MapTile tileOrCreateAt(int x, int y);
+
+    /**
+     * Returns the tile at {@code (tileX, tileY)}, in tiles.
+     *
+     * @return The tile, or {@code null} if it has no cells in use or is outside the map.
+     */
+    abstract MapTile get(int tileX, int tileY);
+
+    /**
+     * Lists the tiles in use intersecting the rectangle {@code [fromX, toX] x [fromY, toY]}, in row-major order.
+     * The rectangle must be clipped to the map.
+     *
+     * @param fromX First column of the rectangle.
+     * @param fromY First row of the rectangle.
+     * @param toX   Last column of the rectangle.
+     * @param toY   Last row of the rectangle.
+     * @return The tiles.
+     */
+    List<MapTile> within(int fromX, int fromY, int toX, int toY) {
+
+        List<MapTile> tiles = new ArrayList<>();
+        if (fromX > toX || fromY > toY) return tiles;
+
+        for (int tileY = fromY / MapTile.SIZE; tileY <= toY / MapTile.SIZE; tileY++) {
+            for (int tileX = fromX / MapTile.SIZE; tileX <= toX / MapTile.SIZE; tileX++) {
+                MapTile tile = get(tileX, tileY);
+                if (tile != null) tiles.add(tile);
+            }
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Every tile of the map, allocated up front in row-major order.
+     */
+    private static class Dense extends TileGrid {
+
+        private final MapTile[] tiles; // Tiles in row-major order.
+
+        private Dense(int mapSize) {
+            super(mapSize);
+            this.tiles = new MapTile[tilesPerRow * tilesPerRow];
+
+            for (int tileY = 0; tileY < tilesPerRow; tileY++) {
+                for (int tileX = 0; tileX < tilesPerRow; tileX++)
+                    tiles[tileY * tilesPerRow + tileX] = new MapTile(tileX, tileY);
+            }
+        }
+
+        @Override
+        MapTile tileOrCreateAt(int x, int y) {
+            MapTile tile = tileAt(x, y);
+            if (tile == null)
+                throw new IllegalArgumentException("Cell (" + x + "," + y + ") outside the map.");
+            return tile;
+        }
+
+        @Override
+        MapTile get(int tileX, int tileY) {
+            return contains(tileX, tileY) ? tiles[tileY * tilesPerRow + tileX] : null;
+        }
+    }
+
+    /**
+     * Only the tiles in use, in a hash keyed by tile coordinates.
+     */
+    private static class Sparse extends TileGrid {
+
+        private static final Comparator<MapTile> ROW_MAJOR =
+                Comparator.comparingInt((MapTile tile) -> tile.originY).thenComparingInt(tile -> tile.originX);
+
+        private final ConcurrentHashMap<Long, MapTile> tiles = new ConcurrentHashMap<>(); // Tiles by key.
+
+        private Sparse(int mapSize) {
+            super(mapSize);
+        }
+
+        private long key(int tileX, int tileY) {
+            return (long) tileY * tilesPerRow + tileX;
+        }
+
+        @Override
+        MapTile tileOrCreateAt(int x, int y) {
+            if (!containsCell(x, y))
+                throw new IllegalArgumentException("Cell (" + x + "," + y + ") outside the map.");
+            int tileX = x / MapTile.SIZE;
+            int tileY = y / MapTile.SIZE;
+            return tiles.computeIfAbsent(key(tileX, tileY), key -> new MapTile(tileX, tileY));
+        }
+
+        @Override
+        MapTile get(int tileX, int tileY) {
+            return contains(tileX, tileY) ? tiles.get(key(tileX, tileY)) : null;
+        }
+
+        /**
+         * Looks up each tile of the rectangle while it is smaller than the populated area, and goes through the
+         * populated tiles otherwise.
+         */
+        @Override
+        List<MapTile> within(int fromX, int fromY, int toX, int toY) {
+
+            if (fromX > toX || fromY > toY) return new ArrayList<>();
+
+            long area = (long) (toX / MapTile.SIZE - fromX / MapTile.SIZE + 1)
+                    * (toY / MapTile.SIZE - fromY / MapTile.SIZE + 1);
+            if (area <= tiles.size()) return super.within(fromX, fromY, toX, toY);
+
+            List<MapTile> found = new ArrayList<>();
+            for (MapTile tile : tiles.values()) {
+                if (tile.originX + MapTile.SIZE > fromX && tile.originX <= toX
+                        && tile.originY + MapTile.SIZE > fromY && tile.originY <= toY) found.add(tile);
+            }
+            found.sort(ROW_MAJOR);
+
+            return found;
+        }
+    }
+}
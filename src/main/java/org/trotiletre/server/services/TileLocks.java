@@ -0,0 +1,171 @@
+package org.trotiletre.server.services;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped locks for the {@link ScooterMap}, guarding square tiles of {@value #TILE_SIZE} x {@value #TILE_SIZE} cells.
+ * <p>
+ * Operations lock only the tiles they touch. A map with more tiles than stripes shares each lock among the tiles
+ * with the same index modulo the number of stripes, so very large maps do not need a lock per tile.
+ * To avoid deadlocks, locks are always taken in the same global order (stripe index), no matter which operation
+ * is locking them.
+ */
+class TileLocks {
+
+    static final int TILE_SIZE = 64; // Side of a tile, matches one word of the free cells bitmap.
+
+    private final int mapSize; // Size of the map, in cells.
+    private final int tilesPerRow; // Number of tiles on each row of the map.
+    private final ReentrantReadWriteLock[] locks; // Lock of each stripe.
+
+    /**
+     * Creates the locks to cover a map of the given size, one per tile.
+     *
+     * @param mapSize Size of the rows and columns of the map.
+     */
+    TileLocks(int mapSize) {
+        this(mapSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates the locks to cover a map of the given size.
+     *
+     * @param mapSize    Size of the rows and columns of the map.
+     * @param maxStripes Maximum number of locks, shared by the tiles if the map has more tiles than this.
+     */
+    TileLocks(int mapSize, int maxStripes) {
+
+        this.mapSize = mapSize;
+        this.tilesPerRow = (mapSize + TILE_SIZE - 1) / TILE_SIZE;
+        this.locks = new ReentrantReadWriteLock[(int) Math.min((long) tilesPerRow * tilesPerRow, maxStripes)];
+
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Locks every tile intersecting the rectangle {@code [fromX, toX] x [fromY, toY]}.
+     * The rectangle is clipped to the map, so it may extend beyond it.
+     *
+     * @param fromX     First column of the rectangle.
+     * @param fromY     First row of the rectangle.
+     * @param toX       Last column of the rectangle.
+     * @param toY       Last row of the rectangle.
+     * @param exclusive Whether the tiles are locked for writing.
+     * @return The locked stripe, to be unlocked by the caller.
+     */
+    Stripe lockArea(int fromX, int fromY, int toX, int toY, boolean exclusive) {
+
+        int fromTileX = Math.max(fromX, 0) / TILE_SIZE;
+        int fromTileY = Math.max(fromY, 0) / TILE_SIZE;
+        int toTileX = Math.min(toX, mapSize - 1) / TILE_SIZE;
+        int toTileY = Math.min(toY, mapSize - 1) / TILE_SIZE;
+
+        if (fromX >= mapSize || fromY >= mapSize || toX < 0 || toY < 0 || fromTileX > toTileX || fromTileY > toTileY)
+            return lock(new int[0], exclusive);
+
+        // An area with as many tiles as there are stripes is likely to need all of them anyway.
+        long area = (long) (toTileX - fromTileX + 1) * (toTileY - fromTileY + 1);
+        if (area >= locks.length) return lock(allStripes(), exclusive);
+
+        int[] stripes = new int[(int) area];
+        int i = 0;
+
+        for (int ty = fromTileY; ty <= toTileY; ty++) {
+            for (int tx = fromTileX; tx <= toTileX; tx++) stripes[i++] = stripeOf(tx, ty);
+        }
+
+        return lock(sorted(stripes), exclusive);
+    }
+
+    /**
+     * Locks the whole map.
+     *
+     * @param exclusive Whether the tiles are locked for writing.
+     * @return The locked stripe, to be unlocked by the caller.
+     */
+    Stripe lockAll(boolean exclusive) {
+        return lockArea(0, 0, mapSize - 1, mapSize - 1, exclusive);
+    }
+
+    /**
+     * Locks the tiles holding the given cells, each cell being a pair of coordinates {@code x, y}.
+     *
+     * @param exclusive Whether the tiles are locked for writing.
+     * @param cells     Coordinates of the cells, as {@code x0, y0, x1, y1, ...}.
+     * @return The locked stripe, to be unlocked by the caller.
+     */
+    Stripe lockCells(boolean exclusive, int... cells) {
+
+        int[] stripes = new int[cells.length / 2];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = stripeOf(cells[2 * i] / TILE_SIZE, cells[2 * i + 1] / TILE_SIZE);
+
+        return lock(sorted(stripes), exclusive);
+    }
+
+    private int stripeOf(int tileX, int tileY) {
+        return (int) (((long) tileY * tilesPerRow + tileX) % locks.length);
+    }
+
+    private int[] allStripes() {
+
+        int[] stripes = new int[locks.length];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = i;
+
+        return stripes;
+    }
+
+    /**
+     * Sorts the stripes into the global order, keeping each one only once.
+     */
+    private static int[] sorted(int[] stripes) {
+
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) stripes[distinct++] = stripes[i];
+        }
+
+        return Arrays.copyOf(stripes, distinct);
+    }
+
+    private Stripe lock(int[] stripes, boolean exclusive) {
+
+        Lock[] held = new Lock[stripes.length];
+
+        for (int i = 0; i < stripes.length; i++) {
+            held[i] = exclusive ? locks[stripes[i]].writeLock() : locks[stripes[i]].readLock();
+            held[i].lock();
+        }
+
+        return new Stripe(held);
+    }
+
+    /**
+     * A set of stripe locks held by an operation.
+     */
+    static class Stripe {
+
+        private final Lock[] held; // Locks held, in the order they were acquired.
+
+        private Stripe(Lock[] held) {
+            this.held = held;
+        }
+
+        /**
+         * Returns the number of stripe locks held.
+         */
+        int count() {
+            return held.length;
+        }
+
+        /**
+         * Releases the held locks, in the reverse order they were acquired.
+         */
+        void unlock() {
+            for (int i = held.length - 1; i >= 0; i--) held[i].unlock();
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package org.trotiletre.server.skeletons;
 
 import org.trotiletre.common.AnswerTag;
+import org.trotiletre.common.communication.AuthenticationMessages;
+import org.trotiletre.common.communication.BufferInput;
+import org.trotiletre.common.communication.BufferOutput;
+import org.trotiletre.common.communication.BufferPool;
+import org.trotiletre.common.communication.Codec;
 import org.trotiletre.common.communication.Skeleton;
 import org.trotiletre.server.services.AuthenticationManager;
 import org.trotiletre.server.services.NotificationManager;
@@ -8,6 +13,7 @@ import org.trotiletre.server.services.ResponseManager;
 
 import java.io.*;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 /**
  * A class that implements the {@link Skeleton} interface for the {@link AuthenticationManager} class.
@@ -33,11 +39,10 @@ public class AuthenticationManagerSkeleton implements Skeleton {
     }
 
     @Override
-    public void handle(byte[] data, SocketAddress socketAddress) throws Exception {
+    public void handle(ByteBuffer data, SocketAddress socketAddress, int requestId) throws Exception {
 
         // Unwrapping the data obtained in 'data' argument.
-        ByteArrayInputStream dataStream = new ByteArrayInputStream(data);
-        DataInput payload = new DataInputStream(dataStream);
+        DataInput payload = new BufferInput(data);
 
         /*
          * There are 3 operations on this skeleton, login, register and logout.
@@ -45,29 +50,31 @@ public class AuthenticationManagerSkeleton implements Skeleton {
          *   0: Register - String, String
          *   1: LogIn - String, String
          *   2: LogOut - String
+         *
+         * The messages of each operation are in AuthenticationMessages.
          */
-        int operation = payload.readInt(); // Reading the operation we want to use.
+        int operation = Codec.readVarInt(payload); // Reading the operation we want to use.
 
-        if (operation == 0) {
+        if (operation == AuthenticationMessages.RegisterUser.OPERATION) {
 
             /*
              * This section handles the requests for registering a new user.
              * The message we are expecting to receive will have:
-             *  + user's username: Integer.
-             *  + user's password hash: Integer.
+             *  + user's username: String.
+             *  + user's password hash: String.
              *
              *  This operation may fail and if so, returns -1.
              */
 
-            var username = payload.readUTF(); // Reading the username.
-            var passwordHash = payload.readUTF(); // Reading the password hash.
+            var request = AuthenticationMessages.RegisterUser.decode(payload);
+            var username = request.username(); // Reading the username.
+            var passwordHash = request.passwordHash(); // Reading the password hash.
 
             // Registering the user using the 'API'.
             boolean registerStatus = auth.registerUser(username, passwordHash);
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
+            // New buffer, leased from the pool, to put our results.
+            BufferOutput dataOutput = new BufferOutput(BufferPool.shared());
 
             if (registerStatus) {
                 System.out.println("server> Registered new user '" + username + "'.");
@@ -79,29 +86,29 @@ public class AuthenticationManagerSkeleton implements Skeleton {
             }
 
             // Sending to the client.
-            responseManager.send(socketAddress, output.toByteArray(), AnswerTag.ANSWER.tag);
+            responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
         }
 
-        if (operation == 1) {
+        if (operation == AuthenticationMessages.LoginUser.OPERATION) {
 
             /*
              * This section handles the requests for logging in a user.
              * The message we are expecting to receive will have:
-             *  + user's username: Integer.
-             *  + user's password: Integer.
+             *  + user's username: String.
+             *  + user's password: String.
              *
              *  This operation may fail and if so, returns false.
              */
 
-            var username = payload.readUTF(); // Reading the user username.
-            var passwordHash = payload.readUTF(); // Reading the user's password.
+            var request = AuthenticationMessages.LoginUser.decode(payload);
+            var username = request.username(); // Reading the user username.
+            var passwordHash = request.password(); // Reading the user's password.
 
             // Attempting to log in the user.
             boolean loginStatus = auth.loginUser(username, passwordHash);
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
+            // New buffer, leased from the pool, to put our results.
+            BufferOutput dataOutput = new BufferOutput(BufferPool.shared());
 
             if (loginStatus) {
                 responseManager.registerUser(username, socketAddress);
@@ -114,27 +121,26 @@ public class AuthenticationManagerSkeleton implements Skeleton {
             }
 
             // Sending to the client.
-            responseManager.send(socketAddress, output.toByteArray(), AnswerTag.ANSWER.tag);
+            responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
         }
 
-        if (operation == 2) {
+        if (operation == AuthenticationMessages.LogoutUser.OPERATION) {
 
             /*
              * This section handles the requests for logging out the user.
              * The message we are expecting to receive will have:
-             *  + user's username: Integer.
+             *  + user's username: String.
              *
              *  This operation may fail and if so, returns false.
              */
 
-            var username = payload.readUTF(); // Reading the user username.
+            var username = AuthenticationMessages.LogoutUser.decode(payload).username(); // Reading the user username.
 
             // Attempting to log in the user.
             boolean logoutStatus = auth.logoutUser(username);
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
+            // New buffer, leased from the pool, to put our results.
+            BufferOutput dataOutput = new BufferOutput(BufferPool.shared());
 
             if (logoutStatus) {
                 responseManager.removeUser(username);
@@ -146,7 +152,7 @@ public class AuthenticationManagerSkeleton implements Skeleton {
                 System.out.println("server> Failed to log out user '" + username + "'.");
                 dataOutput.writeBoolean(false);
             }
-            responseManager.send(socketAddress, output.toByteArray(), AnswerTag.ANSWER.tag);
+            responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
         }
 
     }
@@ -2,13 +2,18 @@ package org.trotiletre.server.skeletons;
 
 import org.trotiletre.common.AnswerTag;
 import org.trotiletre.common.NotificationOperations;
+import org.trotiletre.common.communication.BufferInput;
+import org.trotiletre.common.communication.BufferOutput;
+import org.trotiletre.common.communication.BufferPool;
+import org.trotiletre.common.communication.Codec;
+import org.trotiletre.common.communication.NotificationMessages;
 import org.trotiletre.common.communication.Skeleton;
-import org.trotiletre.models.utils.Location;
 import org.trotiletre.server.services.NotificationManager;
 import org.trotiletre.server.services.ResponseManager;
 
 import java.io.*;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 public class NotificationManagerSkeleton implements Skeleton {
     private final NotificationManager notificationManager;
@@ -20,40 +25,34 @@ public class NotificationManagerSkeleton implements Skeleton {
     }
 
     @Override
-    public void handle(byte[] receivedData, SocketAddress socketAddress) throws Exception {
-        DataInput dataInput = new DataInputStream(new ByteArrayInputStream(receivedData));
+    public void handle(ByteBuffer receivedData, SocketAddress socketAddress, int requestId) throws Exception {
+        DataInput dataInput = new BufferInput(receivedData);
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        DataOutput dataOutput = new DataOutputStream(byteStream);
+        BufferOutput dataOutput = new BufferOutput(BufferPool.shared());
 
-        NotificationOperations op = NotificationOperations.fromInt(dataInput.readInt());
+        NotificationOperations op = NotificationOperations.fromInt(Codec.readVarInt(dataInput));
 
         switch (op) {
             case REGISTER -> {
-                String user = dataInput.readUTF();
+                String user = NotificationMessages.UserRequest.decode(op, dataInput).user();
                 dataOutput.writeBoolean(this.notificationManager.register(user));
-                this.responseManager.send(socketAddress, byteStream.toByteArray(), AnswerTag.ANSWER.tag);
+                this.responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
             }
             case IS_REGISTERED -> {
-                String user = dataInput.readUTF();
+                String user = NotificationMessages.UserRequest.decode(op, dataInput).user();
                 dataOutput.writeBoolean(this.notificationManager.isRegistered(user));
-                this.responseManager.send(socketAddress, byteStream.toByteArray(), AnswerTag.ANSWER.tag);
+                this.responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
             }
             case ADD_LOCATION -> {
-                String user = dataInput.readUTF();
-                Location location = new Location(
-                        dataInput.readInt(),
-                        dataInput.readInt()
-                );
-                int radius = dataInput.readInt();
-                boolean b = this.notificationManager.addLocation(user, location, radius);
+                var request = NotificationMessages.AddLocation.decode(dataInput);
+                boolean b = this.notificationManager.addLocation(request.user(), request.location(), request.radius());
                 dataOutput.writeBoolean(b);
-                this.responseManager.send(socketAddress, byteStream.toByteArray(), AnswerTag.ANSWER.tag);
+                this.responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
             }
             case REMOVE -> {
-                String user = dataInput.readUTF();
+                String user = NotificationMessages.UserRequest.decode(op, dataInput).user();
                 dataOutput.writeBoolean(this.notificationManager.remove(user));
-                this.responseManager.send(socketAddress, byteStream.toByteArray(), AnswerTag.ANSWER.tag);
+                this.responseManager.send(socketAddress, dataOutput.finish(), AnswerTag.ANSWER.tag, requestId);
             }
         }
     }
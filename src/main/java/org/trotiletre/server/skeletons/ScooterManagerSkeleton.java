@@ -1,6 +1,11 @@
 package org.trotiletre.server.skeletons;
 
 import org.trotiletre.common.AnswerTag;
+import org.trotiletre.common.communication.BufferInput;
+import org.trotiletre.common.communication.BufferPool;
+import org.trotiletre.common.communication.Codec;
+import org.trotiletre.common.communication.Message;
+import org.trotiletre.common.communication.ScooterMessages;
 import org.trotiletre.common.communication.Skeleton;
 import org.trotiletre.models.utils.GenericPair;
 import org.trotiletre.models.utils.Location;
@@ -11,7 +16,11 @@ import org.trotiletre.server.services.ScooterManager;
 
 import java.io.*;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * A class that implements the {@link Skeleton} interface for the {@link ScooterManager} class.
@@ -43,68 +52,101 @@ public class ScooterManagerSkeleton implements Skeleton {
      *
      * @param data          Data received from the connection.
      * @param socketAddress The socket to the client object.
+     * @param requestId     The id of the request, echoed back on the reply.
      * @throws Exception If it can't communicate with the client.
      */
     @Override
-    public void handle(byte[] data, SocketAddress socketAddress) throws Exception {
+    public void handle(ByteBuffer data, SocketAddress socketAddress, int requestId) throws Exception {
 
         /* Unwrapping the data obtained in 'data' argument. */
-        ByteArrayInputStream dataStream = new ByteArrayInputStream(data);
-        DataInput payload = new DataInputStream(dataStream);
+        DataInput payload = new BufferInput(data);
 
-        int operation = payload.readInt(); // Operation value.
+        int operation = Codec.readVarInt(payload); // Operation value.
 
-        if (operation == 0) {
+        if (operation == ScooterMessages.ListFreeScooters.OPERATION) {
 
             /*
              * This section handles the requests for listing the free scooters.
              * The message we are expecting to receive will have:
-             *  + x coordinate of the user's position: Integer.
-             *  + y coordinate of the user's position: Integer.
-             *  + The range of the search for scooters: Integer.
+             *  + The user's position: Location.
+             *  + The range of the search for scooters: Varint.
              *
              *  This operation requires no authentication, and since the worst outcome
              *  is not having any scooters, we can just send the list with the
              *  coordinates as a string via the connection.
              */
 
-            var locationX = payload.readInt(); // X coordinate of the starting position.
-            var locationY = payload.readInt(); // Y coordinate of the starting position.
-            var range = payload.readInt(); // Range for the search.
+            var request = ScooterMessages.ListFreeScooters.decode(payload);
 
             // Executing the request by delegating the message to the system manager.
-            String listedScooters = scooterManager.listFreeScooters(
-                    range,
-                    new Location(locationX, locationY)
-            );
+            String listedScooters = scooterManager.listFreeScooters(request.range(), request.position());
 
-            System.out.println("server> Client asked requested for the list of scooters.");
+            System.out.println("server> Client asked for the list of free scooters.");
 
             // Sending to the user the obtained results.
-            responseManager.send(socketAddress, listedScooters.getBytes(), AnswerTag.ANSWER.tag);
+            responseManager.send(socketAddress, listedScooters.getBytes(StandardCharsets.UTF_8), AnswerTag.ANSWER.tag, requestId);
+        }
+
+        if (operation == ScooterMessages.ListFreeScooterLocations.OPERATION) {
+
+            /*
+             * This section handles the requests for listing the free scooters in binary.
+             * The message we are expecting to receive will have:
+             *  + The user's position: Location.
+             *  + The range of the search for scooters: Varint.
+             *  + Whether to list each cell once, with its number of free scooters: Boolean.
+             *
+             *  Like the operation 0 it requires no authentication, but the locations are sent relative to
+             *  the user's position instead of as a string.
+             */
+
+            var request = ScooterMessages.ListFreeScooterLocations.decode(payload);
+
+            var listing = scooterManager.listFreeScooterLocations(request.range(), request.position(), request.perCell());
+
+            System.out.println("server> Client asked for the locations of the free scooters.");
+
+            reply(socketAddress, requestId, listing);
+        }
+
+        if (operation == ScooterMessages.ListFreeScootersPage.OPERATION) {
+
+            /*
+             * This section handles the requests for a page of the listing of the free scooters.
+             * The message we are expecting to receive will have:
+             *  + The user's position: Location.
+             *  + The range of the search for scooters: Varint.
+             *  + Whether to list each cell once, with its number of free scooters: Boolean.
+             *  + The cursor of the page: Zig-zag varint of a long.
+             *  + The size of the page: Varint.
+             *
+             *  The reply is the cursor of the next page followed by the binary listing of operation 4.
+             */
+
+            var request = ScooterMessages.ListFreeScootersPage.decode(payload);
+
+            System.out.println("server> Client asked for a page of the free scooters.");
+
+            var page = scooterManager.listFreeScootersPage(request.range(), request.position(), request.perCell(),
+                    request.cursor(), request.pageSize());
+
+            reply(socketAddress, requestId, page);
         }
 
-        if (operation == 1) {
+        if (operation == ScooterMessages.ReserveScooter.OPERATION) {
 
             /*
              * This section handles the requests for renting a free scooters.
              * The message we are expecting to receive will have:
-             *  + The range of the search for scooters: Integer.
-             *  + x coordinate of the user's position: Integer.
-             *  + y coordinate of the user's position: Integer.
+             *  + The range of the search for scooters: Varint.
+             *  + The user's position: Location.
              *  + The user's username, used to check whether he is authenticated.
              *
              *  This operation requires authentication.
              */
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
-
-            int range = payload.readInt(); // Range for the search.
-            int locationX = payload.readInt(); // X coordinate of the starting position.
-            int locationY = payload.readInt(); // Y coordinate of the starting position.
-            String username = payload.readUTF(); // User's username, for authentication purpouses.
+            var request = ScooterMessages.ReserveScooter.decode(payload);
+            String username = request.username(); // User's username, for authentication purpouses.
 
             System.out.println("server> User '" + username + "' requested a scooter.");
 
@@ -112,71 +154,55 @@ public class ScooterManagerSkeleton implements Skeleton {
             if (!authManager.isUserOnline(username)) {
 
                 System.out.println("server> User '" + username + "' is not logged in.");
-                dataOutput.writeInt(2);
-                responseManager.send(socketAddress, output.toByteArray(), AnswerTag.ANSWER.tag);
+                reply(socketAddress, requestId, new ScooterMessages.Reservation(ScooterMessages.Reservation.NOT_LOGGED_IN, null, null));
                 return;
             }
 
             // Reserving the scooter for the client.
             GenericPair<String, Location> reservationStatus = scooterManager.reserveScooter(
-                    range,
-                    new Location(locationX, locationY),
+                    request.range(),
+                    request.position(),
                     username
             );
 
             /*
              * Now we need to encapsulate the results obtained and send them to the client.
              * Since each response has more than one parameter we need to create our simple PDU:
-             *   [response_code] | (reservation_code) | (x_location) | (y_location)
-             *
-             * Values within () are optional.
+             *   [response_code] | (reservation_code) | (location)
              *
-             * The response code can be:
-             *   0 - Normal behaviour;
-             *   1 - There are no scooters available;
-             *   2 - User is not logged in.
+             * Values within () are optional, see ScooterMessages.Reservation for the response codes.
              */
 
-            if (reservationStatus == null) dataOutput.writeInt(1);
-            else {
+            ScooterMessages.Reservation reservation;
 
-                dataOutput.writeInt(0); // Response code.
-                dataOutput.writeUTF(reservationStatus.getFirst()); // Reservation code as string.
-
-                Location loc = reservationStatus.getSecond();
+            if (reservationStatus == null)
+                reservation = new ScooterMessages.Reservation(ScooterMessages.Reservation.NO_SCOOTERS, null, null);
+            else {
 
-                dataOutput.writeInt(loc.x()); // Location x coordinate.
-                dataOutput.writeInt(loc.y()); // Location y coordinate.
+                reservation = new ScooterMessages.Reservation(ScooterMessages.Reservation.RESERVED,
+                        UUID.fromString(reservationStatus.getFirst()), reservationStatus.getSecond());
 
                 rewardManager.signal();
             }
 
-            // Packing the data onto a byte[] and sending to the client.
-            byte[] responseData = output.toByteArray();
-            responseManager.send(socketAddress, responseData, AnswerTag.ANSWER.tag);
+            // Packing the data and sending to the client.
+            reply(socketAddress, requestId, reservation);
         }
 
-        if (operation == 2) {
+        if (operation == ScooterMessages.ParkScooter.OPERATION) {
 
             /*
              * This section handles the requests for parking a scooter.
              * The message we are expecting to receive will have:
-             *  + The reservation identification of the scooter: UTF.
-             *  + x coordinate of the new position: Integer.
-             *  + y coordinate of the new position: Integer.
+             *  + The reservation identification of the scooter: UUID.
+             *  + The new position: Location.
              *  + The user's username, used to check whether he is authenticated.
              *
              *  This operation requires authentication.
              */
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
-
-            String reservationCode = payload.readUTF(); // Reservation ID, used to obtain the scooter.
-            int locationX = payload.readInt(); // X coordinate of the starting position.
-            int locationY = payload.readInt(); // Y coordinate of the starting position.
-            String username = payload.readUTF(); // User's username, for authentication purpouses.
+            var request = ScooterMessages.ParkScooter.decode(payload);
+            String username = request.username(); // User's username, for authentication purpouses.
 
             System.out.println("server> User '" + username + "' requested to park a scooter.");
 
@@ -184,16 +210,14 @@ public class ScooterManagerSkeleton implements Skeleton {
             if (!authManager.isUserOnline(username)) {
 
                 System.out.println("server> User '" + username + "' is not logged in.");
-
-                dataOutput.writeInt(2);
-                responseManager.send(socketAddress, output.toByteArray(), AnswerTag.ANSWER.tag);
+                reply(socketAddress, requestId, new ScooterMessages.Parking(ScooterMessages.Parking.NOT_LOGGED_IN, 0, null));
                 return;
             }
 
             // Delegating the request to the scooter manager service.
             GenericPair<Double, Double> parkingStatus = scooterManager.parkScooter(
-                    reservationCode,
-                    new Location(locationX, locationY),
+                    request.code(),
+                    request.position(),
                     username
             );
 
@@ -202,79 +226,83 @@ public class ScooterManagerSkeleton implements Skeleton {
             /*
              * Once again, we need to encapsulate the results obtained and send them to the client.
              * Our PDU, this time will be represented by:
-             *   [response_code] | [price] | (bounty_price)
+             *   [response_code] | (price) | (bounty_price)
              *
-             * Values within () are optional.
-             *
-             * The response code can be:
-             *   0 - Normal behaviour;
-             *   1 - Reservation ID is not valid;
-             *   2 - User is not logged in.
-             *   3 - Packet includes a bounty price.
+             * Values within () are optional, see ScooterMessages.Parking for the response codes.
              */
 
-            int response_code = 1;
+            ScooterMessages.Parking parking;
 
-            if (parkingStatus == null) dataOutput.writeInt(response_code);
+            if (parkingStatus == null)
+                parking = new ScooterMessages.Parking(ScooterMessages.Parking.INVALID_CODE, 0, null);
             else {
 
                 Double price = parkingStatus.getFirst(); // Price of the renting.
                 Double bountyPrice = parkingStatus.getSecond(); // Price of the bounty, if available.
 
-                if (bountyPrice == null) response_code = 0;
-                else response_code = 3;
-
-                dataOutput.writeInt(response_code); // Response code.
-                dataOutput.writeDouble(price); // Writing price.
-
-                if (bountyPrice != null) dataOutput.writeDouble(bountyPrice); // Writing bounty is available.
+                int responseCode = bountyPrice == null ? ScooterMessages.Parking.PARKED : ScooterMessages.Parking.REWARDED;
+                parking = new ScooterMessages.Parking(responseCode, price, bountyPrice);
             }
 
             // Packing and sending the data to the client.
-            byte[] responseData = output.toByteArray();
-            responseManager.send(socketAddress, responseData, AnswerTag.ANSWER.tag);
+            reply(socketAddress, requestId, parking);
         }
 
-        if (operation == 3) {
+        if (operation == ScooterMessages.ListRewards.OPERATION) {
 
             /*
              * This section handles the requests for listing rewards.
              * The message we are expecting to receive will have:
-             *  + The reservation identification of the scooter: UTF.
-             *  + x coordinate of the new position: Integer.
-             *  + y coordinate of the new position: Integer.
-             *  + The user's username, used to check whether he is authenticated.
-             *
-             *  This operation requires authentication.
-             * public List<RewardPath> getRewardPaths(Location start, int radius)
+             *  + The user's position: Location.
+             *  + The search range: Varint.
              */
 
-            // New byte array stream to put our results.
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            DataOutput dataOutput = new DataOutputStream(output);
+            var request = ScooterMessages.ListRewards.decode(payload);
 
-            int locationX = payload.readInt(); // X coordinate of the starting position.
-            int locationY = payload.readInt(); // Y coordinate of the starting position.
-            int range = payload.readInt(); // Search range.
-
-            System.out.println("server> User for listing of rewards.");
+            System.out.println("server> Client asked for the list of rewards.");
 
             // Delegating the request to the reward manager service.
             List<RewardManager.RewardPath> rewardList = rewardManager.getRewardPaths(
-                    new Location(locationX, locationY),
-                    range
+                    request.position(),
+                    request.range()
             );
 
-            dataOutput.writeInt(rewardList.size());
+            // Packing and sending the data to the client.
+            reply(socketAddress, requestId, RewardManager.toMessage(rewardList));
+        }
 
-            for (RewardManager.RewardPath r : rewardList) {
-                dataOutput.writeUTF(r.toString());
+        if (operation == ScooterMessages.ListRewardsPage.OPERATION) {
+
+            /*
+             * This section handles the requests for a page of the listing of rewards.
+             * The message we are expecting to receive will have:
+             *  + The user's position: Location.
+             *  + The search range: Varint.
+             *  + The cursor of the page: Zig-zag varint of a long.
+             *  + The size of the page: Varint.
+             */
+
+            var request = ScooterMessages.ListRewardsPage.decode(payload);
+
+            System.out.println("server> Client asked for a page of the rewards.");
+
+            List<RewardManager.RewardPath> rewardList = new ArrayList<>();
+            long next = ScooterMessages.CURSOR_END;
+
+            if (request.cursor() >= 0) {
+                next = rewardManager.getRewardPaths(request.position(), request.range(), request.cursor(),
+                        Math.min(Math.max(request.pageSize(), 1), ScooterMessages.MAX_PAGE_SIZE), rewardList);
             }
 
-            // Packing and sending the data to the client.
-            byte[] responseData = output.toByteArray();
-            responseManager.send(socketAddress, responseData, AnswerTag.ANSWER.tag);
+            reply(socketAddress, requestId, new ScooterMessages.RewardsPage(next, RewardManager.toMessage(rewardList)));
         }
     }
 
+    private void reply(SocketAddress socketAddress, int requestId, Message reply) throws IOException {
+
+        // New buffer, leased from the pool, to put our results.
+        ByteBuffer responseData = Codec.toBuffer(reply, BufferPool.shared());
+        responseManager.send(socketAddress, responseData, AnswerTag.ANSWER.tag, requestId);
+    }
+
 }
@@ -3,6 +3,7 @@ package org.trotiletre.ui;
 import org.trotiletre.client.stubs.AuthenticationManagerStub;
 import org.trotiletre.client.stubs.NotificationManagerStub;
 import org.trotiletre.client.stubs.ScooterManagerStub;
+import org.trotiletre.client.workers.Heartbeat;
 import org.trotiletre.client.workers.NotificationListener;
 import org.trotiletre.common.communication.Demultiplexer;
 import org.trotiletre.common.communication.TaggedConnection;
@@ -38,6 +39,10 @@ public class Application {
 
         demultiplexer.start();
         new Thread(new NotificationListener(demultiplexer)).start();
+
+        Thread heartbeat = new Thread(new Heartbeat(connection, Heartbeat.DEFAULT_INTERVAL));
+        heartbeat.setDaemon(true);
+        heartbeat.start();
     }
 
     public static void main(String[] args) throws IOException, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
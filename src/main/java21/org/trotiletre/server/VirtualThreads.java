@@ -0,0 +1,28 @@
+package org.trotiletre.server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the virtual threads of the connections, see {@link RMIServer#useVirtualThreads()}.
+ * <p>
+ * This is the Java 21 version, placed in {@code META-INF/versions/21} of the server jar.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns whether the runtime has virtual threads.
+     */
+    static boolean available() {
+        return true;
+    }
+
+    /**
+     * Returns a factory of virtual threads named {@code name} followed by a counter.
+     */
+    static ThreadFactory factory(String name) {
+        return Thread.ofVirtual().name(name, 0).factory();
+    }
+}
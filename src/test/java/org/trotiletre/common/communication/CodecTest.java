@@ -0,0 +1,159 @@
+package org.trotiletre.common.communication;
+
+import org.junit.jupiter.api.Test;
+import org.trotiletre.models.utils.Location;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The varints, zig-zag varints, strings and UUIDs of the requests and replies.
+ */
+class CodecTest {
+
+    private static final int[] VALUES = {0, 1, -1, 63, -64, 64, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1};
+
+    @Test
+    void varIntsRoundTrip() throws IOException {
+        for (int value : VALUES) {
+            byte[] bytes = write(output -> Codec.writeVarInt(output, value));
+
+            assertEquals(value, Codec.readVarInt(Codec.input(bytes)));
+            assertEquals(value < 0 ? 5 : varIntLength(value), bytes.length, "length of " + value);
+        }
+    }
+
+    @Test
+    void signedVarIntsRoundTrip() throws IOException {
+        for (int value : VALUES) {
+            byte[] bytes = write(output -> Codec.writeSignedVarInt(output, value));
+            assertEquals(value, Codec.readSignedVarInt(Codec.input(bytes)));
+        }
+
+        // Small numbers take a single byte whatever their sign.
+        assertEquals(1, write(output -> Codec.writeSignedVarInt(output, -64)).length);
+        assertEquals(1, write(output -> Codec.writeSignedVarInt(output, 63)).length);
+        assertEquals(2, write(output -> Codec.writeSignedVarInt(output, 64)).length);
+    }
+
+    @Test
+    void varLongsRoundTrip() throws IOException {
+        long[] values = {0, 1, -1, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 35, Long.MAX_VALUE,
+                Long.MIN_VALUE};
+
+        for (long value : values) {
+            byte[] unsigned = write(output -> Codec.writeVarLong(output, value));
+            assertEquals(value, Codec.readVarLong(Codec.input(unsigned)));
+
+            byte[] signed = write(output -> Codec.writeSignedVarLong(output, value));
+            assertEquals(value, Codec.readSignedVarLong(Codec.input(signed)));
+        }
+
+        assertEquals(10, write(output -> Codec.writeVarLong(output, -1)).length);
+        assertThrows(IOException.class, () -> Codec.readVarLong(Codec.input(new byte[]{
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0})));
+    }
+
+    @Test
+    void signedVarLongsOfIntsMatchTheInts() throws IOException {
+        // The cursors of the pages went from ints to longs without changing their bytes.
+        for (int value : VALUES) {
+            byte[] bytes = write(output -> Codec.writeSignedVarInt(output, value));
+
+            assertArrayEquals(bytes, write(output -> Codec.writeSignedVarLong(output, value)));
+            assertEquals(value, Codec.readSignedVarLong(Codec.input(bytes)));
+        }
+    }
+
+    @Test
+    void peekLeavesThePosition() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(write(output -> {
+            output.writeByte(0);
+            Codec.writeVarInt(output, 300);
+        }));
+        data.position(1);
+
+        assertEquals(300, Codec.peekVarInt(data));
+        assertEquals(1, data.position());
+    }
+
+    @Test
+    void peekOfIncompleteVarInt() throws IOException {
+        byte[] bytes = write(output -> Codec.writeVarInt(output, 1 << 20));
+
+        for (int length = 0; length < bytes.length; length++)
+            assertEquals(-1, Codec.peekVarInt(ByteBuffer.wrap(bytes, 0, length)), "length " + length);
+        assertEquals(1 << 20, Codec.peekVarInt(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void malformedVarInt() {
+        byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+
+        assertThrows(IOException.class, () -> Codec.readVarInt(Codec.input(bytes)));
+        assertEquals(-1, Codec.peekVarInt(ByteBuffer.wrap(bytes)));
+        assertThrows(EOFException.class, () -> Codec.readVarInt(Codec.input(new byte[]{(byte) 0x80})));
+    }
+
+    @Test
+    void stringsRoundTrip() throws IOException {
+        for (String value : new String[]{"", "user", "ção", "🛴", "x".repeat(Codec.MAX_STRING_LENGTH)}) {
+            byte[] bytes = write(output -> Codec.writeString(output, value));
+            assertEquals(value, Codec.readString(Codec.input(bytes)));
+        }
+    }
+
+    @Test
+    void stringsPastTheMaximumLength() throws IOException {
+        String value = "x".repeat(Codec.MAX_STRING_LENGTH + 1);
+        assertThrows(UTFDataFormatException.class, () -> write(output -> Codec.writeString(output, value)));
+
+        byte[] length = write(output -> Codec.writeVarInt(output, Codec.MAX_STRING_LENGTH + 1));
+        assertThrows(UTFDataFormatException.class, () -> Codec.readString(Codec.input(length)));
+
+        byte[] negative = write(output -> Codec.writeVarInt(output, -1));
+        assertThrows(UTFDataFormatException.class, () -> Codec.readString(Codec.input(negative)));
+    }
+
+    @Test
+    void uuidsAndLocationsRoundTrip() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Location location = new Location(-3, Integer.MAX_VALUE);
+
+        byte[] bytes = write(output -> {
+            Codec.writeUuid(output, uuid);
+            Codec.writeLocation(output, location);
+        });
+        DataInput input = Codec.input(bytes);
+
+        assertEquals(16 + 1 + 5, bytes.length);
+        assertEquals(uuid, Codec.readUuid(input));
+        assertEquals(location, Codec.readLocation(input));
+    }
+
+    private interface Writer {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private static byte[] write(Writer writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static int varIntLength(int value) {
+        return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : value < 1 << 21 ? 3 : value < 1 << 28 ? 4 : 5;
+    }
+}
@@ -0,0 +1,79 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+import org.trotiletre.models.utils.Location;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * The range and ring lookups of a cell set, against filtering every cell.
+ */
+class CellSetTest {
+
+    private static final int SIZE = 50; // Side of the area holding the cells.
+    private static final int[] RANGES = {0, 1, 7, 2 * (SIZE - 1), Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+
+    @Test
+    void rangesMatchFiltering() {
+        for (int cellCount : new int[]{0, 3, 40, 1500}) {
+            CellSet set = randomSet(cellCount, new Random(cellCount));
+
+            for (Location center : centers()) {
+                for (int range : RANGES) {
+                    List<Location> expected = new ArrayList<>();
+                    for (Location cell : set) if (distance(cell, center) <= range) expected.add(cell);
+
+                    assertEquals(expected, set.withinRange(center, range), center + " within " + range);
+                }
+            }
+        }
+    }
+
+    @Test
+    void ringsMatchFiltering() {
+        for (int cellCount : new int[]{0, 3, 40, 1500}) {
+            CellSet set = randomSet(cellCount, new Random(cellCount));
+
+            for (Location center : centers()) {
+                for (int ring : RANGES) {
+                    List<Location> expected = new ArrayList<>();
+                    for (Location cell : set) if (distance(cell, center) == ring) expected.add(cell);
+
+                    assertEquals(expected, set.atDistance(center, ring), center + " at " + ring);
+                }
+            }
+        }
+    }
+
+    @Test
+    void hugeRangeEndsQuickly() {
+        CellSet set = randomSet(3, new Random(1));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            assertEquals(3, set.withinRange(new Location(0, 0), Integer.MAX_VALUE).size());
+            set.atDistance(new Location(0, 0), Integer.MAX_VALUE);
+        });
+    }
+
+    private static CellSet randomSet(int cellCount, Random random) {
+        CellSet set = new CellSet();
+        while (set.size() < cellCount) set.add(new Location(random.nextInt(SIZE), random.nextInt(SIZE)));
+        return set;
+    }
+
+    private static List<Location> centers() {
+        return List.of(new Location(0, 0), new Location(SIZE / 2, SIZE / 3), new Location(SIZE - 1, SIZE - 1),
+                new Location(-10, SIZE + 10), new Location(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                new Location(Integer.MAX_VALUE, Integer.MIN_VALUE));
+    }
+
+    private static long distance(Location cell, Location center) {
+        return Math.abs((long) cell.x() - center.x()) + Math.abs((long) cell.y() - center.y());
+    }
+}
@@ -0,0 +1,65 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The rectangle sums of the free counts tree, against a plain grid.
+ */
+class FreeCountTreeTest {
+
+    private static final int SIZE = 13; // Side of the tree, not a power of two.
+
+    @Test
+    void sumsMatchTheGrid() {
+        FreeCountTree tree = new FreeCountTree(SIZE);
+        int[][] grid = new int[SIZE][SIZE];
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(SIZE);
+            int y = random.nextInt(SIZE);
+            int delta = grid[y][x] > 0 && random.nextBoolean() ? -1 : 1;
+            tree.add(x, y, delta);
+            grid[y][x] += delta;
+        }
+
+        for (int fromX = 0; fromX < SIZE; fromX++)
+            for (int fromY = 0; fromY < SIZE; fromY++)
+                for (int toX = fromX; toX < SIZE; toX += 3)
+                    for (int toY = fromY; toY < SIZE; toY += 4)
+                        assertEquals(sum(grid, fromX, fromY, toX, toY), tree.sum(fromX, fromY, toX, toY));
+    }
+
+    @Test
+    void sumsClipToTheArea() {
+        FreeCountTree tree = new FreeCountTree(SIZE);
+        tree.add(0, 0, 2);
+        tree.add(SIZE - 1, SIZE - 1, 3);
+
+        assertEquals(5, tree.sum(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(2, tree.sum(-5, -5, 0, 0));
+        assertEquals(0, tree.sum(SIZE, 0, Integer.MAX_VALUE, SIZE));
+        assertEquals(0, tree.sum(5, 5, 4, 4));
+    }
+
+    @Test
+    void cellsOutsideTheAreaAreRejected() {
+        FreeCountTree tree = new FreeCountTree(SIZE);
+
+        assertThrows(IllegalArgumentException.class, () -> tree.add(-1, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> tree.add(0, SIZE, 1));
+        assertThrows(IllegalArgumentException.class, () -> tree.add(Integer.MIN_VALUE, Integer.MAX_VALUE, 1));
+    }
+
+    private static int sum(int[][] grid, int fromX, int fromY, int toX, int toY) {
+        int sum = 0;
+        for (int y = fromY; y <= toY; y++)
+            for (int x = fromX; x <= toX; x++) sum += grid[y][x];
+        return sum;
+    }
+}
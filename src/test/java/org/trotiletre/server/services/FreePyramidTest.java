@@ -0,0 +1,66 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The block counts of the free counts pyramid, against a plain grid.
+ */
+class FreePyramidTest {
+
+    private static final int SIZE = 300; // Side of the maps, not a power of two.
+
+    @Test
+    void blocksSumTheirCells() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            FreePyramid pyramid = new FreePyramid(SIZE, storage);
+            int[][] grid = new int[SIZE][SIZE];
+            Random random = new Random(3);
+
+            for (int i = 0; i < 500; i++) {
+                int x = random.nextInt(SIZE);
+                int y = random.nextInt(SIZE);
+                int delta = grid[y][x] > 0 && random.nextBoolean() ? -1 : 1;
+                pyramid.add(x, y, delta);
+                grid[y][x] += delta;
+            }
+
+            for (int level = FreePyramid.TILE_LEVEL; level <= pyramid.topLevel(); level++) {
+                for (int blockY = 0; blockY < pyramid.blocksPerRow(level); blockY++) {
+                    for (int blockX = 0; blockX < pyramid.blocksPerRow(level); blockX++)
+                        assertEquals(sum(grid, level, blockX, blockY), pyramid.count(level, blockX, blockY));
+                }
+            }
+        }
+    }
+
+    @Test
+    void topLevelCoversTheMap() {
+        for (int size : new int[]{1, MapTile.SIZE, MapTile.SIZE + 1, 1 << 20, Integer.MAX_VALUE}) {
+            FreePyramid pyramid = new FreePyramid(size, ScooterMap.Storage.SPARSE);
+            assertEquals(1, pyramid.blocksPerRow(pyramid.topLevel()));
+        }
+    }
+
+    @Test
+    void blocksOutsideTheMapAreEmpty() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            FreePyramid pyramid = new FreePyramid(SIZE, storage);
+            pyramid.add(0, 0, 1);
+
+            assertEquals(0, pyramid.count(FreePyramid.TILE_LEVEL, -1, 0));
+            assertEquals(0, pyramid.count(FreePyramid.TILE_LEVEL, 0, Integer.MAX_VALUE));
+            assertEquals(1, pyramid.count(pyramid.topLevel(), 0, 0));
+        }
+    }
+
+    private static int sum(int[][] grid, int level, int blockX, int blockY) {
+        int sum = 0;
+        for (int y = blockY << level; y < Math.min((blockY + 1) << level, SIZE); y++)
+            for (int x = blockX << level; x < Math.min((blockX + 1) << level, SIZE); x++) sum += grid[y][x];
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The free scooter counters and the row bitmap of a tile.
+ */
+class MapTileTest {
+
+    @Test
+    void bitmapFollowsTheCounters() {
+        MapTile tile = new MapTile(0, 0);
+
+        tile.addFreeScooters(3, 5, 2);
+        assertEquals(2, tile.freeCount(3, 5));
+        assertEquals(1L << 3, tile.freeCells(5, 0, MapTile.SIZE - 1));
+
+        tile.addFreeScooters(3, 5, -1);
+        assertEquals(1L << 3, tile.freeCells(5, 0, MapTile.SIZE - 1));
+
+        tile.addFreeScooters(3, 5, -1);
+        assertEquals(0, tile.freeCount(3, 5));
+        assertEquals(0L, tile.freeCells(5, 0, MapTile.SIZE - 1));
+    }
+
+    @Test
+    void rowsClipToTheTile() {
+        MapTile tile = new MapTile(1, 1);
+        int first = tile.originX;
+        int last = tile.originX + MapTile.SIZE - 1;
+        int y = tile.originY + 7;
+
+        tile.addFreeScooters(first, y, 1);
+        tile.addFreeScooters(last, y, 1);
+
+        assertEquals(1L | 1L << 63, tile.freeCells(y, first, last));
+        assertEquals(0L, tile.freeCells(y, first + 1, last - 1));
+        assertEquals(0L, tile.freeCells(y, last + 1, Integer.MAX_VALUE));
+
+        // Bounds far past the tile clip to it rather than wrapping around.
+        assertEquals(1L | 1L << 63, tile.freeCells(y, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(last, tile.lastFreeCell(y, Integer.MAX_VALUE));
+        assertEquals(first, tile.firstFreeCell(y, Integer.MIN_VALUE));
+        assertEquals(-1, tile.firstFreeCell(y, last + 1));
+    }
+
+    @Test
+    void sumsClipToTheTile() {
+        MapTile tile = new MapTile(2, 0);
+        tile.addFreeScooters(tile.originX, 0, 3);
+        tile.addFreeScooters(tile.originX + 10, 20, 4);
+
+        assertEquals(7, tile.sumFree(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(4, tile.sumFree(tile.originX + 1, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(0, tile.sumFree(0, 0, tile.originX - 1, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void cellsOffTheTileAreRejected() {
+        MapTile tile = new MapTile(1, 0);
+
+        assertThrows(IllegalArgumentException.class, () -> tile.slot(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> tile.addFreeScooters(tile.originX + MapTile.SIZE, 0, 1));
+    }
+}
@@ -0,0 +1,125 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+import org.trotiletre.common.AnswerTag;
+import org.trotiletre.common.communication.Codec;
+import org.trotiletre.common.communication.ScooterMessages;
+import org.trotiletre.common.communication.TaggedConnection;
+import org.trotiletre.models.utils.Location;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The responses queued for a client that does not read them yet: the reward notifications, with the coalescing
+ * policy, and the replies past the bytes cap.
+ */
+class OutboundQueueTest {
+
+    private static final int TAG = AnswerTag.NOTIFICATION.tag;
+
+    @Test
+    void deltasSurviveSlowConsumer() throws IOException {
+        OutboundQueue queue = new OutboundQueue(16, 1 << 20, OutboundQueue.Policy.COALESCE);
+
+        // The client reads nothing until the reward thread has sent its deltas.
+        assertEquals(OutboundQueue.Outcome.QUEUED, queue.offer(update(ScooterMessages.RewardsUpdate.SNAPSHOT, 1), true));
+        for (int version = 2; version <= 10; version++)
+            assertEquals(OutboundQueue.Outcome.QUEUED, queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, version), false));
+
+        // Every delta is still there, in order, so the client can apply them all.
+        List<ScooterMessages.RewardsUpdate> received = drain(queue);
+        assertEquals(10, received.size());
+        for (int i = 0; i < received.size(); i++)
+            assertEquals(i + 1, received.get(i).version());
+    }
+
+    @Test
+    void snapshotReplacesQueuedDeltas() throws IOException {
+        OutboundQueue queue = new OutboundQueue(16, 1 << 20, OutboundQueue.Policy.COALESCE);
+
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 2), false);
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 3), false);
+        assertEquals(OutboundQueue.Outcome.COALESCED, queue.offer(update(ScooterMessages.RewardsUpdate.SNAPSHOT, 4), true));
+
+        List<ScooterMessages.RewardsUpdate> received = drain(queue);
+        assertEquals(1, received.size());
+        assertEquals(ScooterMessages.RewardsUpdate.SNAPSHOT, received.get(0).kind());
+    }
+
+    @Test
+    void deltaPastCapsReportsLoss() throws IOException {
+        OutboundQueue queue = new OutboundQueue(2, 1 << 20, OutboundQueue.Policy.COALESCE);
+
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 2), false);
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 3), false);
+
+        // The oldest delta makes room, and the sender learns it must follow up with a snapshot.
+        assertEquals(OutboundQueue.Outcome.DROPPED_OLDER, queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 4), false));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void deltaDroppedForReplyReportsLoss() throws IOException {
+        OutboundQueue queue = new OutboundQueue(2, 1 << 20, OutboundQueue.Policy.COALESCE);
+
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 2), false);
+        queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 3), false);
+        queue.offer(new ResponseManager.SenderData(ByteBuffer.allocate(8), 1, 7, false, false));
+        queue.poll();
+        queue.poll();
+
+        // The delta dropped for the reply is reported to the next notification.
+        assertEquals(OutboundQueue.Outcome.DROPPED_OLDER, queue.offer(update(ScooterMessages.RewardsUpdate.DELTA, 4), false));
+    }
+
+    @Test
+    void loneReplyPastBytesCapIsQueued() {
+        for (OutboundQueue.Policy policy : OutboundQueue.Policy.values()) {
+            OutboundQueue queue = new OutboundQueue(16, 1024, policy);
+
+            // A listing larger than the cap reaches a client with no other reply pending.
+            assertEquals(OutboundQueue.Outcome.QUEUED, queue.offer(reply(1, 4096)), policy.name());
+            assertEquals(1, queue.size());
+
+            queue.poll();
+            assertEquals(OutboundQueue.Outcome.QUEUED, queue.offer(reply(2, 4096)), policy.name());
+        }
+    }
+
+    @Test
+    void replyBehindAnotherPastBytesCapOverflows() {
+        OutboundQueue queue = new OutboundQueue(16, 1024, OutboundQueue.Policy.COALESCE);
+
+        assertEquals(OutboundQueue.Outcome.QUEUED, queue.offer(reply(1, 512)));
+
+        // A client pipelining requests without reading the replies is still cut off.
+        assertEquals(OutboundQueue.Outcome.OVERFLOW, queue.offer(reply(2, 4096)));
+        assertEquals(1, queue.size());
+    }
+
+    private static ResponseManager.SenderData reply(int requestId, int size) {
+        return new ResponseManager.SenderData(ByteBuffer.allocate(size), 1, requestId, false, false);
+    }
+
+    private static ResponseManager.SenderData update(int kind, int version) throws IOException {
+        ScooterMessages.Reward reward = new ScooterMessages.Reward(new Location(0, 0), new Location(version, 0), 1);
+        byte[] data = Codec.toBytes(new ScooterMessages.RewardsUpdate(kind, version, List.of(reward), List.of()));
+        return new ResponseManager.SenderData(ByteBuffer.wrap(data), TAG, TaggedConnection.NO_REQUEST, false, false);
+    }
+
+    private static List<ScooterMessages.RewardsUpdate> drain(OutboundQueue queue) throws IOException {
+        List<ScooterMessages.RewardsUpdate> received = new ArrayList<>();
+        for (ResponseManager.SenderData data = queue.poll(); data != null; data = queue.poll()) {
+            ByteBuffer buffer = data.data();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            received.add(ScooterMessages.RewardsUpdate.decode(Codec.input(bytes)));
+        }
+        return received;
+    }
+}
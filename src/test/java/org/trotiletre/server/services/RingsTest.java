@@ -0,0 +1,70 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The ring-by-ring order of the paged listings, up to the last ring a cursor can hold.
+ */
+class RingsTest {
+
+    @Test
+    void cursorsCountTheCellsInOrder() {
+        long cursor = 0;
+
+        for (int ring = 0; ring <= 300; ring++) {
+            for (long offset = 0; offset < Rings.size(ring); offset++, cursor++) {
+                assertEquals(cursor, Rings.cursor(ring, offset));
+                assertEquals(ring, Rings.ring(cursor));
+                assertEquals(offset, Rings.offset(cursor));
+
+                int dx = Rings.dx(ring, offset);
+                int dy = Rings.dy(ring, offset);
+                assertEquals(ring, Math.abs(dx) + Math.abs(dy));
+                assertEquals(offset, Rings.offsetOf(dx, dy));
+
+                // Row by row from the top, and each row from the left.
+                if (offset > 0) {
+                    int previousDx = Rings.dx(ring, offset - 1);
+                    int previousDy = Rings.dy(ring, offset - 1);
+                    assertTrue(previousDy < dy || previousDy == dy && previousDx < dx);
+                }
+            }
+
+            assertEquals(cursor, Rings.end(ring));
+        }
+    }
+
+    @Test
+    void cursorsPastTheIntRange() {
+        assertTrue(Rings.end(32768) > Integer.MAX_VALUE);
+
+        for (int ring : new int[]{32767, 32768, 32769, 1 << 20, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}) {
+            long size = Rings.size(ring);
+            assertEquals(4L * ring, size);
+
+            for (long offset : new long[]{0, 1, 2, size / 2, size - 2, size - 1}) {
+                long cursor = Rings.cursor(ring, offset);
+
+                assertTrue(cursor > 0, "cursor of ring " + ring);
+                assertEquals(ring, Rings.ring(cursor));
+                assertEquals(offset, Rings.offset(cursor));
+                assertEquals(offset, Rings.offsetOf(Rings.dx(ring, offset), Rings.dy(ring, offset)));
+            }
+
+            assertEquals(Rings.end(ring), Rings.cursor(ring, size - 1) + 1);
+        }
+    }
+
+    @Test
+    void cursorsPastTheLastRingAreRejected() {
+        long end = Rings.end(Integer.MAX_VALUE);
+
+        assertEquals(Integer.MAX_VALUE, Rings.ring(end - 1));
+        assertThrows(IllegalArgumentException.class, () -> Rings.ring(end));
+        assertThrows(IllegalArgumentException.class, () -> Rings.ring(Long.MAX_VALUE));
+    }
+}
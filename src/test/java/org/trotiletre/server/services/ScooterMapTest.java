@@ -0,0 +1,150 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+import org.trotiletre.models.utils.Location;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The range searches of the map, up to ranges past its diameter.
+ */
+class ScooterMapTest {
+
+    private static final int SIZE = 20; // Side of the maps.
+    private static final int SCOOTERS = 10; // Scooters on the maps.
+
+    @Test
+    void rangesCoverTheMap() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            ScooterMap map = populated(storage);
+            Location corner = new Location(0, 0);
+            int diameter = 2 * (SIZE - 1);
+
+            assertEquals(SCOOTERS, map.getFreeScootersWithinRange(diameter, corner).size());
+            assertEquals(SCOOTERS, map.getFreeScootersWithinRange(Integer.MAX_VALUE, corner).size());
+            assertEquals(SCOOTERS, map.getFreeScootersWithinRange(Integer.MAX_VALUE, new Location(SIZE - 1, SIZE / 2)).size());
+
+            int[] cells = {0};
+            map.forEachFreeCell(Integer.MAX_VALUE, corner, (x, y, free) -> cells[0] += free);
+            assertEquals(SCOOTERS, cells[0]);
+        }
+    }
+
+    @Test
+    void rangeZeroIsTheCell() {
+        ScooterMap map = populated(ScooterMap.Storage.DENSE);
+
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                Location cell = new Location(x, y);
+                assertEquals(map.getNumberOfScootersAt(x, y), map.getFreeScootersWithinRange(0, cell).size());
+            }
+        }
+    }
+
+    @Test
+    void reserveWithinAnyRange() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            ScooterMap map = populated(storage);
+
+            for (int i = 0; i < SCOOTERS; i++)
+                assertNotNull(map.getClosestScooterWithinRange(Integer.MAX_VALUE, new Location(SIZE - 1, SIZE - 1), "user"));
+
+            assertEquals(0, map.getFreeScootersWithinRange(Integer.MAX_VALUE, new Location(0, 0)).size());
+        }
+    }
+
+    @Test
+    void heatmapCountsEveryScooter() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            ScooterMap map = populated(storage);
+
+            for (int level : new int[]{0, 2, FreePyramid.TILE_LEVEL, 31}) {
+                int total = 0;
+                for (int[] row : map.getFreeScooterHeatmap(level))
+                    for (int count : row) total += count;
+                assertEquals(SCOOTERS, total);
+            }
+        }
+    }
+
+    @Test
+    void heatmapOfLargeMapIsBounded() {
+        ScooterMap map = new ScooterMap(1_000_000, 0, ScooterMap.Storage.SPARSE);
+
+        int[][] heatmap = map.getFreeScooterHeatmap(0);
+        assertEquals(heatmap.length, heatmap[0].length);
+        assertTrue(heatmap.length <= ScooterMap.MAX_HEATMAP_SIDE);
+    }
+
+    @Test
+    void ringsListTheFreeCellsInOrder() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            ScooterMap map = populated(storage);
+
+            for (Location center : new Location[]{new Location(0, 0), new Location(SIZE / 2, 3), new Location(SIZE - 1, SIZE - 1)}) {
+                for (int range : new int[]{0, 5, 2 * (SIZE - 1), Integer.MAX_VALUE}) {
+                    List<Location> expected = inRingOrder(map, range, center);
+
+                    for (int pageSize : new int[]{1, 3, SCOOTERS})
+                        assertEquals(expected, pagedRings(map, range, center, pageSize, new ArrayList<>()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void ringsOfLargeSparseMap() {
+        ScooterMap map = new ScooterMap(1_000_000, 50, ScooterMap.Storage.SPARSE);
+        map.populateMap();
+        Location corner = new Location(0, 0);
+
+        // Walking every ring, cell by cell, would take hours: the empty rings and tiles must be skipped.
+        List<Long> cursors = new ArrayList<>();
+        List<Location> listed = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> pagedRings(map, Integer.MAX_VALUE, corner, 7, cursors));
+
+        assertEquals(inRingOrder(map, Integer.MAX_VALUE, corner), listed);
+        assertTrue(cursors.stream().anyMatch(cursor -> cursor > Integer.MAX_VALUE));
+    }
+
+    private static List<Location> inRingOrder(ScooterMap map, int range, Location center) {
+        List<Location> cells = new ArrayList<>();
+        map.forEachFreeCell(range, center, (x, y, free) -> cells.add(new Location(x, y)));
+
+        cells.sort(Comparator.comparingLong(cell -> Rings.cursor(
+                Math.abs(cell.x() - center.x()) + Math.abs(cell.y() - center.y()),
+                Rings.offsetOf(cell.x() - center.x(), cell.y() - center.y()))));
+        return cells;
+    }
+
+    private static List<Location> pagedRings(ScooterMap map, int range, Location center, int pageSize,
+                                             List<Long> cursors) {
+        List<Location> cells = new ArrayList<>();
+
+        for (long cursor = 0; cursor != -1; cursors.add(cursor)) {
+            int pageEnd = cells.size() + pageSize;
+            cursor = map.forEachFreeCellInRings(cursor, range, center, (x, y, free) -> {
+                if (cells.size() == pageEnd) return false;
+                cells.add(new Location(x, y));
+                return true;
+            });
+        }
+
+        return cells;
+    }
+
+    private static ScooterMap populated(ScooterMap.Storage storage) {
+        ScooterMap map = new ScooterMap(SIZE, SCOOTERS, storage);
+        map.populateMap();
+        return map;
+    }
+}
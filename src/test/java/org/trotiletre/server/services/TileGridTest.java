@@ -0,0 +1,55 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The tiles of the dense and sparse grids, and the cells with none.
+ */
+class TileGridTest {
+
+    private static final int SIZE = 100; // Side of the maps, not a multiple of the tiles.
+
+    @Test
+    void denseGridHoldsEveryTile() {
+        TileGrid grid = TileGrid.create(SIZE, ScooterMap.Storage.DENSE);
+
+        assertNotNull(grid.tileAt(0, 0));
+        assertSame(grid.tileAt(SIZE - 1, SIZE - 1), grid.tileOrCreateAt(SIZE - 1, SIZE - 1));
+        assertEquals(4, grid.within(0, 0, SIZE - 1, SIZE - 1).size());
+    }
+
+    @Test
+    void sparseGridHoldsTheTilesInUse() {
+        TileGrid grid = TileGrid.create(SIZE, ScooterMap.Storage.SPARSE);
+
+        assertNull(grid.tileAt(70, 10));
+        MapTile tile = grid.tileOrCreateAt(70, 10);
+        assertSame(tile, grid.tileAt(MapTile.SIZE, 0));
+        assertSame(tile, grid.get(1, 0));
+
+        MapTile other = grid.tileOrCreateAt(0, SIZE - 1);
+        assertEquals(List.of(tile, other), grid.within(0, 0, SIZE - 1, SIZE - 1));
+        assertEquals(List.of(tile), grid.within(MapTile.SIZE, 0, MapTile.SIZE, 0));
+    }
+
+    @Test
+    void cellsOutsideTheMapHaveNoTile() {
+        for (ScooterMap.Storage storage : ScooterMap.Storage.values()) {
+            TileGrid grid = TileGrid.create(SIZE, storage);
+
+            // The last tiles reach past the map, its cells there are still outside.
+            for (int[] cell : new int[][]{{-1, 0}, {0, -1}, {SIZE, 0}, {SIZE + 10, SIZE + 10}, {2 * MapTile.SIZE, 0},
+                    {Integer.MIN_VALUE, 0}, {Integer.MAX_VALUE, Integer.MAX_VALUE}}) {
+                assertNull(grid.tileAt(cell[0], cell[1]));
+                assertThrows(IllegalArgumentException.class, () -> grid.tileOrCreateAt(cell[0], cell[1]));
+            }
+
+            assertNull(grid.get(-1, 0));
+            assertNull(grid.get(2, 0));
+        }
+    }
+}
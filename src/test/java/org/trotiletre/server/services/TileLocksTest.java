@@ -0,0 +1,48 @@
+package org.trotiletre.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The tiles locked for an area of the map.
+ */
+class TileLocksTest {
+
+    @Test
+    void areaLocksTheTilesItTouches() {
+        TileLocks locks = new TileLocks(4 * TileLocks.TILE_SIZE);
+
+        assertStripes(1, locks.lockArea(0, 0, 0, 0, false));
+        assertStripes(4, locks.lockArea(TileLocks.TILE_SIZE - 1, TileLocks.TILE_SIZE - 1,
+                TileLocks.TILE_SIZE, TileLocks.TILE_SIZE, true));
+        assertStripes(16, locks.lockAll(false));
+    }
+
+    @Test
+    void areaClipsToTheMap() {
+        TileLocks locks = new TileLocks(4 * TileLocks.TILE_SIZE);
+
+        assertStripes(16, locks.lockArea(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, false));
+        assertStripes(1, locks.lockArea(-100, -100, 0, 0, false));
+        assertStripes(0, locks.lockArea(4 * TileLocks.TILE_SIZE, 0, Integer.MAX_VALUE, 10, false));
+        assertStripes(0, locks.lockArea(Integer.MIN_VALUE, 0, -1, 10, false));
+    }
+
+    @Test
+    void tilesShareTheStripes() {
+        TileLocks locks = new TileLocks(100 * TileLocks.TILE_SIZE, 8);
+
+        assertStripes(8, locks.lockAll(true));
+        assertStripes(2, locks.lockArea(0, 0, 2 * TileLocks.TILE_SIZE - 1, 0, false));
+        assertStripes(1, locks.lockCells(true, 0, 0, 8 * TileLocks.TILE_SIZE, 0));
+    }
+
+    private static void assertStripes(int expected, TileLocks.Stripe stripe) {
+        try {
+            assertEquals(expected, stripe.count());
+        } finally {
+            stripe.unlock();
+        }
+    }
+}